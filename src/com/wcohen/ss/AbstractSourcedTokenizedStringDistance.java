@@ -12,8 +12,6 @@ import com.wcohen.ss.api.*;
 abstract public class AbstractSourcedTokenizedStringDistance extends AbstractStringDistance
 {
     protected SourcedTokenizer tokenizer;
-    // cached, tokenized version of wrappers
-    private List tokenizedWrappers; 
 
     public AbstractSourcedTokenizedStringDistance(Tokenizer tokenizer) { this.tokenizer = (SourcedTokenizer)tokenizer; }
     public AbstractSourcedTokenizedStringDistance() { this(SimpleSourcedTokenizer.DEFAULT_SOURCED_TOKENIZER); }
@@ -26,7 +24,8 @@ abstract public class AbstractSourcedTokenizedStringDistance extends AbstractStr
 
     final public StringWrapperIterator prepare(StringWrapperIterator i0) {
         SourcedStringWrapperIterator i = (SourcedStringWrapperIterator)i0;
-        tokenizedWrappers = new ArrayList();
+        // a local list, so that threads can prepare strings at once
+        List tokenizedWrappers = new ArrayList();
         while (i.hasNext()) {
             tokenizedWrappers.add( asBagOfSourcedTokens(i.nextSourcedStringWrapper()) );
         }
@@ -20,6 +20,14 @@ public abstract class AbstractStringDistance implements StringDistance,StringDis
 	 */
 	abstract public double score(StringWrapper s,StringWrapper t);
 
+	/** Thresholded version of score(s,t).  By default, the full score
+	 * is computed; override this method if some scores can be shown
+	 * to fall below minScore more cheaply than they can be computed.
+	 */
+	public double score(StringWrapper s,StringWrapper t,double minScore) {
+		return score(s,t);
+	}
+
 	/** This method needs to be implemented by subclasses. 
 	 */
 	abstract public String explainScore(StringWrapper s, StringWrapper t);
@@ -44,7 +52,7 @@ public abstract class AbstractStringDistance implements StringDistance,StringDis
 	public StringWrapper prepare(String s) {
 		return new BasicStringWrapper(s);
 	}
-	
+
 	//
 	// implement StringDistanceLearner
 	//
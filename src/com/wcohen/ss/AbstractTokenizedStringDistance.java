@@ -12,8 +12,6 @@ import com.wcohen.ss.api.*;
 abstract public class AbstractTokenizedStringDistance extends AbstractStringDistance
 {
 	protected Tokenizer tokenizer;
-	// cached, tokenized version of wrappers
-	private List tokenizedWrappers; 
 
 	public AbstractTokenizedStringDistance(Tokenizer tokenizer) { this.tokenizer = tokenizer; }
 	public AbstractTokenizedStringDistance() { this(SimpleTokenizer.DEFAULT_TOKENIZER); }
@@ -25,7 +23,8 @@ abstract public class AbstractTokenizedStringDistance extends AbstractStringDist
 	abstract public void train(StringWrapperIterator i); 
 
 	final public StringWrapperIterator prepare(StringWrapperIterator i) {
-		tokenizedWrappers = new ArrayList();
+		// a local list, so that threads can prepare strings at once
+		List tokenizedWrappers = new ArrayList();
 		while (i.hasNext()) {
 			tokenizedWrappers.add( asBagOfTokens(i.nextStringWrapper()) );
 		}
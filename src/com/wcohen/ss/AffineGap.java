@@ -24,9 +24,42 @@ public class AffineGap extends AbstractStringDistance
 		this.lowerBound = lowerBound;
 	}
 	
+	/** Computes the same value as the MatrixTrio used by explainScore,
+	 * but iteratively, keeping only two rows of each of the three
+	 * matrices. */
 	public double score(StringWrapper s,StringWrapper t) {
-		MatrixTrio mat = new MatrixTrio( s, t );
-		return score(s,t,mat);
+		String sStr = s.unwrap(), tStr = t.unwrap();
+		int n = sStr.length(), m = tStr.length();
+		double[][] rows = RollingMatrix.rows(6, m+1);
+		double[] prevM = rows[0], curM = rows[1];
+		double[] prevIS = rows[2], curIS = rows[3];
+		double[] prevIT = rows[4], curIT = rows[5];
+		// the first row and column of every matrix are all zero
+		double best = 0;
+		for (int j=0; j<=m; j++) prevM[j] = prevIS[j] = prevIT[j] = 0;
+		for (int i=1; i<=n; i++) {
+			char si = sStr.charAt(i-1);
+			curM[0] = curIS[0] = curIT[0] = 0;
+			for (int j=1; j<=m; j++) {
+				double matchScore = charMatchScore.matchScore( si, tStr.charAt(j-1) );
+				curM[j] = MemoMatrix.max4( lowerBound,
+																	 prevM[j-1] + matchScore,
+																	 prevIS[j-1] + matchScore,
+																	 prevIT[j-1] + matchScore );
+				curIS[j] = MemoMatrix.max3( lowerBound,
+																		prevM[j] + openGapScore,
+																		prevIS[j] + extendGapScore );
+				curIT[j] = MemoMatrix.max3( lowerBound,
+																		curM[j-1] + openGapScore,
+																		curIT[j-1] + extendGapScore );
+				best = Math.max( best, curM[j] );
+			}
+			double[] tmp;
+			tmp = prevM; prevM = curM; curM = tmp;
+			tmp = prevIS; prevIS = curIS; curIS = tmp;
+			tmp = prevIT; prevIT = curIT; curIT = tmp;
+		}
+		return best;
 	}
 	
 	private double score(StringWrapper s,StringWrapper t,MatrixTrio mat) {
@@ -63,7 +96,7 @@ public class AffineGap extends AbstractStringDistance
 			return max4( lowerBound,
 									 m.get(i-1,j-1) + matchScore,
 									 is.get(i-1,j-1) + matchScore,
-									 it.get(i=1,j-1) + matchScore );
+									 it.get(i-1,j-1) + matchScore );
 		}
 		protected class InsertSMatrix extends MemoMatrix {
 			public InsertSMatrix(StringWrapper s,StringWrapper t) { super(s,t); }
@@ -17,7 +17,8 @@ public class ApproxNeedlemanWunsch extends AbstractStringDistance
     private static final int DEFAULT_WIDTH = 40;
     private CharMatchScore charMatchScore;
     private double gapCost;
-    private MyMatrix mat;
+    // the matrix of the last score computed by each thread, for getAlignedChar
+    private final ThreadLocal<MyMatrix> lastMatrix = new ThreadLocal<MyMatrix>();
     private int width = DEFAULT_WIDTH;
 	
     public ApproxNeedlemanWunsch() { this(CharMatchScore.DIST_01, 1.0 ); }
@@ -30,7 +31,8 @@ public class ApproxNeedlemanWunsch extends AbstractStringDistance
     public void setWidth(int w) { this.width=w; }
 
     public double score(StringWrapper s,StringWrapper t) {
-        mat = new MyMatrix( s, t );
+        MyMatrix mat = new MyMatrix( s, t );
+        lastMatrix.set(mat);
         // fill matrix forward to prevent deep recursion
         for (int i=1; i<=s.length(); i++) {
             int j = (int)Math.round(i * mat.getScale());
@@ -42,7 +44,8 @@ public class ApproxNeedlemanWunsch extends AbstractStringDistance
     }
 	
     public String explainScore(StringWrapper s,StringWrapper t) {
-        mat = new MyMatrix( s, t );
+        MyMatrix mat = new MyMatrix( s, t );
+        lastMatrix.set(mat);
         double d = mat.get(s.length(), t.length() );
         mat.setPrintNegativeValues(true);
         return mat.toString() + "\nScore = "+d;
@@ -50,9 +53,11 @@ public class ApproxNeedlemanWunsch extends AbstractStringDistance
 	
 
     /** Find a character in the first string, s, that can be aligned
-     * with the i-th character in the second string, t. */
+     * with the i-th character in the second string, t, where s and t
+     * were the strings last scored by the calling thread. */
     public int getAlignedChar(int iMinusOne,boolean preferHigherIndices)
     {
+        MyMatrix mat = lastMatrix.get();
         // internally to this package, strings are indexed 1...N, so
         // we need to convert from the usual 0...N-1 Java convention
         int i = iMinusOne+1;
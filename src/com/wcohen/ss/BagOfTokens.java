@@ -7,52 +7,93 @@ import com.wcohen.ss.api.*;
 /**
  * A string, with an associated bag of tokens.  Each token has an
  * associated weight.
- * 
+ *
+ * <p>The bag is stored as a sparse vector: the distinct tokens are
+ * kept sorted by token index, with the index of each token in an
+ * int[] and its weight in a parallel double[].  Membership tests are
+ * binary searches, and operations between two bags (like the inner
+ * product used by TFIDF) are linear merge-joins over the sorted
+ * indices, which do no allocation.
  */
 
 class BagOfTokens extends BasicStringWrapper
 {
-	private Map weightMap = new TreeMap();
+	// orders tokens by index, like the TreeMap that used to hold weights
+	private static final Comparator INDEX_ORDER = new Comparator() {
+			public int compare(Object a,Object b) {
+				return ((Token)a).getIndex() - ((Token)b).getIndex();
+			}
+		};
+
 	private double totalWeight = 0;
 	private Token[] tokens;
-	
-	BagOfTokens(String s,Token[] tokens) 
+	// distinct tokens, sorted by index
+	private Token[] distinctTokens;
+	// distinctTokens[k].getIndex()
+	private int[] tokenIndex;
+	// weight of distinctTokens[k]
+	private double[] weights;
+
+	BagOfTokens(String s,Token[] tokens)
 	{
 		super(s);
 		this.tokens = tokens;
-		for (int i=0; i<tokens.length; i++) {
-			weightMap.put(tokens[i], new Double(getWeight(tokens[i])+1) );
+		Token[] sorted = tokens.clone();
+		Arrays.sort(sorted, INDEX_ORDER);
+		int n = 0;
+		int[] index = new int[sorted.length];
+		double[] count = new double[sorted.length];
+		for (int i=0; i<sorted.length; i++) {
+			if (n>0 && index[n-1]==sorted[i].getIndex()) {
+				count[n-1]++;
+			} else {
+				sorted[n] = sorted[i];
+				index[n] = sorted[i].getIndex();
+				count[n] = 1;
+				n++;
+			}
 		}
+		if (n<sorted.length) {
+			sorted = Arrays.copyOf(sorted, n);
+			index = Arrays.copyOf(index, n);
+			count = Arrays.copyOf(count, n);
+		}
+		this.distinctTokens = sorted;
+		this.tokenIndex = index;
+		this.weights = count;
 		totalWeight = tokens.length;
 	}
 
-	/** Iterates over all tokens in the bag. */
-    Iterator tokenIterator() {
-		return weightMap.keySet().iterator();
+	/** Iterates over all tokens in the bag, in order of token index. */
+	Iterator tokenIterator() {
+		return Arrays.asList(distinctTokens).iterator();
 	}
-	
+
 	/** Test if this token appears at least once. */
-    boolean contains(Token tok) {
-		return weightMap.get(tok)!=null;
+	boolean contains(Token tok) {
+		return find(tok)>=0;
 	}
-	
+
 	/** Weight associated with a token: by default, the number of times
 	 * the token appears in the bag. */
-    double getWeight(Token tok) {
-		Double f = (Double)weightMap.get(tok);
-		return f==null ? 0 : f.doubleValue();
+	double getWeight(Token tok) {
+		int k = find(tok);
+		return k<0 ? 0 : weights[k];
 	}
-	
+
 	/** Change the weight of a token in the bag */
 	void setWeight(Token tok, double d) {
-		Double oldWeight = (Double)weightMap.get(tok);
-		totalWeight += oldWeight==null ? d : (d - oldWeight.doubleValue());
-		weightMap.put(tok,new Double(d));
+		int k = find(tok);
+		if (k>=0) {
+			setWeightAt(k, d);
+		} else {
+			insertAt(-k-1, tok, d);
+		}
 	}
-	
+
 	/** Number of distinct tokens in the bag. */
 	int size() {
-		return weightMap.keySet().size();
+		return distinctTokens.length;
 	}
 
 	/** Total weight of all tokens in bag */
@@ -64,4 +105,99 @@ class BagOfTokens extends BasicStringWrapper
 	Token[] getTokens() {
 		return tokens;
 	}
+
+	//
+	// positional access, for merge-joins and other allocation-free loops
+	//
+
+	/** The k-th distinct token, in order of token index. */
+	Token tokenAt(int k) {
+		return distinctTokens[k];
+	}
+
+	/** Index of the k-th distinct token. */
+	int tokenIndexAt(int k) {
+		return tokenIndex[k];
+	}
+
+	/** Weight of the k-th distinct token. */
+	double weightAt(int k) {
+		return weights[k];
+	}
+
+	/** Change the weight of the k-th distinct token. */
+	void setWeightAt(int k, double d) {
+		totalWeight += d - weights[k];
+		weights[k] = d;
+	}
+
+	/** Position of the token in the bag, or (-(insertion point)-1) if
+	 * it is not in the bag. */
+	int find(Token tok) {
+		return Arrays.binarySearch(tokenIndex, tok.getIndex());
+	}
+
+	/** Inner product of the weight vectors of this bag and another. */
+	double dotProduct(BagOfTokens other) {
+		int[] a = tokenIndex, b = other.tokenIndex;
+		double[] wa = weights, wb = other.weights;
+		double sum = 0;
+		int i = 0, j = 0;
+		while (i<a.length && j<b.length) {
+			if (a[i]<b[j]) i++;
+			else if (a[i]>b[j]) j++;
+			else sum += wa[i++] * wb[j++];
+		}
+		return sum;
+	}
+
+	/** Number of distinct tokens that appear in both this bag and another. */
+	int numCommon(BagOfTokens other) {
+		int[] a = tokenIndex, b = other.tokenIndex;
+		int n = 0;
+		int i = 0, j = 0;
+		while (i<a.length && j<b.length) {
+			if (a[i]<b[j]) i++;
+			else if (a[i]>b[j]) j++;
+			else { n++; i++; j++; }
+		}
+		return n;
+	}
+
+	/** Number of distinct tokens that appear in both this bag and
+	 * another, or some number less than minCommon if there are fewer
+	 * than minCommon of them. */
+	int numCommon(BagOfTokens other, double minCommon) {
+		int[] a = tokenIndex, b = other.tokenIndex;
+		int n = 0;
+		int i = 0, j = 0;
+		while (i<a.length && j<b.length) {
+			if (n + Math.min(a.length-i, b.length-j) < minCommon) return n;
+			if (a[i]<b[j]) i++;
+			else if (a[i]>b[j]) j++;
+			else { n++; i++; j++; }
+		}
+		return n;
+	}
+
+	// rarely used: add a token that isn't already in the bag
+	private void insertAt(int k, Token tok, double d) {
+		int n = distinctTokens.length;
+		Token[] newTokens = new Token[n+1];
+		int[] newIndex = new int[n+1];
+		double[] newWeights = new double[n+1];
+		System.arraycopy(distinctTokens,0,newTokens,0,k);
+		System.arraycopy(tokenIndex,0,newIndex,0,k);
+		System.arraycopy(weights,0,newWeights,0,k);
+		newTokens[k] = tok;
+		newIndex[k] = tok.getIndex();
+		newWeights[k] = d;
+		System.arraycopy(distinctTokens,k,newTokens,k+1,n-k);
+		System.arraycopy(tokenIndex,k,newIndex,k+1,n-k);
+		System.arraycopy(weights,k,newWeights,k+1,n-k);
+		distinctTokens = newTokens;
+		tokenIndex = newIndex;
+		weights = newWeights;
+		totalWeight += d;
+	}
 }
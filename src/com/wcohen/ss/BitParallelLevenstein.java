@@ -0,0 +1,188 @@
+package com.wcohen.ss;
+
+import java.util.Arrays;
+
+/**
+ * Unit-cost edit distance computed with the bit-vector algorithm of
+ * Myers (1999), in the formulation of Hyyr&ouml; (2003).
+ *
+ * <p>The shorter string is the 'pattern'.  Each column of the edit
+ * distance matrix is encoded as vertical +1/-1 deltas, packed 64 rows
+ * to a long, and advanced one character of the longer string at a
+ * time with a handful of word operations.  Patterns of up to 64 chars
+ * use a single word; longer ones are split into blocks of 64 rows,
+ * with carries passed from block to block.
+ *
+ * <p>Characters are compared ignoring case, exactly as by
+ * CharMatchScore.DIST_01, so -distance(s,t) is the Levenstein score of
+ * s and t.  Scratch space is kept per thread.
+ */
+
+final class BitParallelLevenstein
+{
+    private static final ThreadLocal<BitParallelLevenstein> SCRATCH = new ThreadLocal<BitParallelLevenstein>() {
+            protected BitParallelLevenstein initialValue() { return new BitParallelLevenstein(); }
+        };
+
+    // match masks of chars below 256 are stored directly, 'words' longs per char
+    private long[] latinMasks = new long[256];
+    // other chars are found in a linear-probing table; 0 marks an empty slot
+    private char[] keys = new char[16];
+    private long[] otherMasks = new long[16];
+    private long[] vp = new long[1];
+    private long[] vn = new long[1];
+    private int words;
+
+    private BitParallelLevenstein() {}
+
+    /** Edit distance between s and t, ignoring case.  If the distance
+     * is larger than maxDistance, then some value larger than
+     * maxDistance is returned, possibly after examining only part of
+     * the strings.  Use Integer.MAX_VALUE for an unbounded
+     * computation.
+     */
+    static int distance(String s,String t,int maxDistance)
+    {
+        String pattern = s.length()<=t.length() ? s : t;
+        String text = s.length()<=t.length() ? t : s;
+        int m = pattern.length(), n = text.length();
+        if (n-m > maxDistance) return n-m;
+        if (m==0) return n;
+        BitParallelLevenstein scratch = SCRATCH.get();
+        scratch.buildMasks(pattern);
+        try {
+            return m<=64 ? scratch.singleWord(m, text, maxDistance) : scratch.multiWord(m, text, maxDistance);
+        } finally {
+            scratch.clearMasks(pattern);
+        }
+    }
+
+    private int singleWord(int m,String text,int maxDistance)
+    {
+        int n = text.length();
+        long last = 1L << (m-1);
+        long vp = -1L, vn = 0L;
+        int dist = m;
+        for (int j=0; j<n; j++) {
+            int off = offsetOf(Character.toLowerCase(text.charAt(j)));
+            long x = (off==-1 ? 0L : maskAt(off, 0)) | vn;
+            long d0 = (((x & vp) + vp) ^ vp) | x;
+            long hp = vn | ~(d0 | vp);
+            long hn = d0 & vp;
+            if ((hp & last)!=0) dist++;
+            else if ((hn & last)!=0) dist--;
+            // the remaining n-j-1 chars can lower the distance by at most one each
+            if (dist-(n-j-1) > maxDistance) return dist-(n-j-1);
+            hp = (hp << 1) | 1L;
+            hn = hn << 1;
+            vp = hn | ~(d0 | hp);
+            vn = hp & d0;
+        }
+        return dist;
+    }
+
+    private int multiWord(int m,String text,int maxDistance)
+    {
+        int n = text.length();
+        int w = words;
+        long last = 1L << ((m-1) & 63);
+        Arrays.fill(vp, 0, w, -1L);
+        Arrays.fill(vn, 0, w, 0L);
+        int dist = m;
+        for (int j=0; j<n; j++) {
+            int off = offsetOf(Character.toLowerCase(text.charAt(j)));
+            long hpCarry = 1L, hnCarry = 0L;
+            for (int b=0; b<w; b++) {
+                long x = (off==-1 ? 0L : maskAt(off, b)) | hnCarry;
+                long vpb = vp[b], vnb = vn[b];
+                long d0 = (((x & vpb) + vpb) ^ vpb) | x | vnb;
+                long hp = vnb | ~(d0 | vpb);
+                long hn = d0 & vpb;
+                long hpIn = hpCarry, hnIn = hnCarry;
+                if (b<w-1) {
+                    hpCarry = hp >>> 63;
+                    hnCarry = hn >>> 63;
+                } else {
+                    hpCarry = (hp & last)!=0 ? 1L : 0L;
+                    hnCarry = (hn & last)!=0 ? 1L : 0L;
+                }
+                hp = (hp << 1) | hpIn;
+                hn = (hn << 1) | hnIn;
+                vp[b] = hn | ~(d0 | hp);
+                vn[b] = hp & d0;
+            }
+            dist += (int)(hpCarry - hnCarry);
+            if (dist-(n-j-1) > maxDistance) return dist-(n-j-1);
+        }
+        return dist;
+    }
+
+    //
+    // match masks: bit i of the mask for c is set iff pattern[i]==c
+    //
+
+    // offsets >= 0 index latinMasks, offsets < -1 encode a slot of
+    // otherMasks, and -1 means c does not occur in the pattern
+    private int offsetOf(char c)
+    {
+        if (c<256) return c*words;
+        int mask = keys.length-1;
+        for (int h=hash(c) & mask; keys[h]!=0; h=(h+1) & mask) {
+            if (keys[h]==c) return -2-h*words;
+        }
+        return -1;
+    }
+
+    private long maskAt(int off,int block)
+    {
+        return off>=0 ? latinMasks[off+block] : otherMasks[-2-off+block];
+    }
+
+    private void buildMasks(String pattern)
+    {
+        int m = pattern.length();
+        words = (m+63) >>> 6;
+        if (latinMasks.length<256*words) latinMasks = new long[256*words];
+        if (vp.length<words) {
+            vp = new long[words];
+            vn = new long[words];
+        }
+        int capacity = keys.length;
+        while (capacity<2*m) capacity *= 2;
+        if (capacity!=keys.length) keys = new char[capacity];
+        if (otherMasks.length<capacity*words) otherMasks = new long[capacity*words];
+        for (int i=0; i<m; i++) {
+            char c = Character.toLowerCase(pattern.charAt(i));
+            long bit = 1L << (i & 63);
+            int block = i >>> 6;
+            if (c<256) {
+                latinMasks[c*words+block] |= bit;
+            } else {
+                int mask = keys.length-1;
+                int h = hash(c) & mask;
+                while (keys[h]!=0 && keys[h]!=c) h = (h+1) & mask;
+                keys[h] = c;
+                otherMasks[h*words+block] |= bit;
+            }
+        }
+    }
+
+    private void clearMasks(String pattern)
+    {
+        boolean sawOther = false;
+        for (int i=0; i<pattern.length(); i++) {
+            char c = Character.toLowerCase(pattern.charAt(i));
+            if (c<256) Arrays.fill(latinMasks, c*words, (c+1)*words, 0L);
+            else sawOther = true;
+        }
+        if (sawOther) {
+            Arrays.fill(keys, (char)0);
+            Arrays.fill(otherMasks, 0L);
+        }
+    }
+
+    private static int hash(char c)
+    {
+        return c * 0x9E3779B1 >>> 16;
+    }
+}
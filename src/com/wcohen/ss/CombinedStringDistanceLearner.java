@@ -308,6 +308,14 @@ public abstract class CombinedStringDistanceLearner implements StringDistanceLea
 			return ms;
 		}
 
+		/** Prepare a wrapper as score() would. */
+		final public StringWrapper prepare(StringWrapper w) 
+		{ 
+			MultiStringWrapper ms = asMultiStringWrapper(w);
+			ms.prepare( innerDistances );
+			return ms;
+		}
+
 		final public double score(StringWrapper s,StringWrapper t) 
 		{
 			MultiStringWrapper ms = asMultiStringWrapper(s);
@@ -319,6 +327,12 @@ public abstract class CombinedStringDistanceLearner implements StringDistanceLea
 			}
 			return doScore(ms,mt);
 		}
+
+		/** Thresholded score, which here is just the full score. */
+		public double score(StringWrapper s,StringWrapper t,double minScore) 
+		{
+			return score(s,t);
+		}
 		
 		final public String explainScore(StringWrapper s, StringWrapper t) { 
 			StringBuffer buf = new StringBuffer();
@@ -20,19 +20,36 @@ public class Jaccard extends AbstractStringDistance
 	public double score(StringWrapper s,StringWrapper t) {
 		BagOfTokens sBag = asBagOfTokens(s);
 		BagOfTokens tBag = asBagOfTokens(t);
-		double numCommon = 0.0; 
-		for (Iterator i = sBag.tokenIterator(); i.hasNext(); ) {
-	    Token tok = (Token)i.next();
-	    if (tBag.contains(tok)) numCommon++;
-		}
+		double numCommon = sBag.numCommon(tBag);
 		return  numCommon / (sBag.size() + tBag.size() - numCommon);
 	}
+
+	/** Thresholded score.  The score is at most the ratio of the
+	 * sizes of the smaller and larger bags, and a score of minScore
+	 * needs at least minScore*(|S|+|T|)/(1+minScore) common tokens,
+	 * so the merge of the bags stops as soon as that many can't be
+	 * found (with a little slack for rounding). */
+	public double score(StringWrapper s,StringWrapper t,double minScore) {
+		if (minScore<=0) return score(s,t);
+		BagOfTokens sBag = asBagOfTokens(s);
+		BagOfTokens tBag = asBagOfTokens(t);
+		int a = sBag.size(), b = tBag.size();
+		double upperBound = Math.min(a,b) / (double)Math.max(a,b);
+		if (upperBound < minScore) return upperBound;
+		double numCommon = sBag.numCommon(tBag, minScore*(a+b)/(1+minScore) - 1e-9);
+		return  numCommon / (a + b - numCommon);
+	}
 	
 	/** Preprocess a string by finding tokens. */ 
 	public StringWrapper prepare(String s) {
 		return new BagOfTokens(s, tokenizer.tokenize(s));
 	}
 	
+	/** Preprocess a wrapper as score() would, by finding tokens. */ 
+	public StringWrapper prepare(StringWrapper w) {
+		return asBagOfTokens(w);
+	}
+	
 	private BagOfTokens asBagOfTokens(StringWrapper w) 
 	{
 		if (w instanceof BagOfTokens) return (BagOfTokens)w;
@@ -1,5 +1,6 @@
 package com.wcohen.ss;
 
+import java.util.Arrays;
 import com.wcohen.ss.api.*;
 
 /**
@@ -16,21 +17,112 @@ public class Jaro extends AbstractStringDistance
 
 	public double score(StringWrapper s,StringWrapper t) 
 	{
-		String str1 = s.unwrap();
-		String str2 = t.unwrap();
+		return jaro(s.unwrap(), t.unwrap(), Double.NEGATIVE_INFINITY);
+	}
+
+	/** Thresholded score, which gives up when the lengths of the
+	 * strings, or the number of common characters, show that the score
+	 * must be less than minScore. */
+	public double score(StringWrapper s,StringWrapper t,double minScore) 
+	{
+		return jaro(s.unwrap(), t.unwrap(), minScore);
+	}
+
+	/** Jaro score of two strings, compared case-sensitively.  The
+	 * common characters and transpositions are found with match flags
+	 * kept per thread, so no objects are created per call.  If the
+	 * score is less than minScore, then an upper bound on the score
+	 * that is less than minScore may be returned instead.
+	 */
+	static double jaro(String str1,String str2,double minScore)
+	{
+		int len1 = str1.length(), len2 = str2.length();
+		if (len1==0 || len2==0) return 0;
+		// at best, every char of the shorter string is common and there are no transpositions
+		double upperBound = upperBound(Math.min(len1,len2),len1,len2);
+		if (upperBound<minScore) return upperBound;
 		int halflen = halfLengthOfShorter(str1,str2);
-		String common1 = commonChars(str1, str2, halflen);
-		String common2 = commonChars(str2, str1, halflen);
-		if (common1.length()!=common2.length()) return 0;
-		if (common1.length()==0 || common2.length()==0) return 0;
-		int transpositions = transpositions(common1,common2);
-		double dist =
-			 ( common1.length()/((double)str1.length()) + 
-				 common2.length()/((double)str2.length()) + 
-				 (common1.length()-transpositions)/((double)common1.length()) ) / 3.0;
-		return dist;
+		Flags flags = FLAGS.get();
+		flags.ensureCapacity(len1,len2);
+		try {
+			// common1 is the chars of str1 that match some char of str2, and vice versa
+			int common1 = markCommonChars(str1, str2, halflen, flags.inCommon1, flags.used2);
+			if (common1==0) return 0;
+			upperBound = upperBound(common1,len1,len2);
+			if (upperBound<minScore) return upperBound;
+			int common2 = markCommonChars(str2, str1, halflen, flags.inCommon2, flags.used1);
+			if (common1!=common2) return 0;
+			if (common1==0 || common2==0) return 0;
+			int transpositions = 0;
+			for (int i=0, j=0, k=0; k<common1; k++, i++, j++) {
+				while (!flags.inCommon1[i]) i++;
+				while (!flags.inCommon2[j]) j++;
+				if (str1.charAt(i)!=str2.charAt(j)) 
+					transpositions++;
+			}
+			transpositions /= 2;
+			double dist =
+				( common1/((double)len1) + 
+					common2/((double)len2) + 
+					(common1-transpositions)/((double)common1) ) / 3.0;
+			return dist;
+		} finally {
+			flags.clear(len1,len2);
+		}
+	}
+
+	// the score if there are numCommon common chars and no transpositions
+	private static double upperBound(int numCommon,int len1,int len2)
+	{
+		return ( numCommon/((double)len1) + numCommon/((double)len2) + 1.0 ) / 3.0;
+	}
+
+	// flag the chars of s that match a not-yet-used char of t within
+	// halflen positions, marking the matched chars of t as used
+	private static int markCommonChars(String s,String t,int halflen,boolean[] inCommon,boolean[] used)
+	{
+		int numCommon = 0;
+		for (int i=0; i<s.length(); i++) {
+			char ch = s.charAt(i);
+			int hi = Math.min(i+halflen+1,t.length());
+			for (int j=Math.max(0,i-halflen); j<hi; j++) {
+				if (!used[j] && t.charAt(j)==ch) {
+					used[j] = true;
+					inCommon[i] = true;
+					numCommon++;
+					break;
+				}
+			}
+		}
+		return numCommon;
 	}
 
+	/** Per-thread scratch space for jaro() */
+	private static class Flags
+	{
+		boolean[] inCommon1 = new boolean[32], used1 = new boolean[32];
+		boolean[] inCommon2 = new boolean[32], used2 = new boolean[32];
+		void ensureCapacity(int len1,int len2) {
+			if (inCommon1.length<len1) {
+				inCommon1 = new boolean[2*len1];
+				used1 = new boolean[2*len1];
+			}
+			if (inCommon2.length<len2) {
+				inCommon2 = new boolean[2*len2];
+				used2 = new boolean[2*len2];
+			}
+		}
+		void clear(int len1,int len2) {
+			Arrays.fill(inCommon1,0,len1,false);
+			Arrays.fill(used1,0,len1,false);
+			Arrays.fill(inCommon2,0,len2,false);
+			Arrays.fill(used2,0,len2,false);
+		}
+	}
+	private static final ThreadLocal<Flags> FLAGS = new ThreadLocal<Flags>() {
+			protected Flags initialValue() { return new Flags(); }
+		};
+
 	public String explainScore(StringWrapper s, StringWrapper t)	
 	{
 		String str1 = s.unwrap();
@@ -51,25 +143,18 @@ public class Jaro extends AbstractStringDistance
 		return explanation + "score: " + score(s,t)+"\n";
 	}
 
-	private int halfLengthOfShorter(String str1,String str2)
+	private static int halfLengthOfShorter(String str1,String str2)
 	{
 		return (str1.length() > str2.length()) ? str2.length()/2 + 1 : str1.length()/2 + 1;
 	}
 
 	private String commonChars(String s,String t,int halflen) 
 	{
+		boolean[] inCommon = new boolean[s.length()];
+		markCommonChars(s, t, halflen, inCommon, new boolean[t.length()]);
 		StringBuffer common = new StringBuffer(); 
-		StringBuffer copy = new StringBuffer(t);
 		for (int i=0; i<s.length(); i++) {
-			char ch = s.charAt(i);
-			boolean foundIt = false;
-			for (int j=Math.max(0,i-halflen); !foundIt && j<Math.min(i+halflen+1,t.length()); j++) {
-				if (copy.charAt(j)==ch) {
-					foundIt = true;
-					common.append(ch);
-					copy.setCharAt(j,'*');
-				}
-			}
+			if (inCommon[i]) common.append(s.charAt(i));
 		}
 		return common.toString();
 	}
@@ -85,6 +170,14 @@ public class Jaro extends AbstractStringDistance
 		return transpositions;
 	}
 
+	/** Lowercase s, once per string rather than once per comparison.
+	 * This is kept out of jaro(), which compares the unwrapped strings
+	 * case-sensitively, as wrappers that weren't made by prepare()
+	 * have always been compared; and prepared wrappers unwrap to the
+	 * lowercased string, which callers such as JaroWinkler rely on.
+	 * String.toLowerCase returns s itself if it is lowercase already,
+	 * so then only the wrapper is made.
+	 */
 	public StringWrapper prepare(String s) 
 	{
 		return new BasicStringWrapper(s.toLowerCase());	
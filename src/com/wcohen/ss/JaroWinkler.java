@@ -1,10 +1,35 @@
 package com.wcohen.ss;
 
+import com.wcohen.ss.api.*;
+
 /**
  * Jaro distance metric, as extended by Winkler.  
  */
 public class JaroWinkler extends WinklerRescorer
 {
 	public JaroWinkler() { super(new Jaro()); }
+
+	/** Same as WinklerRescorer's score, but computed directly from
+	 * the Jaro kernel and the unwrapped strings. */
+	public double score(StringWrapper s,StringWrapper t) 
+	{
+		String str1 = s.unwrap();
+		String str2 = t.unwrap();
+		return rescore(Jaro.jaro(str1,str2,Double.NEGATIVE_INFINITY),str1,str2);
+	}
+
+	/** Thresholded score: Jaro scores below the one that would be
+	 * rescored to minScore, given the common prefix of s and t, are
+	 * abandoned early.  The threshold is lowered a little, so that
+	 * rounding in the rescoring can't lift an abandoned score up to
+	 * minScore. */
+	public double score(StringWrapper s,StringWrapper t,double minScore) 
+	{
+		String str1 = s.unwrap();
+		String str2 = t.unwrap();
+		double p = commonPrefixLength(4,str1,str2)*0.1;
+		return rescore(Jaro.jaro(str1,str2,(minScore-p)/(1-p) - 1e-9),str1,str2);
+	}
+
 	static public void main(String[] argv) {	doMain(new JaroWinkler(), argv);	}
 }
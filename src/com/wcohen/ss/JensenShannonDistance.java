@@ -50,14 +50,19 @@ abstract public class JensenShannonDistance extends AbstractTokenizedStringDista
 	final public StringWrapper prepare(String s) {
 		BagOfTokens bag = new BagOfTokens(s, tokenizer.tokenize(s));
 		double totalWeight = bag.getTotalWeight();
-		for (Iterator i=bag.tokenIterator(); i.hasNext(); ) {
-			Token tok = (Token)i.next();
-			double freq = bag.getWeight(tok);
-			bag.setWeight( tok, smoothedProbability(tok, freq, totalWeight) );
+		for (int k=0; k<bag.size(); k++) {
+			double freq = bag.weightAt(k);
+			bag.setWeightAt( k, smoothedProbability(bag.tokenAt(k), freq, totalWeight) );
 		}
 		return bag;
 	}
 
+	/** Preprocess a wrapper, which score() can only use once it has
+	 * been made into a bag of tokens. */
+	final public StringWrapper prepare(StringWrapper w) {
+		return (w instanceof BagOfTokens) ? w : prepare(w.unwrap());
+	}
+
 	/** Smoothed probability of the token with frequency freq in a bag with the given totalWeight */
 	abstract protected double smoothedProbability(Token tok, double freq, double totalWeight);
 
@@ -75,11 +80,15 @@ abstract public class JensenShannonDistance extends AbstractTokenizedStringDista
 		BagOfTokens sBag = (BagOfTokens)s;
 		BagOfTokens tBag = (BagOfTokens)t;
 		double sum = 0;
-		for (Iterator i = sBag.tokenIterator(); i.hasNext(); ) {
-	    Token tok = (Token)i.next();
-	    if (tBag.contains(tok)) {
-				double ps = sBag.getWeight(tok);
-				double pt = tBag.getWeight(tok);
+		// merge-join over the token indices of the two bags
+		int i = 0, j = 0;
+		while (i<sBag.size() && j<tBag.size()) {
+			int si = sBag.tokenIndexAt(i), tj = tBag.tokenIndexAt(j);
+			if (si<tj) i++;
+			else if (si>tj) j++;
+			else {
+				double ps = sBag.weightAt(i++);
+				double pt = tBag.weightAt(j++);
 				sum -= h(ps + pt) - h(ps) - h(pt);
 			}
 		}
@@ -21,22 +21,48 @@ public class Level2 extends AbstractTokenizedStringDistance
 {
 	private Tokenizer tokenizer;
 	private StringDistance tokenDistance;
+	// scores of token pairs under tokenDistance
+	private TokenSimilarityCache tokenCache = new TokenSimilarityCache(TokenSimilarityCache.DEFAULT_CAPACITY);
 	
 	public Level2(Tokenizer tokenizer,StringDistance tokenDistance) {
 		this.tokenizer = tokenizer;
 		this.tokenDistance = tokenDistance;
 	}
+
+	/** Set the distance used to compare tokens, discarding any cached token-pair scores. */
+	public void setTokenDistance(StringDistance tokenDistance) { 
+		this.tokenDistance = tokenDistance;
+		if (tokenCache!=null) tokenCache.clear();
+	}
+	public StringDistance getTokenDistance() { return tokenDistance; }
+
+	/** Set the number of token-pair scores to cache, or 0 to turn the cache off. */
+	public void setTokenCacheSize(int n) { tokenCache = n>0 ? new TokenSimilarityCache(n) : null; }
+	public void setTokenCacheSize(Double d) { setTokenCacheSize(d.intValue()); }
+	/** The cache of token-pair scores, or null if there is none. */
+	public TokenSimilarityCache getTokenCache() { return tokenCache; }
 	
 	public double score(StringWrapper s,StringWrapper t) {
 		BagOfTokens sBag = asBagOfTokens(s);
 		BagOfTokens tBag = asBagOfTokens(t);
+		TokenSimilarityCache cache = tokenCache;
 		double sumOverI = 0;
-		for (Iterator i = sBag.tokenIterator(); i.hasNext(); ) {
-	    Token tokenI = (Token)i.next();
+		for (int i=0; i<sBag.size(); i++) {
+	    Token tokenI = sBag.tokenAt(i);
 			double maxOverJ = -Double.MAX_VALUE;
-			for (Iterator j = tBag.tokenIterator(); j.hasNext(); ) {
-				Token tokenJ = (Token)j.next();
-				double scoreItoJ = tokenDistance.score( tokenI.getValue(), tokenJ.getValue() );
+			for (int j=0; j<tBag.size(); j++) {
+				Token tokenJ = tBag.tokenAt(j);
+				double scoreItoJ;
+				if (cache==null) {
+					scoreItoJ = tokenDistance.score( tokenI.getValue(), tokenJ.getValue() );
+				} else {
+					long key = TokenSimilarityCache.key(tokenI,tokenJ);
+					scoreItoJ = cache.get(key);
+					if (Double.isNaN(scoreItoJ)) {
+						scoreItoJ = tokenDistance.score( tokenI.getValue(), tokenJ.getValue() );
+						cache.put(key,scoreItoJ);
+					}
+				}
 				maxOverJ = Math.max( maxOverJ, scoreItoJ);
 			}
 			sumOverI += maxOverJ;
@@ -5,14 +5,54 @@ import com.wcohen.ss.api.*;
 /**
  * Levenstein string distance. Levenstein distance is basically
  * NeedlemanWunsch with unit costs for all operations.
+ *
+ * <p>Scores are computed with a bit-parallel algorithm rather than
+ * the NeedlemanWunsch matrix, which is only used for explanations.
+ * Optionally, a maximum distance can be set: pairs of strings that
+ * are further apart than that are all given the score
+ * -(maxDistance+1), which is usually much faster to compute.
  */
 
 public class Levenstein extends NeedlemanWunsch
 {
+	private int maxDistance = Integer.MAX_VALUE;
+
 	public Levenstein() {
 		super(CharMatchScore.DIST_01, 1.0 );
 	}
-	public String toString() { return "[Levenstein]"; }
+	public Levenstein(int maxDistance) {
+		this();
+		setMaxDistance(maxDistance);
+	}
+
+	/** Strings further apart than d edits all get the score -(d+1). */
+	public void setMaxDistance(int d) { maxDistance = d<0 ? Integer.MAX_VALUE : d; }
+	/** For interfacing with reflection in MatchExptScript. */
+	public void setMaxDistance(Double d) { setMaxDistance(d.intValue()); }
+	public int getMaxDistance() { return maxDistance; }
+
+	public double score(StringWrapper s,StringWrapper t) {
+		return levensteinScore(s, t, maxDistance);
+	}
+
+	/** Thresholded score.  Since the score is -distance, a score of
+	 * minScore or more means at most -minScore edits, so the
+	 * computation is bounded by that many edits as well as by
+	 * maxDistance. */
+	public double score(StringWrapper s,StringWrapper t,double minScore) {
+		if (-minScore >= maxDistance) return levensteinScore(s, t, maxDistance);
+		else if (-minScore < 0) return 0;
+		else return levensteinScore(s, t, (int)Math.floor(-minScore));
+	}
+
+	private double levensteinScore(StringWrapper s,StringWrapper t,int bound) {
+		int d = BitParallelLevenstein.distance(s.unwrap(), t.unwrap(), bound);
+		return -Math.min(d, maxDistance==Integer.MAX_VALUE ? d : maxDistance+1);
+	}
+
+	public String toString() {
+		return maxDistance==Integer.MAX_VALUE ? "[Levenstein]" : "[Levenstein max="+maxDistance+"]";
+	}
 
 	static public void main(String[] argv) {
 		doMain(new Levenstein(), argv);
@@ -36,6 +36,12 @@ public abstract class MultiStringDistance implements StringDistance
 		return scoreCombination( multiScore(ms,mt) );
 	}
 
+	/** Thresholded score, which here is just the full score. */
+	public double score(StringWrapper s,StringWrapper t,double minScore) 
+	{
+		return score(s,t);
+	}
+
 	/** Combine the scores for each primitive distance function on each field. */
 	abstract protected double scoreCombination(double[] multiScore);
 
@@ -100,6 +106,12 @@ public abstract class MultiStringDistance implements StringDistance
 		return ms;
 	}
 
+	/** Prepare a wrapper as score() would, with asMultiStringWrapper().
+	 */
+	public StringWrapper prepare(StringWrapper w) {
+		return asMultiStringWrapper(w);
+	}
+
 	/** Lazily prepare a string. Ie, if it's already a
 	 * MultiStringWrapper, do nothing, otherwise use prepare() to
 	 * convert to a MultiStringWrapper.
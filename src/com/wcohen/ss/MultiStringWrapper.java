@@ -15,7 +15,9 @@ public class MultiStringWrapper extends BasicStringWrapper
 	private String s;
 	private StringWrapper[] f;
 	private int[] learnerIndex, fieldIndex;
-	private boolean fieldsPrepared;
+	// the distances the fields were last prepared with, if they
+	// haven't been changed since
+	private StringDistance[] fieldsPrepared;
 
 	/** Create a MultiStringWrapper by splitting s into
 	 * fields based on the given delimiter. 
@@ -43,7 +45,7 @@ public class MultiStringWrapper extends BasicStringWrapper
 				fieldIndex[k] = i;
 			}
 		}
-		fieldsPrepared = false;
+		fieldsPrepared = null;
 	}
 
 	/** Return number of fields. */
@@ -59,15 +61,17 @@ public class MultiStringWrapper extends BasicStringWrapper
 	public StringWrapper get(int i) { return f[i]; }
 	
 	/** Set the i-th field. */
-	public void set(int i, StringWrapper w) { f[i] = w; }
+	public synchronized void set(int i, StringWrapper w) { f[i] = w; fieldsPrepared = null; }
 
-	/** Prepare each field with the appropriate distance */
-	public void prepare(StringDistance[] innerDistances) {
-		if (!fieldsPrepared) {
+	/** Prepare each field with the appropriate distance, unless they
+	 * have already been prepared with these distances. */
+	public synchronized void prepare(StringDistance[] innerDistances) {
+		if (fieldsPrepared!=innerDistances) {
 			for (int i=0; i<size(); i++) {
 				StringDistance d = innerDistances[ getDistanceLearnerIndex(i) ];
-				set( i, d.prepare( get(i).unwrap() ) );
+				f[i] = d.prepare( get(i).unwrap() );
 			}
+			fieldsPrepared = innerDistances;
 		}
 	}
 
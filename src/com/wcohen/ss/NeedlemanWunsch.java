@@ -19,9 +19,25 @@ public class NeedlemanWunsch extends AbstractStringDistance
         this.gapCost = gapCost;
     }
 	
+    /** Computes the same value as the MemoMatrix used by explainScore,
+     * but iteratively, keeping only two rows of the matrix. */
     public double score(StringWrapper s,StringWrapper t) {
-        MyMatrix mat = new MyMatrix( s, t );
-        return mat.get(s.length(), t.length() );
+        String sStr = s.unwrap(), tStr = t.unwrap();
+        int n = sStr.length(), m = tStr.length();
+        double[][] rows = RollingMatrix.rows(2, m+1);
+        double[] prev = rows[0], cur = rows[1];
+        for (int j=0; j<=m; j++) prev[j] = -j*gapCost;
+        for (int i=1; i<=n; i++) {
+            char si = sStr.charAt(i-1);
+            cur[0] = -i*gapCost;
+            for (int j=1; j<=m; j++) {
+                cur[j] = MemoMatrix.max3( prev[j-1] + charMatchScore.matchScore( si, tStr.charAt(j-1) ),
+                                          prev[j] - gapCost,
+                                          cur[j-1] - gapCost);
+            }
+            double[] tmp = prev; prev = cur; cur = tmp;
+        }
+        return prev[m];
     }
 	
     public String explainScore(StringWrapper s,StringWrapper t) {
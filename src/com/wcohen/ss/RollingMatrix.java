@@ -0,0 +1,49 @@
+package com.wcohen.ss;
+
+/**
+ * Row buffers for computing the dynamic programs defined by the
+ * MemoMatrix subclasses iteratively, when only the final score is
+ * needed.
+ *
+ * <p>A MemoMatrix stores all (|s|+1)*(|t|+1) cells and fills them by
+ * recursion through get(i,j).  But the edit-distance recurrences only
+ * look back one row, so a score can be computed in a left-to-right,
+ * top-to-bottom sweep that keeps just the previous row and the current
+ * one (or two rows for each matrix, for affine gaps).  The rows are
+ * reused from call to call, one set per thread, so scoring does no
+ * allocation once the buffers have grown to the longest string seen.
+ */
+
+final class RollingMatrix
+{
+    private static final int INITIAL_LENGTH = 64;
+
+    private static final ThreadLocal<RollingMatrix> BUFFERS = new ThreadLocal<RollingMatrix>() {
+            protected RollingMatrix initialValue() { return new RollingMatrix(); }
+        };
+
+    private double[][] rows = new double[0][];
+
+    private RollingMatrix() {}
+
+    /** Return numRows rows, each of length at least length, that
+     * belong to the calling thread.  The contents of the rows are
+     * undefined, and they are only valid until the next call to
+     * rows() from the same thread.
+     */
+    static double[][] rows(int numRows,int length)
+    {
+        RollingMatrix buf = BUFFERS.get();
+        if (buf.rows.length<numRows) {
+            double[][] newRows = new double[numRows][];
+            System.arraycopy(buf.rows,0,newRows,0,buf.rows.length);
+            buf.rows = newRows;
+        }
+        for (int k=0; k<numRows; k++) {
+            if (buf.rows[k]==null || buf.rows[k].length<length) {
+                buf.rows[k] = new double[Math.max(length, INITIAL_LENGTH)];
+            }
+        }
+        return buf.rows;
+    }
+}
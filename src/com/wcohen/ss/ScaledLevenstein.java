@@ -9,12 +9,27 @@ import com.wcohen.ss.api.*;
 
 public class ScaledLevenstein extends Levenstein
 {
+	public ScaledLevenstein() { super(); }
+
+	/** Strings further apart than maxDistance edits all get the
+	 * scaled score of a distance of maxDistance+1. */
+	public ScaledLevenstein(int maxDistance) { super(maxDistance); }
 	
 	public double score(StringWrapper s,StringWrapper t){
 		double d = super.score(s,t);
 		double n = Math.max((double)s.length(),(double)t.length());
 		return (1 + (d/n));
 	}
+
+	/** Thresholded score: a scaled score of minScore or more allows
+	 * at most (1-minScore)*n edits, where n is the length of the
+	 * longer string. */
+	public double score(StringWrapper s,StringWrapper t,double minScore){
+		double n = Math.max((double)s.length(),(double)t.length());
+		// loosen the bound slightly, to allow for rounding
+		double d = super.score(s,t,(minScore-1)*n - 1e-9);
+		return (1 + (d/n));
+	}
 	
 	public String toString() { return "[ScaledLevenstein]"; }
 
@@ -20,9 +20,29 @@ public class SmithWaterman extends AbstractStringDistance
 		this.gapCost = gapCost;
 	}
 	
+	/** Computes the same value as the MemoMatrix used by explainScore,
+	 * but iteratively, keeping only two rows of the matrix. */
 	public double score(StringWrapper s,StringWrapper t) {
-		MyMatrix mat = new MyMatrix( s, t );
-		return score(s,t,mat);
+		String sStr = s.unwrap(), tStr = t.unwrap();
+		int n = sStr.length(), m = tStr.length();
+		double[][] rows = RollingMatrix.rows(2, m+1);
+		double[] prev = rows[0], cur = rows[1];
+		// the first row and column are all zero
+		double best = 0;
+		for (int j=0; j<=m; j++) prev[j] = 0;
+		for (int i=1; i<=n; i++) {
+			char si = sStr.charAt(i-1);
+			cur[0] = 0;
+			for (int j=1; j<=m; j++) {
+				cur[j] = MemoMatrix.max4( 0,
+																	prev[j-1] + charMatchScore.matchScore( si, tStr.charAt(j-1) ),
+																	prev[j] - gapCost,
+																	cur[j-1] - gapCost);
+				best = Math.max( best, cur[j] );
+			}
+			double[] tmp = prev; prev = cur; cur = tmp;
+		}
+		return best;
 	}
 	
 	private double score(StringWrapper s,StringWrapper t,MyMatrix mat) {
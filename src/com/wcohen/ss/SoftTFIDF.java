@@ -25,6 +25,8 @@ public class SoftTFIDF extends TFIDF {
     private double tokenMatchThreshold;
     // default token distance
     private static final StringDistance DEFAULT_TOKEN_DISTANCE = new JaroWinkler();
+    // scores of token pairs under tokenDistance, thresholded at tokenMatchThreshold
+    private TokenSimilarityCache tokenCache = new TokenSimilarityCache(TokenSimilarityCache.DEFAULT_CAPACITY);
 
     public SoftTFIDF(Tokenizer tokenizer, StringDistance tokenDistance, double tokenMatchThreshold) {
         super(tokenizer);
@@ -48,16 +50,35 @@ public class SoftTFIDF extends TFIDF {
 
     public void setTokenMatchThreshold(double d) {
         tokenMatchThreshold = d;
+        if (tokenCache != null) tokenCache.clear();
     }
 
     public void setTokenMatchThreshold(Double d) {
-        tokenMatchThreshold = d.doubleValue();
+        setTokenMatchThreshold(d.doubleValue());
     }
 
     public double getTokenMatchThreshold() {
         return tokenMatchThreshold;
     }
 
+    /**
+     * Set the number of token-pair scores to cache, or 0 to turn the cache off.
+     */
+    public void setTokenCacheSize(int n) {
+        tokenCache = n > 0 ? new TokenSimilarityCache(n) : null;
+    }
+
+    public void setTokenCacheSize(Double d) {
+        setTokenCacheSize(d.intValue());
+    }
+
+    /**
+     * The cache of token-pair scores, which keeps hit statistics, or null if there is none.
+     */
+    public TokenSimilarityCache getTokenCache() {
+        return tokenCache;
+    }
+
     private class Similarity implements Comparable<Similarity> {
         int r1;
         int r2;
@@ -84,15 +105,28 @@ public class SoftTFIDF extends TFIDF {
         UnitVector tBag = asUnitVector(t);
         List<Similarity> similarities = new ArrayList<Similarity>(sBag.size());
         double sim = 0.0;
-        int i = 0;
-        for (Iterator<Token> ti = sBag.tokenIterator(); ti.hasNext(); i++) {
-            Token tok = ti.next();
-            int j = 0;
-            for (Iterator<Token> tj = tBag.tokenIterator(); tj.hasNext(); j++) {
-                Token tokJ = tj.next();
-                double distItoJ = tokenDistance.score(tok.getValue(), tokJ.getValue());
+        TokenSimilarityCache cache = tokenCache;
+        // prepare each token at most once, and let the token distance give up
+        // early on pairs that can't reach the threshold
+        StringWrapper[] tToks = new StringWrapper[tBag.size()];
+        for (int i = 0; i < sBag.size(); i++) {
+            Token tokI = sBag.tokenAt(i);
+            StringWrapper sTok = null;
+            for (int j = 0; j < tToks.length; j++) {
+                long key = 0;
+                double distItoJ = Double.NaN;
+                if (cache != null) {
+                    key = TokenSimilarityCache.key(tokI, tBag.tokenAt(j));
+                    distItoJ = cache.get(key);
+                }
+                if (Double.isNaN(distItoJ)) {
+                    if (sTok == null) sTok = tokenDistance.prepare(tokI.getValue());
+                    if (tToks[j] == null) tToks[j] = tokenDistance.prepare(tBag.tokenAt(j).getValue());
+                    distItoJ = tokenDistance.score(sTok, tToks[j], tokenMatchThreshold);
+                    if (cache != null) cache.put(key, distItoJ);
+                }
                 if (distItoJ >= tokenMatchThreshold) {
-                    similarities.add(new Similarity(i, j, distItoJ * sBag.getWeight(tok) * tBag.getWeight(tokJ)));
+                    similarities.add(new Similarity(i, j, distItoJ * sBag.weightAt(i) * tBag.weightAt(j)));
                 }
             }
 
@@ -121,6 +155,13 @@ public class SoftTFIDF extends TFIDF {
         return sim;
     }
 
+    /**
+     * Thresholded score, which here is just the full score: the bound used by TFIDF doesn't hold for soft matches.
+     */
+    public double score(StringWrapper s, StringWrapper t, double minScore) {
+        return score(s, t);
+    }
+
     /**
      * Explain how the distance was computed. In the output, the tokens in S and T are listed, and the common tokens are
      * marked with an asterisk.
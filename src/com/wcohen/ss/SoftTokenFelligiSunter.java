@@ -20,6 +20,8 @@ public class SoftTokenFelligiSunter extends AbstractStatisticalTokenDistance
 	private double tokenMatchThreshold;
 	// default token distance
 	private static final StringDistance DEFAULT_TOKEN_DISTANCE = new JaroWinkler();
+	// scores of token pairs under tokenDistance, thresholded at tokenMatchThreshold
+	private TokenSimilarityCache tokenCache = new TokenSimilarityCache(TokenSimilarityCache.DEFAULT_CAPACITY);
 	
 	public SoftTokenFelligiSunter(Tokenizer tokenizer,StringDistance tokenDistance,
 																double tokenMatchThreshold,double mismatchFactor) 
@@ -34,12 +36,20 @@ public class SoftTokenFelligiSunter extends AbstractStatisticalTokenDistance
 	}
 	public void setMismatchFactor(double d) { mismatchFactor=d; }
 	public void setMismatchFactor(Double d) { mismatchFactor=d.doubleValue(); }
-	public void setTokenMatchThreshold(double d) { tokenMatchThreshold=d; }
-	public void setTokenMatchThreshold(Double d) { tokenMatchThreshold=d.doubleValue(); }	
+	public void setTokenMatchThreshold(double d) { 
+		tokenMatchThreshold=d; 
+		if (tokenCache!=null) tokenCache.clear();
+	}
+	public void setTokenMatchThreshold(Double d) { setTokenMatchThreshold(d.doubleValue()); }	
+	/** Set the number of token-pair scores to cache, or 0 to turn the cache off. */
+	public void setTokenCacheSize(int n) { tokenCache = n>0 ? new TokenSimilarityCache(n) : null; }
+	public void setTokenCacheSize(Double d) { setTokenCacheSize(d.intValue()); }
+	/** The cache of token-pair scores, or null if there is none. */
+	public TokenSimilarityCache getTokenCache() { return tokenCache; }
 
 	public double score(StringWrapper s,StringWrapper t) 
 	{
-		computeTokenDistances();
+		if (!tokenDistancesComputed) computeTokenDistances();
 
 		BagOfTokens sBag = (BagOfTokens)s;
 		BagOfTokens tBag = (BagOfTokens)t;
@@ -55,7 +65,7 @@ public class SoftTokenFelligiSunter extends AbstractStatisticalTokenDistance
 				double matchScore = tokenMatchThreshold;
 				for (Iterator j=tBag.tokenIterator(); j.hasNext(); ) {
 					Token tokJ = (Token)j.next();
-					double distItoJ = tokenDistance.score( tok.getValue(), tokJ.getValue() );
+					double distItoJ = tokenScore( tok, tokJ );
 					if (distItoJ>=matchScore) {
 						matchTok = tokJ;
 						matchScore = distItoJ;
@@ -74,12 +84,34 @@ public class SoftTokenFelligiSunter extends AbstractStatisticalTokenDistance
 		return sim;
 	}
 	
+	// score of tok compared to tokJ, exact if it is at least
+	// tokenMatchThreshold, which is all that score() needs
+	private double tokenScore(Token tok,Token tokJ)
+	{
+		TokenSimilarityCache cache = tokenCache;
+		if (cache==null) return tokenDistance.score( tokenDistance.prepare(tok.getValue()), tokenDistance.prepare(tokJ.getValue()), tokenMatchThreshold );
+		long key = TokenSimilarityCache.key(tok,tokJ);
+		double d = cache.get(key);
+		if (Double.isNaN(d)) {
+			d = tokenDistance.score( tokenDistance.prepare(tok.getValue()), tokenDistance.prepare(tokJ.getValue()), tokenMatchThreshold );
+			cache.put(key,d);
+		}
+		return d;
+	}
+	
 	/** Preprocess a string by finding tokens */ 
 	public StringWrapper prepare(String s) 
 	{
 		return new BagOfTokens(s, tokenizer.tokenize(s));
 	}
 	
+	/** Preprocess a wrapper, which score() can only use once it has
+	 * been made into a bag of tokens. */
+	public StringWrapper prepare(StringWrapper w) 
+	{
+		return (w instanceof BagOfTokens) ? w : prepare(w.unwrap());
+	}
+	
 	/** Explain how the distance was computed. 
 	 * In the output, the tokens in S and T are listed, and the
 	 * common tokens are marked with an asterisk.
@@ -106,10 +138,11 @@ public class SoftTokenFelligiSunter extends AbstractStatisticalTokenDistance
 	//
 	// compute pairwise distance between all tokens
 	//
-	private boolean tokenDistancesComputed = false;
+	private volatile boolean tokenDistancesComputed = false;
 	private Map neighborMap;
 
-	private void computeTokenDistances() 
+	// synchronized, since the first calls to score() may come from several threads
+	private synchronized void computeTokenDistances() 
 	{
 		if (tokenDistancesComputed) return;
 		// use blocker to compute pairwise distances between similar tokens
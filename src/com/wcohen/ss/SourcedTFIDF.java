@@ -10,7 +10,8 @@ import com.wcohen.ss.api.*;
 
 public class SourcedTFIDF extends AbstractSourcedStatisticalTokenDistance
 {
-    private UnitVector lastVector = null;
+    // the vector for the last string prepare()-ed by each thread
+    private final ThreadLocal<UnitVector> lastVector = new ThreadLocal<UnitVector>();
 
     public SourcedTFIDF(SourcedTokenizer tokenizer) { super(tokenizer);	}
     public SourcedTFIDF() { super(); }
@@ -41,22 +42,33 @@ public class SourcedTFIDF extends AbstractSourcedStatisticalTokenDistance
         else return new UnitVector(w.unwrap(),tokenizer.sourcedTokenize(w.unwrap(),w.getSource()));
     }
 
+    /** Preprocess a wrapper by finding tokens and giving them TFIDF
+     * weights, using its source if it has one */ 
+    public StringWrapper prepare(StringWrapper w) {
+        if (!(w instanceof SourcedStringWrapper)) return prepare(w.unwrap());
+        UnitVector v = asUnitVector((SourcedStringWrapper)w);
+        lastVector.set(v);
+        return v;
+    }
+
     /** Preprocess a string by finding tokens and giving them TFIDF weights */ 
     public StringWrapper prepare(String s) {
         System.out.println("unknown source for "+s);
-        lastVector = new UnitVector(s, tokenizer.sourcedTokenize(s, "*UNKNOWN SOURCE*"));
-        return lastVector;
+        UnitVector v = new UnitVector(s, tokenizer.sourcedTokenize(s, "*UNKNOWN SOURCE*"));
+        lastVector.set(v);
+        return v;
     }
 	
     //
     // some special methods added mostly for SoftTFIDFDictionary
     //
 
-    /** Access the tokens of the last prepare()-ed string. */
-    public Token[] getTokens() { return lastVector.getTokens(); }
+    /** Access the tokens of the last string prepare()-ed by the calling thread. */
+    public Token[] getTokens() { return lastVector.get().getTokens(); }
 
-    /** Access the weight of a token in the vector created for the last prepare()-ed string. */
-    public double getWeight(Token token) { return lastVector.getWeight(token); }
+    /** Access the weight of a token in the vector created for the
+     * last string prepare()-ed by the calling thread. */
+    public double getWeight(Token token) { return lastVector.get().getWeight(token); }
 
     /** Get the document frequency of the token. */
     public int getDocumentFrequency(Token token) 
@@ -10,21 +10,48 @@ import com.wcohen.ss.api.*;
 
 public class TFIDF extends AbstractStatisticalTokenDistance
 {
-    private UnitVector lastVector = null;
+    // the vector for the last string prepare()-ed by each thread
+    private final ThreadLocal<UnitVector> lastVector = new ThreadLocal<UnitVector>();
 
     public TFIDF(Tokenizer tokenizer) { super(tokenizer);	}
     public TFIDF() { super(); }
 
     public double score(StringWrapper s,StringWrapper t) {
+        checkTrainingHasHappened(s,t);
+        UnitVector sBag = asUnitVector(s);
+        UnitVector tBag = asUnitVector(t);
+        return sBag.dotProduct(tBag);
+    }
+
+    /** Thresholded score.  Both weight vectors have unit length, so
+     * the tokens that the merge has not reached yet can add at most
+     * the product of the norms of their weights.  Once that can't
+     * bring the score up to minScore, the merge stops. */
+    public double score(StringWrapper s,StringWrapper t,double minScore) {
         checkTrainingHasHappened(s,t);
         UnitVector sBag = asUnitVector(s);
         UnitVector tBag = asUnitVector(t);
         double sim = 0.0;
-        for (Iterator i = sBag.tokenIterator(); i.hasNext(); ) {
-	    Token tok = (Token)i.next();
-	    if (tBag.contains(tok)) {
-                sim += sBag.getWeight(tok) * tBag.getWeight(tok);
+        // squared norms of the weights not yet reached
+        double sRest = 1.0, tRest = 1.0;
+        int i = 0, j = 0;
+        while (i<sBag.size() && j<tBag.size()) {
+            int si = sBag.tokenIndexAt(i), tj = tBag.tokenIndexAt(j);
+            if (si<tj) {
+                double ws = sBag.weightAt(i++);
+                sRest -= ws*ws;
+            } else if (si>tj) {
+                double wt = tBag.weightAt(j++);
+                tRest -= wt*wt;
+            } else {
+                double ws = sBag.weightAt(i++);
+                double wt = tBag.weightAt(j++);
+                sim += ws * wt;
+                sRest -= ws*ws;
+                tRest -= wt*wt;
             }
+            // allow a little slack for rounding in the norms
+            if (sim + Math.sqrt(Math.max(0,sRest) * Math.max(0,tRest)) < minScore - 1e-9) return sim;
         }
         return sim;
     }
@@ -37,19 +64,36 @@ public class TFIDF extends AbstractStatisticalTokenDistance
 
     /** Preprocess a string by finding tokens and giving them TFIDF weights */ 
     public StringWrapper prepare(String s) {
-        lastVector = new UnitVector(s, tokenizer.tokenize(s));
-        return lastVector;
+        UnitVector v = new UnitVector(s, tokenizer.tokenize(s));
+        lastVector.set(v);
+        return v;
+    }
+
+    /** Preprocess a wrapper as score() would, by finding tokens and
+     * giving them TFIDF weights */ 
+    public StringWrapper prepare(StringWrapper w) {
+        UnitVector v = asUnitVector(w);
+        lastVector.set(v);
+        return v;
     }
 	
     //
     // some special methods added mostly for SoftTFIDFDictionary
     //
 
-    /** Access the tokens of the last prepare()-ed string. */
-    public Token[] getTokens() { return lastVector.getTokens(); }
+    /** Access the tokens of the last string prepare()-ed by the calling thread. */
+    public Token[] getTokens() { return lastVector.get().getTokens(); }
+
+    /** Access the weight of a token in the vector created for the
+     * last string prepare()-ed by the calling thread. */
+    public double getWeight(Token token) { return lastVector.get().getWeight(token); }
+
+    /** Access the tokens of a string, which need not have been prepare()-ed. */
+    public Token[] getTokens(StringWrapper w) { return asUnitVector(w).getTokens(); }
 
-    /** Access the weight of a token in the vector created for the last prepare()-ed string. */
-    public double getWeight(Token token) { return lastVector.getWeight(token); }
+    /** Access the weight of a token in the vector for a string,
+     * which need not have been prepare()-ed. */
+    public double getWeight(StringWrapper w,Token token) { return asUnitVector(w).getWeight(token); }
 
     /** Get the document frequency of the token. */
     public int getDocumentFrequency(Token token) 
@@ -106,24 +150,22 @@ public class TFIDF extends AbstractStatisticalTokenDistance
         /** convert term frequency weights to unit-length TFIDF weights */
         private void termFreq2TFIDF() {
             double normalizer = 0.0;
-            for (Iterator i=tokenIterator(); i.hasNext(); ) {
-                Token tok = (Token)i.next();
+            for (int k=0; k<size(); k++) {
                 if (collectionSize>0) {
-                    Integer dfInteger = (Integer)documentFrequency.get(tok);
+                    Integer dfInteger = (Integer)documentFrequency.get(tokenAt(k));
                     // set previously unknown words to df==1, which gives them a high value
                     double df = dfInteger==null ? 1.0 : dfInteger.intValue();
-                    double w = Math.log( getWeight(tok) + 1) * Math.log( collectionSize/df );
-                    setWeight( tok, w );
+                    double w = Math.log( weightAt(k) + 1) * Math.log( collectionSize/df );
+                    setWeightAt( k, w );
                     normalizer += w*w;
                 } else {
-                    setWeight( tok, 1.0 );
+                    setWeightAt( k, 1.0 );
                     normalizer += 1.0;
                 }
             }
             normalizer = Math.sqrt(normalizer);
-            for (Iterator i=tokenIterator(); i.hasNext(); ) {
-                Token tok = (Token)i.next();
-                setWeight( tok, getWeight(tok)/normalizer );
+            for (int k=0; k<size(); k++) {
+                setWeightAt( k, weightAt(k)/normalizer );
             }
         }
     }
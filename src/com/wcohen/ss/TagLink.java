@@ -145,6 +145,12 @@ public class TagLink
 		return new UnitVector(s, tokenizer.tokenize(s));
 	}
 
+	/** Preprocess a wrapper as score() would, by finding tokens and
+	 * giving them TFIDF weights */
+	public StringWrapper prepare(StringWrapper w) {
+		return asUnitVector(w);
+	}
+
 	/** Marker class extending BagOfTokens */
 	protected class UnitVector extends BagOfTokens
 	{
@@ -159,24 +165,22 @@ public class TagLink
 		/** convert term frequency weights to unit-length TFIDF weights */
 		private void termFreq2TFIDF() {
 			double normalizer = 0.0;
-			for (Iterator i=tokenIterator(); i.hasNext(); ) {
-				Token tok = (Token)i.next();
+			for (int k=0; k<size(); k++) {
 				if (collectionSize>0) {
-					Integer dfInteger = (Integer)documentFrequency.get(tok);
+					Integer dfInteger = (Integer)documentFrequency.get(tokenAt(k));
 					// set previously unknown words to df==1, which gives them a high value
 					double df = dfInteger==null ? 1.0 : dfInteger.intValue();
-					double w = Math.log( getWeight(tok) + 1) * Math.log( collectionSize/df );
-					setWeight( tok, w );
+					double w = Math.log( weightAt(k) + 1) * Math.log( collectionSize/df );
+					setWeightAt( k, w );
 					normalizer += w*w;
 				} else {
-					setWeight( tok, 1.0 );
+					setWeightAt( k, 1.0 );
 					normalizer += 1.0;
 				}
 			}
 			normalizer = Math.sqrt(normalizer);
-			for (Iterator i=tokenIterator(); i.hasNext(); ) {
-				Token tok = (Token)i.next();
-				setWeight( tok, getWeight(tok)/normalizer );
+			for (int k=0; k<size(); k++) {
+				setWeightAt( k, weightAt(k)/normalizer );
 			}
 		}
 	}
@@ -190,12 +194,8 @@ public class TagLink
    */
   private double[] getIDFArray(BagOfTokens bag) {
     double[] idfArray = new double[bag.size()];
-    Iterator it = bag.tokenIterator();
-    int i = 0;
-    while (it.hasNext()) {
-      Token tok = (Token) it.next();
-      idfArray[i] = bag.getWeight(tok);
-      i++;
+    for (int i = 0; i < idfArray.length; i++) {
+      idfArray[i] = bag.weightAt(i);
     }
     return idfArray;
   }
@@ -236,12 +236,8 @@ public class TagLink
 
   private String[] getTokenArray(BagOfTokens bag) {
     String[] stringArray = new String[bag.size()];
-    Iterator it = bag.tokenIterator();
-    int i = 0;
-    while (it.hasNext()) {
-      Token tok = (Token) it.next();
-      stringArray[i] = tok.getValue();
-      i++;
+    for (int i = 0; i < stringArray.length; i++) {
+      stringArray[i] = bag.tokenAt(i).getValue();
     }
     return stringArray;
   }
@@ -259,6 +255,7 @@ public class TagLink
     BagOfTokens tBag = (BagOfTokens) t;
 
     StringBuffer buff = new StringBuffer();
+    double[] matched = new double[1];
     buff.append("\n\t*****TagLink String Distance*****");
     if (s.unwrap().equals(t.unwrap())) {
       buff.append("\nScore(S,T)=1.0\n");
@@ -305,15 +302,14 @@ public class TagLink
           }
           else {
             String tTok = sTokens[i], uTok = tTokens[j];
-            double innerScore = tokenDistance.score(tTok,
-                uTok);
+            double innerScore = scoreTokens(tTok, uTok, matched);
             if (innerScore >= 0.0) {
               double MR = 0.0;
               if (innerScore == 1.0) {
                 MR = sTokens[i].length();
               }
               else {
-                MR = ( (TagLinkToken) tokenDistance).getMatched();
+                MR = matched[0];
               }
               MR = MR / minStringSize;
               double IDF = tIdfArray[i] * uIdfArray[j],
@@ -374,6 +370,7 @@ public class TagLink
                                         double[] tIdfArray, double[] uIdfArray) {
     ArrayList candidateList = new ArrayList();
     double minStringSize = getMinStringSize(tTokens, uTokens);
+    double[] matchedCount = new double[1];
     for (int t = 0; t < tTokens.length; t++) {
       int lastTr = -1;
       for (int u = 0, flag = 0; u < uTokens.length && flag == 0; u++) {
@@ -383,15 +380,14 @@ public class TagLink
         }
         else {
           String tTok = tTokens[t], uTok = uTokens[u];
-          double innerScore = tokenDistance.score(tTok,
-              uTok);
+          double innerScore = scoreTokens(tTok, uTok, matchedCount);
           if (innerScore >= 0.0) {
             double matched = 0.0;
             if (innerScore == 1.0) {
               matched = tTokens[t].length();
             }
             else {
-              matched = ( (TagLinkToken) tokenDistance).getMatched();
+              matched = matchedCount[0];
             }
             double weightMatched = matched / minStringSize,
                 weightTFIDF = tIdfArray[t] * uIdfArray[u],
@@ -407,6 +403,23 @@ public class TagLink
     return candidateList;
   }
 
+  /**
+   * scoreTokens return the tokenDistance score of a pair of tokens. If the
+   * tokenDistance is a TagLinkToken, the number of matched characters is
+   * put in matched[0].
+   *
+   * @param tTok String
+   * @param uTok String
+   * @param matched double[]
+   * @return double
+   */
+  private double scoreTokens(String tTok, String uTok, double[] matched) {
+    if (tokenDistance instanceof TagLinkToken) {
+      return ( (TagLinkToken) tokenDistance).score(tTok, uTok, matched);
+    }
+    return tokenDistance.score(tTok, uTok);
+  }
+
   /**
    * sortCandidateList sort a list of candidate pair of tokens.
    *
@@ -68,6 +68,12 @@ public class TokenFelligiSunter extends AbstractStatisticalTokenDistance
 		return bag;
 	}
 	
+	/** Preprocess a wrapper, which score() can only use once it has
+	 * been made into a bag of tokens. */
+	public StringWrapper prepare(StringWrapper w) {
+		return (w instanceof BagOfTokens) ? w : prepare(w.unwrap());
+	}
+	
 	/** Explain how the distance was computed. 
 	 * In the output, the tokens in S and T are listed, and the
 	 * common tokens are marked with an asterisk.
@@ -0,0 +1,340 @@
+package com.wcohen.ss;
+
+import com.wcohen.ss.api.*;
+
+/**
+ * A bounded cache of similarity scores between pairs of tokens.
+ *
+ * <p>Soft token metrics like SoftTFIDF and Level2 compare every token
+ * of one string to every token of the other with an inner 'token
+ * distance', but the vocabulary is usually far smaller than the set
+ * of string pairs, so the same token pairs are scored over and over.
+ * This cache remembers those scores.  It is keyed by the pair of
+ * token indices, packed into a primitive long, so a lookup does no
+ * allocation.  Since token indices are assigned by a tokenizer, a
+ * cache should only be shared by metrics that use the same tokenizer
+ * and the same token distance.
+ *
+ * <p>The cache holds at most a fixed number of scores.  When it is
+ * full, either the least recently used score is evicted (LRU), or
+ * the first one found by a 'clock' hand that hasn't been used since
+ * the hand last passed it (CLOCK, which is cheaper to maintain on a
+ * hit).  The entries are split among independently locked segments,
+ * so the cache can be used by several threads at once.  A segment's
+ * arrays are only allocated when a score is first put in it, and
+ * grow as it fills, so a cache that is never used (say, in a distance
+ * that is only built to be trained or printed) costs almost nothing.
+ */
+
+public class TokenSimilarityCache
+{
+    /** Evict the least recently used score. */
+    public static final int LRU = 0;
+    /** Evict with the CLOCK approximation to LRU. */
+    public static final int CLOCK = 1;
+    /** Capacity of the caches that soft token metrics create for themselves. */
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private static final int MAX_SEGMENTS = 16;
+    // each segment holds at least this many entries
+    private static final int MIN_SEGMENT_CAPACITY = 64;
+    // number of slots a segment allocates when a score is first put in it
+    private static final int INITIAL_SEGMENT_SIZE = 16;
+
+    private final int capacity;
+    private final int policy;
+    private final Segment[] segments;
+
+    public TokenSimilarityCache(int capacity,int policy)
+    {
+        if (capacity<=0) throw new IllegalArgumentException("capacity must be positive: "+capacity);
+        if (policy!=LRU && policy!=CLOCK) throw new IllegalArgumentException("unknown eviction policy "+policy);
+        this.capacity = capacity;
+        this.policy = policy;
+        int n = 1;
+        while (n<MAX_SEGMENTS && (n*2)*MIN_SEGMENT_CAPACITY<=capacity) n *= 2;
+        segments = new Segment[n];
+        for (int k=0; k<n; k++) {
+            segments[k] = new Segment(capacity/n + (k<capacity%n ? 1 : 0), policy==LRU);
+        }
+    }
+
+    public TokenSimilarityCache(int capacity)
+    {
+        this(capacity, CLOCK);
+    }
+
+    /** The key for the score of token a compared to token b. */
+    public static long key(Token a,Token b)
+    {
+        return ((long)a.getIndex() << 32) | (b.getIndex() & 0xffffffffL);
+    }
+
+    /** The cached score for the key, or Double.NaN if there is none. */
+    public double get(long key)
+    {
+        long h = hash(key);
+        return segmentFor(h).get(key, (int)h);
+    }
+
+    /** Cache a score for the key.  (A NaN score can be stored, but
+     * will never be found by get.) */
+    public void put(long key,double score)
+    {
+        long h = hash(key);
+        segmentFor(h).put(key, (int)h, score);
+    }
+
+    /** Discard all cached scores, but not the statistics. */
+    public void clear()
+    {
+        for (int k=0; k<segments.length; k++) segments[k].clear();
+    }
+
+    public int getCapacity() { return capacity; }
+    public int getPolicy() { return policy; }
+
+    /** Number of scores currently cached. */
+    public int size()
+    {
+        int n = 0;
+        for (int k=0; k<segments.length; k++) {
+            synchronized (segments[k]) { n += segments[k].size; }
+        }
+        return n;
+    }
+
+    /** Number of lookups that found a score. */
+    public long getHits()
+    {
+        long n = 0;
+        for (int k=0; k<segments.length; k++) {
+            synchronized (segments[k]) { n += segments[k].hits; }
+        }
+        return n;
+    }
+
+    /** Number of lookups that didn't find a score. */
+    public long getMisses()
+    {
+        long n = 0;
+        for (int k=0; k<segments.length; k++) {
+            synchronized (segments[k]) { n += segments[k].misses; }
+        }
+        return n;
+    }
+
+    /** Number of scores discarded to make room for new ones. */
+    public long getEvictions()
+    {
+        long n = 0;
+        for (int k=0; k<segments.length; k++) {
+            synchronized (segments[k]) { n += segments[k].evictions; }
+        }
+        return n;
+    }
+
+    /** Fraction of lookups that found a score. */
+    public double getHitRate()
+    {
+        long hits = getHits(), total = hits+getMisses();
+        return total==0 ? 0 : hits/(double)total;
+    }
+
+    public String toString()
+    {
+        return "[TokenSimilarityCache "+(policy==LRU ? "LRU" : "CLOCK")+" size="+size()+"/"+capacity
+            +" hits="+getHits()+" misses="+getMisses()+" evictions="+getEvictions()+"]";
+    }
+
+    private Segment segmentFor(long h)
+    {
+        return segments[(int)(h >>> 32) & (segments.length-1)];
+    }
+
+    // the finalizer of MurmurHash3, so that nearby indices spread out
+    private static long hash(long key)
+    {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    /**
+     * Up to a fixed number of entries ('slots'), found through an open
+     * addressing table with linear probing.  For LRU the slots are
+     * also on a doubly-linked list, most recently used first; for
+     * CLOCK each slot has a reference bit.
+     */
+    private static final class Segment
+    {
+        private final boolean lru;
+        private final int capacity;
+        // the slots, which are null until a score is put in the
+        // segment, and then grow up to capacity
+        private long[] keys;
+        private double[] values;
+        // slot+1 for each occupied cell of the table, 0 for an empty one
+        private int[] table;
+        private int[] prev, next;
+        private boolean[] referenced;
+        private int head = -1, tail = -1;
+        private int hand = 0;
+        private int size = 0;
+        private long hits, misses, evictions;
+
+        Segment(int capacity,boolean lru)
+        {
+            this.lru = lru;
+            this.capacity = capacity;
+        }
+
+        // make room for n slots, and rebuild the table for them
+        private void grow(int n)
+        {
+            keys = keys==null ? new long[n] : java.util.Arrays.copyOf(keys, n);
+            values = values==null ? new double[n] : java.util.Arrays.copyOf(values, n);
+            if (lru) {
+                prev = prev==null ? new int[n] : java.util.Arrays.copyOf(prev, n);
+                next = next==null ? new int[n] : java.util.Arrays.copyOf(next, n);
+            } else {
+                referenced = referenced==null ? new boolean[n] : java.util.Arrays.copyOf(referenced, n);
+            }
+            int tableSize = 1;
+            while (tableSize<2*n) tableSize *= 2;
+            table = new int[tableSize];
+            for (int slot=0; slot<size; slot++) {
+                table[ find(keys[slot], (int)hash(keys[slot])) ] = slot+1;
+            }
+        }
+
+        synchronized double get(long key,int h)
+        {
+            if (keys==null) {
+                misses++;
+                return Double.NaN;
+            }
+            int cell = find(key, h);
+            if (table[cell]==0) {
+                misses++;
+                return Double.NaN;
+            }
+            int slot = table[cell]-1;
+            if (lru) moveToFront(slot);
+            else referenced[slot] = true;
+            hits++;
+            return values[slot];
+        }
+
+        synchronized void put(long key,int h,double score)
+        {
+            if (keys==null || (size==keys.length && size<capacity)) {
+                grow(keys==null ? Math.min(capacity, INITIAL_SEGMENT_SIZE) : Math.min(capacity, 2*keys.length));
+            }
+            int cell = find(key, h);
+            if (table[cell]!=0) {
+                int slot = table[cell]-1;
+                values[slot] = score;
+                if (lru) moveToFront(slot);
+                else referenced[slot] = true;
+                return;
+            }
+            int slot;
+            if (size<keys.length) {
+                slot = size++;
+            } else {
+                slot = lru ? tail : advanceHand();
+                removeFromTable(keys[slot]);
+                if (lru) unlink(slot);
+                evictions++;
+                // the table has changed, so find the cell again
+                cell = find(key, h);
+            }
+            keys[slot] = key;
+            values[slot] = score;
+            table[cell] = slot+1;
+            if (lru) linkFirst(slot);
+            else referenced[slot] = false;
+        }
+
+        synchronized void clear()
+        {
+            // free the slots, which are allocated again when needed
+            keys = null;
+            values = null;
+            table = null;
+            prev = next = null;
+            referenced = null;
+            head = tail = -1;
+            hand = 0;
+            size = 0;
+        }
+
+        // the cell holding key, or else the empty cell where it would go
+        private int find(long key,int h)
+        {
+            int mask = table.length-1;
+            int cell = h & mask;
+            while (table[cell]!=0 && keys[table[cell]-1]!=key) cell = (cell+1) & mask;
+            return cell;
+        }
+
+        // empty the cell holding key, shifting later cells of its
+        // probe sequence back so that they can still be found
+        private void removeFromTable(long key)
+        {
+            int mask = table.length-1;
+            int hole = find(key, (int)hash(key));
+            table[hole] = 0;
+            for (int cell=(hole+1) & mask; table[cell]!=0; cell=(cell+1) & mask) {
+                int home = (int)hash(keys[table[cell]-1]) & mask;
+                // leave the cell alone if its home lies cyclically in (hole,cell]
+                boolean stays = hole<=cell ? (hole<home && home<=cell) : (hole<home || home<=cell);
+                if (!stays) {
+                    table[hole] = table[cell];
+                    table[cell] = 0;
+                    hole = cell;
+                }
+            }
+        }
+
+        private int advanceHand()
+        {
+            while (referenced[hand]) {
+                referenced[hand] = false;
+                hand = (hand+1) % keys.length;
+            }
+            int victim = hand;
+            hand = (hand+1) % keys.length;
+            return victim;
+        }
+
+        private void moveToFront(int slot)
+        {
+            if (slot!=head) {
+                unlink(slot);
+                linkFirst(slot);
+            }
+        }
+
+        private void unlink(int slot)
+        {
+            if (prev[slot]>=0) next[prev[slot]] = next[slot];
+            else head = next[slot];
+            if (next[slot]>=0) prev[next[slot]] = prev[slot];
+            else tail = prev[slot];
+        }
+
+        private void linkFirst(int slot)
+        {
+            prev[slot] = -1;
+            next[slot] = head;
+            if (head>=0) prev[head] = slot;
+            head = slot;
+            if (tail<0) tail = slot;
+        }
+    }
+}
@@ -27,9 +27,31 @@ public class WinklerRescorer extends AbstractStringDistance
 		double dist = innerDistance.score(s,t);
 		if (dist<0 || dist>1) 
 			throw new IllegalArgumentException("innerDistance should produce scores between 0 and 1"); 
-		int prefLength = commonPrefixLength(4,s.unwrap(),t.unwrap());
-		dist = dist + prefLength*0.1 * (1 - dist);
-		return dist;
+		return rescore(dist,s.unwrap(),t.unwrap());
+	}
+
+	/** Thresholded score.  The rescoring is monotonic, so the
+	 * innerDistance is asked for the smallest score that could be
+	 * rescored to minScore, given the common prefix of s and t, less
+	 * a little slack for rounding. */
+	public double score(StringWrapper s,StringWrapper t,double minScore) 
+	{
+		String str1 = s.unwrap(), str2 = t.unwrap();
+		double p = commonPrefixLength(4,str1,str2)*0.1;
+		double innerMinScore = (minScore-p)/(1-p) - 1e-9;
+		double dist = innerDistance.score(s,t,innerMinScore);
+		if (dist>=innerMinScore && (dist<0 || dist>1)) 
+			throw new IllegalArgumentException("innerDistance should produce scores between 0 and 1"); 
+		// a score below innerMinScore may be any value, so clip it to the legal range
+		return rescore(Math.max(0,Math.min(1,dist)),str1,str2);
+	}
+
+	/** Winkler's correction of a score between 0 and 1 for the
+	 * strings s and t. */
+	static double rescore(double dist,String s,String t)
+	{
+		int prefLength = commonPrefixLength(4,s,t);
+		return dist + prefLength*0.1 * (1 - dist);
 	}
 
 	public String explainScore(StringWrapper s, StringWrapper t)	
@@ -44,7 +66,7 @@ public class WinklerRescorer extends AbstractStringDistance
 		buf.append("Corrected score = dist + "+prefLength+"/10 * (1-dist) = "+score(s,t)+"\n");
 		return buf.toString();
 	}
-	private static int commonPrefixLength(int maxLength,String common1,String common2)
+	static int commonPrefixLength(int maxLength,String common1,String common2)
 	{
 		int n = Math.min(maxLength, Math.min(common1.length(), common2.length()) );
 		for (int i=0; i<n; i++) {
@@ -53,5 +75,6 @@ public class WinklerRescorer extends AbstractStringDistance
 		return n; // first n characters are the same
 	}
 	public StringWrapper prepare(String s) { return innerDistance.prepare(s); }
+	public StringWrapper prepare(StringWrapper w) { return innerDistance.prepare(w); }
 
 }
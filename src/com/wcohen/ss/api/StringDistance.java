@@ -17,6 +17,16 @@ import java.util.*;
  * a tokenized version of a string (as a BagOfTokens, which is
  * a subclass of StringWrapper.)
  *
+ * <p>The distances in this package are safe to share between threads
+ * once they have been configured and trained: score(), prepare() and
+ * explainScore() may then be called concurrently, as long as the
+ * training (or StringDistanceLearner.getDistance()) happened before
+ * the distance was handed to the other threads.  Trained statistics
+ * are only read while scoring, scratch space for a computation is
+ * kept per thread, and tokenizers intern new tokens safely.  Training
+ * itself, and setters like setTokenMatchThreshold(), are not
+ * thread-safe.  A StringWrapper returned by prepare() may be shared
+ * as well.
  */
 public interface StringDistance 
 {
@@ -25,12 +35,37 @@ public interface StringDistance
 	*/
 	public double score(StringWrapper s,StringWrapper t);
 	
+	/** Find the distance between s and t, if it is at least minScore.
+	 * If the distance is at least minScore, it is returned exactly;
+	 * otherwise some value less than minScore is returned, which may
+	 * not be the distance between s and t.  This lets an
+	 * implementation stop as soon as it can tell that the threshold
+	 * cannot be reached.  By default, the distance is computed in
+	 * full.
+	 */
+	default public double score(StringWrapper s,StringWrapper t,double minScore)
+	{
+		return score(s,t);
+	}
+	
 	/** Find the distance between s and t */
 	public double score(String s, String t);
 	
 	/** Preprocess a string for distance computation */ 
 	public StringWrapper prepare(String s);
 	
+	/** Preprocess a StringWrapper for distance computation, so that
+	 * scoring the result is the same as scoring w.  By default w is
+	 * returned as is, since prepare(w.unwrap()) may change the string
+	 * in ways that scoring w does not (Jaro lowercases it, for
+	 * instance).  Distances that prepare a wrapper the same way when
+	 * they score it override this, so that the work can be done once.
+	 */
+	default public StringWrapper prepare(StringWrapper w)
+	{
+		return w;
+	}
+	
 	/** Explain how the distance was computed. */
 	public String explainScore(StringWrapper s, StringWrapper t);
 	
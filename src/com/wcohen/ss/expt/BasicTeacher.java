@@ -12,23 +12,34 @@ public class BasicTeacher extends StringDistanceTeacher
 	private DistanceInstanceIterator distanceExamplePool;
 	private DistanceInstanceIterator distanceInstancePool;
 	private StringWrapperIterator wrapperIterator;
+	// if non-null, the source of the iterators above
+	private CandidatePairs candidates;
 
 	/** Create a teacher from a blocker and a dataset.
 	 * Will train from all blocked pairs.
 	 */
-	public BasicTeacher(final Blocker blocker,final MatchData data)
+	public BasicTeacher(Blocker blocker,MatchData data)
 	{
-		blocker.block(data);
-		wrapperIterator = data.getIterator();
-		distanceInstancePool = new BasicDistanceInstanceIterator(Collections.EMPTY_SET.iterator());
-		distanceExamplePool = 
-			new DistanceInstanceIterator() {
-				private int cursor=0;
-				public boolean hasNext() { return cursor<blocker.size(); }
-				public Object next() { return blocker.getPair( cursor++ ); }
-				public void remove() { throw new UnsupportedOperationException(); }
-				public DistanceInstance nextDistanceInstance() { return (DistanceInstance)next();}
-			};
+		this(new CandidatePairs(blocker,data));
+	}
+
+	/** Create a teacher from a blocker and a dataset, which, if
+	 * streaming is true, collects the pairs streamed by the blocker
+	 * in one pass, rather than having the blocker hold them all.
+	 */
+	public BasicTeacher(Blocker blocker,MatchData data,boolean streaming)
+	{
+		this(new CandidatePairs(blocker,data,streaming));
+	}
+
+	/** Create a teacher from pairs that have already been blocked.
+	 * Will train from all the pairs.  Each call to train() iterates
+	 * over the data and the pairs anew, so one teacher can train any
+	 * number of learners.
+	 */
+	public BasicTeacher(CandidatePairs candidates)
+	{
+		this.candidates = candidates;
 	}
 
 	/**
@@ -47,16 +58,19 @@ public class BasicTeacher extends StringDistanceTeacher
 
 	public StringWrapperIterator stringWrapperIterator() 
 	{
+		if (candidates!=null) return candidates.getData().getIterator();
 		return wrapperIterator;
 	}
 
 	public DistanceInstanceIterator distanceInstancePool()
 	{
+		if (candidates!=null) return new BasicDistanceInstanceIterator(Collections.EMPTY_SET.iterator());
 		return distanceInstancePool;
 	}
 
 	public DistanceInstanceIterator distanceExamplePool() 
 	{
+		if (candidates!=null) return candidates.iterator();
 		return distanceExamplePool;
 	}
 
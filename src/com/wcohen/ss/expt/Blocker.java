@@ -8,6 +8,13 @@ import java.util.*;
 /**
  * Produces candidate pairs from a MatchData structure, and provides
  * access to those candidate pairs.
+ *
+ * <p>Pairs can be streamed, with pairSpliterator() or pairIterator(),
+ * or materialized, with block(), after which they are available
+ * through size() and getPair().  By default, streaming just blocks
+ * the data and streams the materialized pairs, but a blocker that can
+ * produce pairs one at a time can override pairSpliterator(), so that
+ * the pairs need never all be held at once.
  */
 
 public abstract class Blocker 
@@ -22,6 +29,29 @@ public abstract class Blocker
 	
 	/**  Return number of candidate pairs, as produced from most recently block()-ed data */
 	abstract public int size();
+
+	/** Stream the candidate pairs of the data, in the same order that
+	 * block() would produce them.  The spliterator is ORDERED, and
+	 * splits into a prefix and the rest, so the pairs can be consumed
+	 * in parallel.  After this is called, numCorrectPairs() is for
+	 * the data streamed.
+	 */
+	public Spliterator pairSpliterator(MatchData data)
+	{
+		block(data);
+		// a view of the materialized pairs
+		return new AbstractList() {
+				private final int n = Blocker.this.size();
+				public Object get(int i) { return Blocker.this.getPair(i); }
+				public int size() { return n; }
+			}.spliterator();
+	}
+
+	/** Iterate over the candidate pairs of the data, as streamed by pairSpliterator(). */
+	public Iterator pairIterator(MatchData data)
+	{
+		return Spliterators.iterator( pairSpliterator(data) );
+	}
 	
 	/** In clusterMode, consider pairings between instances from the same
 			source.  If clusterMode is false, only consider pairing between
@@ -61,7 +91,8 @@ public abstract class Blocker
 		}
 	}
 
-	/** Return total number of correct pairs in the dataset. */
+	/** Return total number of correct pairs in the dataset most
+	 * recently block()-ed or streamed. */
 	abstract public int numCorrectPairs();
 
 	/** Compute number of correct pairs betwn src1 and src2, where src2>src1  */
@@ -0,0 +1,157 @@
+package com.wcohen.ss.expt;
+
+import com.wcohen.ss.api.*;
+import java.util.*;
+
+/**
+ * The candidate pairs produced by blocking a dataset.  A Blocker only
+ * holds the pairs of the data it most recently block()-ed, but a
+ * CandidatePairs never changes once it has been made, so a dataset
+ * can be blocked once and its pairs shared by a teacher, a PairScorer
+ * and any number of experiments.
+ *
+ * <p>Since a Blocker.Pair has a mutable distance, the Pair objects
+ * themselves are not shared: getPair() and newPairs() return new
+ * Pairs of the same instances each time they are called.  The pairs
+ * are kept as columns, not as Pairs, so they take a few bytes each.
+ */
+
+public class CandidatePairs
+{
+	// the most pairs that arrays can hold
+	private static final int MAX_PAIRS = Integer.MAX_VALUE-8;
+
+	private final MatchData data;
+	private final String blockerName;
+	private final MatchData.Instance[] a;
+	private final MatchData.Instance[] b;
+	private final boolean[] sameIds;
+	private final int numCorrectPairs;
+	private final double blockingTime;
+
+	/** Block the data with the blocker, and keep the pairs produced. */
+	public CandidatePairs(Blocker blocker,MatchData data)
+	{
+		this(blocker,data,false);
+	}
+
+	/** Keep the pairs of the data produced by the blocker.  If
+	 * streaming is true, the pairs are taken from the blocker's
+	 * pairSpliterator() in one pass, so a blocker that streams its
+	 * pairs never holds them all as Pairs; otherwise the data is
+	 * block()-ed.  Either way, all the pairs are kept here, a few
+	 * bytes each, since a MatchExpt needs all their scores to rank
+	 * them.  To score pairs in bounded memory, pass the blocker's
+	 * pairSpliterator() to PairScorer.score(dist, Spliterator, Consumer)
+	 * instead.
+	 */
+	public CandidatePairs(Blocker blocker,MatchData data,boolean streaming)
+	{
+		long startTime = System.currentTimeMillis();
+		if (streaming) {
+			int n = 0;
+			MatchData.Instance[] as = new MatchData.Instance[1024];
+			MatchData.Instance[] bs = new MatchData.Instance[1024];
+			boolean[] same = new boolean[1024];
+			for (Iterator i=blocker.pairIterator(data); i.hasNext(); ) {
+				Blocker.Pair pair = (Blocker.Pair)i.next();
+				if (n==same.length) {
+					int capacity = grownCapacity(n);
+					as = Arrays.copyOf(as, capacity);
+					bs = Arrays.copyOf(bs, capacity);
+					same = Arrays.copyOf(same, capacity);
+				}
+				as[n] = (MatchData.Instance)pair.getA();
+				bs[n] = (MatchData.Instance)pair.getB();
+				same[n] = pair.isCorrect();
+				n++;
+			}
+			a = Arrays.copyOf(as, n);
+			b = Arrays.copyOf(bs, n);
+			sameIds = Arrays.copyOf(same, n);
+		} else {
+			blocker.block(data);
+			int n = blocker.size();
+			a = new MatchData.Instance[n];
+			b = new MatchData.Instance[n];
+			sameIds = new boolean[n];
+			for (int i=0; i<n; i++) {
+				Blocker.Pair pair = blocker.getPair(i);
+				a[i] = (MatchData.Instance)pair.getA();
+				b[i] = (MatchData.Instance)pair.getB();
+				sameIds[i] = pair.isCorrect();
+			}
+		}
+		numCorrectPairs = blocker.numCorrectPairs();
+		blockingTime = (System.currentTimeMillis()-startTime)/1000.0;
+		this.data = data;
+		this.blockerName = blocker.toString();
+	}
+
+	// the capacity to grow full arrays of n pairs to
+	private static int grownCapacity(int n)
+	{
+		if (n>=MAX_PAIRS) throw new IllegalStateException("more than "+MAX_PAIRS+" candidate pairs");
+		return (int)Math.min(2L*n, MAX_PAIRS);
+	}
+
+	/** The data that was blocked. */
+	public MatchData getData() { return data; }
+
+	/** The name of the blocker that produced the pairs. */
+	public String getBlockerName() { return blockerName; }
+
+	/** Number of candidate pairs. */
+	public int size() { return sameIds.length; }
+
+	/** Total number of correct pairs in the data, as counted by the blocker. */
+	public int numCorrectPairs() { return numCorrectPairs; }
+
+	/** Seconds taken to block the data. */
+	public double getBlockingTime() { return blockingTime; }
+
+	/** The first instance of the i-th candidate pair. */
+	public MatchData.Instance getA(int i) { return a[i]; }
+
+	/** The second instance of the i-th candidate pair. */
+	public MatchData.Instance getB(int i) { return b[i]; }
+
+	/** True if the instances of the i-th candidate pair have the same id. */
+	public boolean isCorrect(int i) { return sameIds[i]; }
+
+	/** A new Pair for the i-th candidate pair. */
+	public Blocker.Pair getPair(int i)
+	{
+		return new Blocker.Pair(a[i], b[i], sameIds[i]);
+	}
+
+	/** New Pairs for all the candidate pairs, in order. */
+	public Blocker.Pair[] newPairs()
+	{
+		Blocker.Pair[] pairs = new Blocker.Pair[size()];
+		for (int i=0; i<pairs.length; i++) {
+			pairs[i] = getPair(i);
+		}
+		return pairs;
+	}
+
+	/** Iterate over new Pairs for all the candidate pairs, in order. */
+	public DistanceInstanceIterator iterator()
+	{
+		return new DistanceInstanceIterator() {
+				private int cursor=0;
+				public boolean hasNext() { return cursor<size(); }
+				public Object next() { return getPair( cursor++ ); }
+				public void remove() { throw new UnsupportedOperationException(); }
+				public DistanceInstance nextDistanceInstance() { return (DistanceInstance)next();}
+			};
+	}
+
+	/** Stream new Pairs for all the candidate pairs, in order. */
+	public Spliterator spliterator()
+	{
+		return Spliterators.spliterator(iterator(), size(), Spliterator.ORDERED);
+	}
+
+	public String toString() { return "[CandidatePairs: "+data.getFilename()+","+blockerName+","+size()+" pairs]"; }
+}
@@ -2,17 +2,56 @@ package com.wcohen.ss.expt;
 
 import com.wcohen.ss.*;
 import com.wcohen.ss.api.*;
+import com.wcohen.ss.tokens.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 
 /**
  * Holds data for evaluating a distance metric.
+ *
+ * <p>Records are stored in columns: for each record, the number of
+ * its source, the number of its id (ids are stored once each), and
+ * where its text is in one of a few large char arrays.  The
+ * MatchData.Instance for a record is only made when it is first
+ * asked for, and the same Instance is returned from then on.
+ *
+ * <p>A file is loaded by mapping it into memory and parsing chunks of
+ * it in parallel on a fork-join pool.  The text of the records in a
+ * chunk stays in the chars decoded from the chunk.
  */
 
 public class MatchData 
 {
-    private Map sourceLists;
+    // bytes of a file parsed by a single task
+    private static final int MIN_CHUNK_SIZE = 1<<20;
+    private static final int MAX_CHUNK_SIZE = 1<<26;
+
+    // source number -> name, name -> source number as an Integer, and
+    // source number -> IntArrayList of the indices of its records
     private ArrayList sourceNames;
+    private Map sourceNumber;
+    private ArrayList sourceRecords;
+    // id number -> id, and id -> id number as an Integer
+    private ArrayList ids;
+    private Map idNumber;
+    // the columns, indexed by record index
+    private IntArrayList sourceOf;
+    private IntArrayList idOf;
+    private IntArrayList textStart;
+    private IntArrayList textEnd;
+    // the char arrays holding the text, and the index of the first
+    // record in each; the last one may be partly filled by addInstance
+    private ArrayList arenas;
+    private IntArrayList arenaFirst;
+    private int openArenaLength = -1;
+    // the Instance of each record, once it has been made
+    private AtomicReferenceArray views;
     private String filename;
     private static final boolean KEEP_OLD_ITERATION_BUG = System.getProperty("ss.keepOldIterationBug")!=null;
 	
@@ -23,45 +62,52 @@ public class MatchData
 
     public MatchData(String filename) throws InputFormatException
     {
+        this(filename,ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Read match data from a file, parsing it on the given pool.  If
+     * the pool is null, the file is parsed on the calling thread.
+     */
+    public MatchData(String filename,ForkJoinPool pool) throws InputFormatException
+    {
+        this();
         this.filename = filename;
-        sourceNames = new ArrayList();
-        sourceLists = new HashMap();
+        Chunk[] chunks;
         try {
-            LineNumberReader in = new LineNumberReader(new BufferedReader(new FileReader(filename)));
-            String line;
-            int lineNum = 0;
-            long last = System.currentTimeMillis();
-            while ((line = in.readLine())!=null) {
-                lineNum++;
-                String tok[] = line.split("\t",-1);
-                int toklen = tok.length;
-                if(toklen < 1)
-                    throw new
-                        InputFormatException(filename,lineNum,"no source");
-                String src = tok[0];
-                if (toklen < 2)
-                    throw new
-                        InputFormatException(filename,lineNum,"no id");
-                String id = tok[1];
-                if (toklen < 3)
-                    throw new
-                        InputFormatException(filename,lineNum,"no text fields");
-                String text = tok[2];
-                for(int i = 3;i < toklen;i++){
-                    text += "\t" + tok[i];
+            FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+            try {
+                chunks = chunks(channel, pool==null ? 1 : pool.getParallelism());
+                if (pool==null || chunks.length<=1) {
+                    for (int k=0; k<chunks.length; k++) chunks[k].parse(channel);
+                } else {
+                    pool.invoke(new ParseTask(chunks, channel, 0, chunks.length));
                 }
-                addInstance(src,id,text);
-
-				long now = System.currentTimeMillis();
-				if (now-last > 10000) {
-					System.err.println("MatchData: "+in.getLineNumber()+" lines loaded...");
-					last = now;
-				}
+            } finally {
+                channel.close();
             }
-            in.close();
         } catch (IOException e) {
             throw new InputFormatException(filename,0,e.toString());
+        } catch (UncheckedIOException e) {
+            throw new InputFormatException(filename,0,e.getCause().toString());
         }
+        int lineNum = 0;
+        long last = System.currentTimeMillis();
+        for (int k=0; k<chunks.length; k++) {
+            addChunk(chunks[k]);
+            if (chunks[k].error!=null) {
+                throw new InputFormatException(filename,lineNum+chunks[k].errorLine,chunks[k].error);
+            }
+            lineNum += chunks[k].numLines;
+            chunks[k] = null;
+
+            long now = System.currentTimeMillis();
+            if (now-last > 10000) {
+                System.err.println("MatchData: "+lineNum+" lines loaded...");
+                last = now;
+            }
+        }
+        views = new AtomicReferenceArray(sourceOf.size());
     }
 
 
@@ -69,20 +115,85 @@ public class MatchData
     {
         this.filename = "none";
         sourceNames = new ArrayList();
-        sourceLists = new HashMap();
+        sourceNumber = new HashMap();
+        sourceRecords = new ArrayList();
+        ids = new ArrayList();
+        idNumber = new HashMap();
+        sourceOf = new IntArrayList();
+        idOf = new IntArrayList();
+        textStart = new IntArrayList();
+        textEnd = new IntArrayList();
+        arenas = new ArrayList();
+        arenaFirst = new IntArrayList();
+        views = new AtomicReferenceArray(16);
     }
 
     /** Add a single instance, with given src and id, to the datafile */
     public void addInstance(String src,String id,String text) 
     {
-        Instance inst = new Instance(src,id,text);
-        ArrayList list = (ArrayList)sourceLists.get(src);
-        if (list==null) {
-            list = new ArrayList();
-            sourceLists.put(src,list);
-            sourceNames.add(src);
+        if (openArenaLength<0 || openArenaLength+text.length()>((char[])arenas.get(arenas.size()-1)).length) {
+            openArena(text.length());
+        }
+        char[] arena = (char[])arenas.get(arenas.size()-1);
+        text.getChars(0, text.length(), arena, openArenaLength);
+        addRecord(number(src,sourceNames,sourceNumber), number(id,ids,idNumber), openArenaLength, openArenaLength+text.length());
+        openArenaLength += text.length();
+        if (sourceOf.size()>views.length()) {
+            AtomicReferenceArray grown = new AtomicReferenceArray(2*views.length()+1);
+            for (int i=0; i<views.length(); i++) grown.set(i, views.get(i));
+            views = grown;
+        }
+    }
+
+    // make room for at least n more chars of text, in the open arena or a new one
+    private void openArena(int n)
+    {
+        if (openArenaLength>=0) {
+            char[] arena = (char[])arenas.get(arenas.size()-1);
+            if (arena.length<MAX_CHUNK_SIZE) {
+                arenas.set(arenas.size()-1, Arrays.copyOf(arena, Math.max(2*arena.length, openArenaLength+n)));
+                return;
+            }
+        }
+        arenas.add(new char[Math.max(1024,n)]);
+        arenaFirst.add(sourceOf.size());
+        openArenaLength = 0;
+    }
+
+    // the number of the string s in a table, adding it if it's new
+    private static int number(String s,ArrayList table,Map numbers)
+    {
+        Integer k = (Integer)numbers.get(s);
+        if (k==null) {
+            numbers.put(s, (k=Integer.valueOf(table.size())));
+            table.add(s);
+        }
+        return k.intValue();
+    }
+
+    private void addRecord(int src,int id,int start,int end)
+    {
+        if (src==sourceRecords.size()) sourceRecords.add(new IntArrayList());
+        ((IntArrayList)sourceRecords.get(src)).add(sourceOf.size());
+        sourceOf.add(src);
+        idOf.add(id);
+        textStart.add(start);
+        textEnd.add(end);
+    }
+
+    // add the records parsed from a chunk of a file
+    private void addChunk(Chunk chunk)
+    {
+        int[] src = new int[chunk.sourceNames.size()];
+        for (int i=0; i<src.length; i++) src[i] = number((String)chunk.sourceNames.get(i),sourceNames,sourceNumber);
+        int[] id = new int[chunk.ids.size()];
+        for (int i=0; i<id.length; i++) id[i] = number((String)chunk.ids.get(i),ids,idNumber);
+        arenas.add(chunk.text);
+        arenaFirst.add(sourceOf.size());
+        openArenaLength = -1;
+        for (int r=0; r<chunk.sourceOf.size(); r++) {
+            addRecord(src[chunk.sourceOf.get(r)], id[chunk.idOf.get(r)], chunk.textStart.get(r), chunk.textEnd.get(r));
         }
-        list.add(inst);
     }
 
     /** Number of sources in data set */
@@ -97,12 +208,52 @@ public class MatchData
 
     /** Number of records for source with given string id */
     public int numInstances(String src) { 
-        return ((ArrayList)sourceLists.get(src)).size();
+        return records(src).size();
     }
 
     /** Get the j-th record for the named source. */
     public Instance getInstance(String src, int j) { 
-        return (Instance)((ArrayList)sourceLists.get(src)).get(j); 
+        return getInstance(records(src).get(j)); 
+    }
+
+    private IntArrayList records(String src)
+    {
+        return (IntArrayList)sourceRecords.get( ((Integer)sourceNumber.get(src)).intValue() );
+    }
+
+    /** Number of records in all sources */
+    public int numInstances() { 
+        return sourceOf.size();
+    }
+
+    /** Get the record with the given index, which is its position
+     * among all the records, in the order they were added. */
+    public Instance getInstance(int index) { 
+        AtomicReferenceArray views = this.views;
+        Instance inst = (Instance)views.get(index);
+        if (inst==null) {
+            int start = textStart.get(index);
+            char[] arena = (char[])arenas.get(arenaOf(index));
+            inst = new Instance((String)sourceNames.get(sourceOf.get(index)),
+                                (String)ids.get(idOf.get(index)),
+                                new String(arena, start, textEnd.get(index)-start),
+                                index);
+            // if another thread made one first, use that one
+            if (!views.compareAndSet(index, null, inst)) inst = (Instance)views.get(index);
+        }
+        return inst;
+    }
+
+    // the arena holding the text of a record
+    private int arenaOf(int index)
+    {
+        int lo = 0, hi = arenaFirst.size()-1;
+        while (lo<hi) {
+            int mid = (lo+hi+1) >>> 1;
+            if (arenaFirst.get(mid)<=index) lo = mid;
+            else hi = mid-1;
+        }
+        return lo;
     }
 
     public StringWrapperIterator getIterator() {
@@ -132,19 +283,28 @@ public class MatchData
      * An item has an id (for evaluating correctness of a match), a
      * source (which relation its from), and a text field.  Text is
      * stored as a StringWrapper so that it can be preprocessed, if
-     * necessary.
+     * necessary.  An instance of a MatchData also has an index, which
+     * numbers the instances of the MatchData densely from zero, so that
+     * information about instances can be kept in arrays.
      */
     public static class Instance extends BasicStringWrapper implements SourcedStringWrapper, IdentifiedStringWrapper
     {
         private final String source;
         private final String id;
+        private final int index;
         public Instance(String source, String id, String text) {
+            this(source,id,text,-1);
+        }
+        public Instance(String source, String id, String text, int index) {
             super(text);
 	    this.source = source.trim();
 	    this.id = id.trim();
+	    this.index = index;
         }
         public String getSource() { return source; }
         public String getId() { return id; }
+        /** The index of this instance in its MatchData, or -1 if it has none. */
+        public int getIndex() { return index; }
         public boolean sameId(Instance b) {
             return id!=null && b.id!=null && id.equals(b.id);
         }
@@ -200,6 +360,121 @@ public class MatchData
     }
 	
 
+    // split a file into chunks that end at line ends
+    private static Chunk[] chunks(FileChannel channel,int parallelism) throws IOException
+    {
+        long size = channel.size();
+        long chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(MAX_CHUNK_SIZE, size/(4*parallelism)+1));
+        ArrayList chunks = new ArrayList();
+        ByteBuffer buf = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start<size) {
+            long end = Math.min(size, start+chunkSize);
+            // move the end past the next LF
+            search: while (end<size) {
+                buf.clear();
+                int n = channel.read(buf, end);
+                if (n<0) { end = size; break; }
+                for (int i=0; i<n; i++) {
+                    if (buf.get(i)=='\n') { end += i+1; break search; }
+                }
+                end += n;
+            }
+            chunks.add(new Chunk(start, end));
+            start = end;
+        }
+        return (Chunk[])chunks.toArray(new Chunk[chunks.size()]);
+    }
+
+    /** The records parsed from part of a file, with sources and ids
+     * numbered within the chunk. */
+    private static class Chunk
+    {
+        final long start, end;
+        char[] text;
+        ArrayList sourceNames = new ArrayList();
+        Map sourceNumber = new HashMap();
+        ArrayList ids = new ArrayList();
+        Map idNumber = new HashMap();
+        IntArrayList sourceOf = new IntArrayList();
+        IntArrayList idOf = new IntArrayList();
+        IntArrayList textStart = new IntArrayList();
+        IntArrayList textEnd = new IntArrayList();
+        int numLines = 0;
+        // the first error, and the line in the chunk it was on
+        String error;
+        int errorLine;
+
+        Chunk(long start,long end) { this.start = start; this.end = end; }
+
+        void parse(FileChannel channel) throws IOException
+        {
+            ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, start, end-start);
+            CharBuffer chars = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                .decode(bytes);
+            text = chars.array();
+            int n = chars.limit();
+            // lines end with LF, CR or CR LF, as for BufferedReader.readLine()
+            for (int pos=0; pos<n && error==null; ) {
+                int eol = pos;
+                while (eol<n && text[eol]!='\n' && text[eol]!='\r') eol++;
+                numLines++;
+                parseLine(pos, eol);
+                if (eol+1<n && text[eol]=='\r' && text[eol+1]=='\n') eol++;
+                pos = eol+1;
+            }
+        }
+
+        // the text of a record is everything after the second tab
+        private void parseLine(int pos,int eol)
+        {
+            int tab1 = pos;
+            while (tab1<eol && text[tab1]!='\t') tab1++;
+            if (tab1==eol) { error = "no id"; errorLine = numLines; return; }
+            int tab2 = tab1+1;
+            while (tab2<eol && text[tab2]!='\t') tab2++;
+            if (tab2==eol) { error = "no text fields"; errorLine = numLines; return; }
+            sourceOf.add( number(new String(text, pos, tab1-pos), sourceNames, sourceNumber) );
+            idOf.add( number(new String(text, tab1+1, tab2-tab1-1), ids, idNumber) );
+            textStart.add(tab2+1);
+            textEnd.add(eol);
+        }
+    }
+
+    // parse chunks lo...hi-1, splitting the range in half until it is a single chunk
+    private static class ParseTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1;
+        private final Chunk[] chunks;
+        private final FileChannel channel;
+        private final int lo, hi;
+
+        ParseTask(Chunk[] chunks,FileChannel channel,int lo,int hi)
+        {
+            this.chunks = chunks;
+            this.channel = channel;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute()
+        {
+            if (hi-lo==1) {
+                try {
+                    chunks[lo].parse(channel);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            } else {
+                int mid = (lo+hi) >>> 1;
+                invokeAll(new ParseTask(chunks, channel, lo, mid),
+                          new ParseTask(chunks, channel, mid, hi));
+            }
+        }
+    }
+
     /** Signals an incorrectly formatted MatchData file.
      */
     public static class InputFormatException extends RuntimeException {
@@ -16,7 +16,11 @@ public class MatchExpt
     public static final String BLOCKER_PACKAGE = "com.wcohen.ss.expt.";
     public static final String DISTANCE_PACKAGE = "com.wcohen.ss.";
 
-    private Blocker.Pair[] pairs;
+    // the candidate pairs, their scores, and the numbers of the pairs
+    // from best score to worst
+    private CandidatePairs candidates;
+    private double[] scores;
+    private int[] rank;
     private int numCorrectPairs;
     private double learningTime;
     private double blockingTime;
@@ -24,21 +28,44 @@ public class MatchExpt
     private double sortingTime;
     private String fileName,learnerName,blockerName;
 
+    public MatchExpt(MatchData data,StringDistanceLearner learner,Blocker blocker,PairScorer scorer) { 
+        this(new CandidatePairs(blocker,data),learner,scorer);
+    }
     public MatchExpt(MatchData data,StringDistanceLearner learner,Blocker blocker) { 
-        setUpFixedExperiment(data,learner,blocker); 			
-        fileName = data.getFilename();
-        learnerName = learner.toString();
-        blockerName = blocker.toString();
+        this(data,learner,blocker,new PairScorer()); 
     }
     public MatchExpt(MatchData data,StringDistanceLearner learner) { 
         this(data,learner,new NullBlocker()); 
     }
+    /** Run an experiment on pairs that have already been blocked.
+     * The candidates are not changed, so they can be shared by
+     * experiments with different learners.  The time taken to block
+     * them is counted in the time of each experiment.
+     */
+    public MatchExpt(CandidatePairs candidates,StringDistanceLearner learner,PairScorer scorer) { 
+        setUpFixedExperiment(candidates,learner,scorer); 			
+        fileName = candidates.getData().getFilename();
+        learnerName = learner.toString();
+        blockerName = candidates.getBlockerName();
+    }
+    public MatchExpt(CandidatePairs candidates,StringDistanceLearner learner) { 
+        this(candidates,learner,new PairScorer()); 
+    }
+    /** Run an experiment that, if streaming is true, collects the
+     * candidate pairs as the blocker streams them, in one pass, so
+     * that the blocker never holds all the pairs.  The experiment
+     * still keeps every pair, with its score and rank, since it ranks
+     * all the scores; see CandidatePairs.
+     */
+    public MatchExpt(MatchData data,StringDistanceLearner learner,Blocker blocker,PairScorer scorer,boolean streaming) { 
+        this(new CandidatePairs(blocker,data,streaming),learner,scorer);
+    }
     public String toString() { return "[MatchExpt: "+fileName+","+learnerName+","+blockerName+"]"; };
 	
-    private void setUpFixedExperiment(MatchData data,StringDistanceLearner learner,Blocker blocker) 
+    private void setUpFixedExperiment(CandidatePairs candidates,StringDistanceLearner learner,PairScorer scorer) 
     {
-        System.out.println("setting up expt: "+learner+" "+blocker+" file: "+data.getFilename());
-        StringDistanceTeacher teacher = new BasicTeacher(blocker,data);
+        System.out.println("setting up expt: "+learner+" "+candidates.getBlockerName()+" file: "+candidates.getData().getFilename());
+        StringDistanceTeacher teacher = new BasicTeacher(candidates);
 
         long startTime = System.currentTimeMillis();
         StringDistance dist = teacher.train(learner);
@@ -46,25 +73,45 @@ public class MatchExpt
 
         System.out.println("distance is '"+dist+"'");
 
+        this.candidates = candidates;
+        blockingTime = candidates.getBlockingTime();
+        numCorrectPairs = candidates.numCorrectPairs();
         startTime = System.currentTimeMillis();
-        blocker.block(data);
-        blockingTime = (System.currentTimeMillis()-startTime)/1000.0;
-
-        numCorrectPairs = blocker.numCorrectPairs();
-        pairs = new Blocker.Pair[blocker.size()];
-        startTime = System.currentTimeMillis();
-        System.out.println("Pairs: "+pairs.length+" Correct: "+blocker.numCorrectPairs());
-        for (int i=0; i<blocker.size(); i++) {
-	    pairs[i] = blocker.getPair(i);
-	    pairs[i].setDistance( dist.score( pairs[i].getA(), pairs[i].getB() ) ); 
-        }
+        System.out.println("Pairs: "+candidates.size()+" Correct: "+numCorrectPairs);
+        scores = scorer.score( dist, candidates );
         matchingTime = (System.currentTimeMillis()-startTime)/1000.0;
 
         startTime = System.currentTimeMillis();
-        Arrays.sort( pairs );
+        rank = rank( scores );
         sortingTime = (System.currentTimeMillis()-startTime)/1000.0;
         System.out.println("Matching time: "+matchingTime);
     }
+
+    // the numbers of the pairs, from best score to worst; like
+    // Arrays.sort on Pairs, this leaves pairs with equal scores in
+    // the order they were blocked in
+    private static int[] rank(double[] scores)
+    {
+        int[] order = new int[scores.length];
+        for (int i=0; i<order.length; i++) order[i] = i;
+        mergeSort( order, new int[order.length], scores, 0, order.length );
+        return order;
+    }
+
+    private static void mergeSort(int[] order,int[] tmp,double[] scores,int lo,int hi)
+    {
+        if (hi-lo<2) return;
+        int mid = (lo+hi) >>> 1;
+        mergeSort( order, tmp, scores, lo, mid );
+        mergeSort( order, tmp, scores, mid, hi );
+        System.arraycopy( order, lo, tmp, lo, hi-lo );
+        int i = lo, j = mid;
+        for (int k=lo; k<hi; k++) {
+            // take from the second half only on a strictly better score
+            if (j<hi && (i>=mid || scores[tmp[j]]>scores[tmp[i]])) order[k] = tmp[j++];
+            else order[k] = tmp[i++];
+        }
+    }
 	
     /** Return total time to process data. */
     public Double time() { 
@@ -73,7 +120,7 @@ public class MatchExpt
 
     /** Return total time to process data, divided by the number of pairs */
     public Double pairsPerSecond() {
-        return new Double( pairs.length / (learningTime+blockingTime+matchingTime+sortingTime) );
+        return new Double( rank.length / (learningTime+blockingTime+matchingTime+sortingTime) );
     }
 
     /** non-interpolated average precision */
@@ -81,7 +128,7 @@ public class MatchExpt
     {
         double n = 0;
         double sumPrecision = 0;
-        for (int i=0; i<pairs.length; i++) {
+        for (int i=0; i<rank.length; i++) {
             if (correctPair(i)) {
                 n++;
                 double precisionAtRankI = n/(i+1.0);
@@ -96,7 +143,7 @@ public class MatchExpt
     {
         double maxF1 = -Double.MAX_VALUE;
         double n = 0;
-        for (int i=0; i<pairs.length; i++) {
+        for (int i=0; i<rank.length; i++) {
             if (correctPair(i)) {
                 n++;
                 double precisionAtRankI = n/(i+1.0);
@@ -114,7 +161,7 @@ public class MatchExpt
     public Double blockerRecall()
     {
         double n = 0;
-        for (int i=0; i<pairs.length; i++) {
+        for (int i=0; i<rank.length; i++) {
             if (correctPair(i)) {
                 n++;
             }
@@ -136,7 +183,7 @@ public class MatchExpt
     {
         double[] interpolatedPrecision = new double[11];
         int numCorrectAtRankI = 0;
-        for (int i=0; i<pairs.length; i++) {
+        for (int i=0; i<rank.length; i++) {
             if (correctPair(i)) ++numCorrectAtRankI;
             double recall = numCorrectAtRankI/((double)numCorrectPairs);
             double precision = numCorrectAtRankI/(i+1.0);
@@ -153,10 +200,10 @@ public class MatchExpt
     public void graphPrecisionRecall(PrintStream out) throws IOException 
     {
         /** find interpolated precision - max precision at any rank point after i */
-        double[] interpolatedPrecision = new double[pairs.length];
+        double[] interpolatedPrecision = new double[rank.length];
         double n = numCorrectPairs;
-        double maxPrecision = n/pairs.length;
-        for (int i=pairs.length-1; i>=0; i--) {
+        double maxPrecision = n/rank.length;
+        for (int i=rank.length-1; i>=0; i--) {
             if (correctPair(i)) {
                 interpolatedPrecision[i] = maxPrecision;
                 n--;
@@ -165,7 +212,7 @@ public class MatchExpt
         }
         /** plot points on the graph */
         n = 0;
-        for (int i=0; i<pairs.length; i++) {
+        for (int i=0; i<rank.length; i++) {
             if (correctPair(i)) {
                 n++;
                 double recallAtRankI = n/numCorrectPairs;
@@ -180,20 +227,16 @@ public class MatchExpt
     public void displayResults(boolean showMismatches,PrintStream out) throws IOException 
     {
         PrintfFormat fmt = new PrintfFormat("%s %3d %7.2f | %30s | %30s\n");
-        for (int i=0; i<pairs.length; i++) {
-            if (pairs[i]!=null) {
-                String label = pairs[i].isCorrect() ? "+" : "-";
-                String aText = (pairs[i].getA()==null) ? "***" : pairs[i].getA().unwrap();
-                String bText = (pairs[i].getB()==null) ? "***" : pairs[i].getB().unwrap();
-                if (showMismatches || "+".equals(label)) {
-                    out.print( fmt.sprintf( new Object[] { 
-                                label,
-                                new Integer(i+1),
-                                new Double(pairs[i].getDistance()),
-                                aText,
-                                bText
-                            }));
-                }
+        for (int i=0; i<rank.length; i++) {
+            String label = correctPair(i) ? "+" : "-";
+            if (showMismatches || "+".equals(label)) {
+                out.print( fmt.sprintf( new Object[] { 
+                            label,
+                            new Integer(i+1),
+                            new Double(scores[rank[i]]),
+                            candidates.getA(rank[i]).unwrap(),
+                            candidates.getB(rank[i]).unwrap()
+                        }));
             }
         }
     }
@@ -203,16 +246,12 @@ public class MatchExpt
     public void dumpResultsAsStrings(PrintStream out) throws IOException 
     {
         PrintfFormat fmt = new PrintfFormat("%7.2f\t%s\t%s\n");
-        for (int i=0; i<pairs.length; i++) {
-            if (pairs[i]!=null) {
-                String aText = (pairs[i].getA()==null) ? "***" : ((MatchData.Instance)pairs[i].getA()).unwrap();
-                String bText = (pairs[i].getB()==null) ? "***" : ((MatchData.Instance)pairs[i].getB()).unwrap();
-                out.print( fmt.sprintf( new Object[] { 
-                            new Double(pairs[i].getDistance()),
-                            aText,
-                            bText
-                        }));
-            }
+        for (int i=0; i<rank.length; i++) {
+            out.print( fmt.sprintf( new Object[] { 
+                        new Double(scores[rank[i]]),
+                        candidates.getA(rank[i]).unwrap(),
+                        candidates.getB(rank[i]).unwrap()
+                    }));
         }
     }
     
@@ -221,23 +260,19 @@ public class MatchExpt
     public void dumpResultsAsIds(PrintStream out) throws IOException 
     {
         PrintfFormat fmt = new PrintfFormat("%7.2f\t%s\t%s\n");
-        for (int i=0; i<pairs.length; i++) {
-            if (pairs[i]!=null) {
-                String aText = (pairs[i].getA()==null) ? "***" : ((MatchData.Instance)pairs[i].getA()).getId();
-                String bText = (pairs[i].getB()==null) ? "***" : ((MatchData.Instance)pairs[i].getB()).getId();
-                out.print( fmt.sprintf( new Object[] { 
-                            new Double(pairs[i].getDistance()),
-                            aText,
-                            bText
-                        }));
-            }
+        for (int i=0; i<rank.length; i++) {
+            out.print( fmt.sprintf( new Object[] { 
+                        new Double(scores[rank[i]]),
+                        candidates.getA(rank[i]).getId(),
+                        candidates.getB(rank[i]).getId()
+                    }));
         }
     }
 
     //
-    // utility - since after a restore, incorrect pairs are saved as nulls
+    // utility - is the pair ranked i-th correct
     //
-    private boolean correctPair(int i) { return pairs[i]!=null && pairs[i].isCorrect(); }
+    private boolean correctPair(int i) { return candidates.isCorrect(rank[i]); }
 
     static public String[] commands = "-display -dump -dumpIds -shortDisplay -graph -summarize".split(" ");
     static public boolean commandSupported(String cmd) {
@@ -19,6 +19,8 @@ import java.lang.reflect.*;
  * <li>show blockers, show learners, show datasets
  * <p>
  * <li>compute: compute pairwise learners for using all declared blockers, learners, datasets
+ * <li>threads N: score candidate pairs in 'compute' with N threads (by default, about one per processor)
+ * <li>stream on, stream off: in 'compute', collect candidate pairs as the blockers stream them, so that the blockers never hold them all (off by default)
  * <li>table maxF1, table averagePrecision, table time, table blockerRecall: show summary performance tables
  * <li>precisionRecall: show precision-recall curves (11-pt interpolated, 
  * plus non-interpolated average precision.)
@@ -42,6 +44,8 @@ public class MatchExptScript
 	private MatchExpt[][][] expt;
 	private boolean echoCommands;
 	private boolean computable;
+	private PairScorer scorer;
+	private boolean streamPairs;
 
 	public MatchExptScript() 
 	{
@@ -54,6 +58,7 @@ public class MatchExptScript
 		expt = null;
 		echoCommands = true;
 		computable = true;
+		scorer = new PairScorer();
 	}
 
 	//
@@ -99,6 +104,24 @@ public class MatchExptScript
 		echoCommands = "on".equals(onOrOff);
 	}
 
+	/** Set the number of threads used to score candidate pairs.  The
+	 * pool of threads set before, if any, is shut down. */
+	public void threads(String numThreads) 
+	{
+		PairScorer old = scorer;
+		scorer = new PairScorer(Integer.parseInt(numThreads));
+		old.shutdown();
+	}
+
+	/** Collect the candidate pairs of each dataset in 'compute' as
+	 * the blockers stream them, rather than having the blockers
+	 * block the dataset and hold its pairs.  Either way, each dataset
+	 * is blocked once and its pairs are shared by the learners. */
+	public void stream(String onOrOff) 
+	{ 
+		streamPairs = "on".equals(onOrOff);
+	}
+
 	/** Load a dataset. */
 	public void dataset(String dataFile) throws MatchData.InputFormatException 
 	{	
@@ -156,11 +179,13 @@ public class MatchExptScript
 		expt = new MatchExpt[blockers.size()][learners.size()][datasets.size()];
 		for (int i=0; i<blockers.size(); i++) {
 			Blocker blocker = (Blocker)blockers.get(i);
-			for (int j=0; j<learners.size(); j++) {
-				StringDistanceLearner distance = (StringDistanceLearner)learners.get(j);
-				for (int k=0; k<datasets.size(); k++) {
-					MatchData dataset = (MatchData)datasets.get(k);
-					expt[i][j][k] = new MatchExpt(dataset,distance,blocker);
+			for (int k=0; k<datasets.size(); k++) {
+				MatchData dataset = (MatchData)datasets.get(k);
+				// block each dataset once, and share the pairs among the learners
+				CandidatePairs candidates = new CandidatePairs(blocker,dataset,streamPairs);
+				for (int j=0; j<learners.size(); j++) {
+					StringDistanceLearner distance = (StringDistanceLearner)learners.get(j);
+					expt[i][j][k] = new MatchExpt(candidates,distance,scorer);
 				}
 			}
 		}
@@ -0,0 +1,307 @@
+package com.wcohen.ss.expt;
+
+import com.wcohen.ss.api.*;
+import com.wcohen.ss.tokens.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Scores a batch of candidate pairs with a StringDistance, possibly
+ * in parallel.
+ *
+ * <p>The pairs are split into contiguous ranges that are scored as
+ * tasks on a fork-join pool, and the scores are written into a
+ * double[] parallel to the pairs, so the Pair objects themselves are
+ * never modified.  Scratch space for scoring is kept per thread by
+ * the distances themselves.  Scoring in parallel requires a distance
+ * whose score() method can be called from several threads at once.
+ *
+ * <p>Before scoring, each MatchData.Instance in the pairs is prepared
+ * once with the distance's prepare(StringWrapper), in parallel too,
+ * and the prepared forms are kept in an array indexed by instance
+ * index, so an instance that is in many pairs is tokenized and
+ * weighted only once by distances that support it.
+ *
+ * <p>A stream of pairs, such as Blocker.pairSpliterator() produces,
+ * can also be scored, a batch at a time.
+ */
+
+public class PairScorer
+{
+    // number of pairs scored by a single task
+    private static final int BATCH_SIZE = 256;
+    // number of pairs taken from a stream and scored together
+    private static final int STREAM_BATCH_SIZE = 1<<16;
+
+    // null means that pairs are scored on the calling thread
+    private final ForkJoinPool pool;
+    // true if the pool was made by this scorer, and so is shut down by it
+    private final boolean ownsPool;
+
+    /** Score pairs on a pool of the given number of threads.  With
+     * one thread (or less), pairs are scored on the calling thread.
+     * The pool belongs to this scorer, and is shut down by shutdown().
+     */
+    public PairScorer(int numThreads)
+    {
+        this.pool = numThreads>1 ? new ForkJoinPool(numThreads) : null;
+        this.ownsPool = true;
+    }
+
+    /** Score pairs on the given pool, which belongs to the caller. */
+    public PairScorer(ForkJoinPool pool)
+    {
+        this.pool = pool;
+        this.ownsPool = false;
+    }
+
+    /** Score pairs on the common fork-join pool, which has about one
+     * thread per available processor. */
+    public PairScorer()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /** Number of threads used for scoring. */
+    public int getParallelism()
+    {
+        return pool==null ? 1 : pool.getParallelism();
+    }
+
+    /** Shut down the pool made by PairScorer(numThreads), once the
+     * pairs already being scored are done.  The scorer can't be used
+     * afterwards.  A pool given by the caller is left running.
+     */
+    public void shutdown()
+    {
+        if (ownsPool && pool!=null) pool.shutdown();
+    }
+
+    /** The candidate pairs produced by the most recent call to
+     * blocker.block(). */
+    public static Blocker.Pair[] pairs(Blocker blocker)
+    {
+        Blocker.Pair[] pairs = new Blocker.Pair[blocker.size()];
+        for (int i=0; i<pairs.length; i++) {
+            pairs[i] = blocker.getPair(i);
+        }
+        return pairs;
+    }
+
+    /** Score the candidate pairs produced by the most recent call to
+     * blocker.block().  The i-th score is for blocker.getPair(i).
+     */
+    public double[] score(StringDistance dist,Blocker blocker)
+    {
+        return score(dist, pairs(blocker));
+    }
+
+    /** Score candidate pairs.  The i-th score is for candidates.getPair(i).
+     * Pairs are made and scored a batch at a time, so that only the
+     * scores are held for all of them.
+     */
+    public double[] score(StringDistance dist,CandidatePairs candidates)
+    {
+        final double[] scores = new double[candidates.size()];
+        score(dist, candidates.spliterator(), new Consumer() {
+                private int i = 0;
+                public void accept(Object pair) { scores[i++] = ((Blocker.Pair)pair).getDistance(); }
+            });
+        return scores;
+    }
+
+    /** Score each pair, returning an array with the i-th score for pairs[i]. */
+    public double[] score(StringDistance dist,Blocker.Pair[] pairs)
+    {
+        Prepared prepared = prepare(dist, pairs);
+        double[] scores = new double[pairs.length];
+        if (pool==null || pairs.length<=BATCH_SIZE) {
+            scoreRange(dist, pairs, prepared, scores, 0, pairs.length);
+        } else {
+            pool.invoke(new ScoreTask(dist, pairs, prepared, scores, 0, pairs.length));
+        }
+        return scores;
+    }
+
+    /** Score a stream of pairs in batches, setting the distance of
+     * each pair, and then passing it to the action, in the order of
+     * the stream.  Only one batch of pairs is held at a time, and each
+     * MatchData.Instance is prepared once, in the first batch that has
+     * a pair containing it.
+     */
+    public void score(StringDistance dist,Spliterator pairs,Consumer action)
+    {
+        Iterator it = Spliterators.iterator(pairs);
+        Prepared prepared = new Prepared();
+        Blocker.Pair[] batch = new Blocker.Pair[STREAM_BATCH_SIZE];
+        double[] scores = new double[STREAM_BATCH_SIZE];
+        while (it.hasNext()) {
+            int n = 0;
+            while (n<batch.length && it.hasNext()) batch[n++] = (Blocker.Pair)it.next();
+            prepare(dist, batch, n, prepared);
+            if (pool==null || n<=BATCH_SIZE) {
+                scoreRange(dist, batch, prepared, scores, 0, n);
+            } else {
+                pool.invoke(new ScoreTask(dist, batch, prepared, scores, 0, n));
+            }
+            for (int i=0; i<n; i++) {
+                batch[i].setDistance( scores[i] );
+                action.accept( batch[i] );
+                batch[i] = null;
+            }
+        }
+    }
+
+    // prepare each MatchData.Instance in the pairs with dist
+    private Prepared prepare(StringDistance dist,Blocker.Pair[] pairs)
+    {
+        Prepared prepared = new Prepared();
+        prepare(dist, pairs, pairs.length, prepared);
+        return prepared;
+    }
+
+    // prepare each MatchData.Instance in pairs[0]...pairs[n-1] that
+    // hasn't been prepared already
+    private void prepare(StringDistance dist,Blocker.Pair[] pairs,int n,Prepared prepared)
+    {
+        int m = 0;
+        for (int i=0; i<n; i++) {
+            m = Math.max(m, index(pairs[i].getA())+1);
+            m = Math.max(m, index(pairs[i].getB())+1);
+        }
+        prepared.ensureCapacity(m);
+        IntArrayList added = new IntArrayList();
+        for (int i=0; i<n; i++) {
+            prepared.add( pairs[i].getA(), added );
+            prepared.add( pairs[i].getB(), added );
+        }
+        int[] ks = added.toArray();
+        if (pool==null || ks.length<=BATCH_SIZE) {
+            prepareRange(dist, prepared, ks, 0, ks.length);
+        } else {
+            pool.invoke(new PrepareTask(dist, prepared, ks, 0, ks.length));
+        }
+    }
+
+    // the index of a wrapper that is a MatchData.Instance, or -1
+    private static int index(StringWrapper w)
+    {
+        return (w instanceof MatchData.Instance) ? ((MatchData.Instance)w).getIndex() : -1;
+    }
+
+    // instances, and their prepared forms, indexed by instance index
+    private static class Prepared
+    {
+        StringWrapper[] instances = new StringWrapper[0];
+        StringWrapper[] prepared = new StringWrapper[0];
+
+        void ensureCapacity(int n)
+        {
+            if (n>instances.length) {
+                n = Math.max(n, 2*instances.length);
+                instances = Arrays.copyOf(instances, n);
+                prepared = Arrays.copyOf(prepared, n);
+            }
+        }
+
+        // if two instances have the same index (which happens only if
+        // they are from different MatchData's), the second is left
+        // unprepared; the index of a new instance is added to 'added'
+        void add(StringWrapper w,IntArrayList added)
+        {
+            int k = index(w);
+            if (k>=0 && instances[k]==null) {
+                instances[k] = w;
+                added.add(k);
+            }
+        }
+
+        // the prepared form of w, if it has one, or else w
+        StringWrapper get(StringWrapper w)
+        {
+            int k = index(w);
+            return k>=0 && k<instances.length && instances[k]==w ? prepared[k] : w;
+        }
+    }
+
+    // prepare the instances with indices ks[lo]...ks[hi-1]
+    private static void prepareRange(StringDistance dist,Prepared prepared,int[] ks,int lo,int hi)
+    {
+        for (int p=lo; p<hi; p++) {
+            int k = ks[p];
+            prepared.prepared[k] = dist.prepare( prepared.instances[k] );
+        }
+    }
+
+    private static void scoreRange(StringDistance dist,Blocker.Pair[] pairs,Prepared prepared,double[] scores,int lo,int hi)
+    {
+        for (int i=lo; i<hi; i++) {
+            scores[i] = dist.score( prepared.get(pairs[i].getA()), prepared.get(pairs[i].getB()) );
+        }
+    }
+
+    public String toString() { return "[PairScorer:threads="+getParallelism()+"]"; }
+
+    // score pairs lo...hi-1, splitting the range in half until it is small
+    private static class ScoreTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1;
+        private final StringDistance dist;
+        private final Blocker.Pair[] pairs;
+        private final Prepared prepared;
+        private final double[] scores;
+        private final int lo, hi;
+
+        ScoreTask(StringDistance dist,Blocker.Pair[] pairs,Prepared prepared,double[] scores,int lo,int hi)
+        {
+            this.dist = dist;
+            this.pairs = pairs;
+            this.prepared = prepared;
+            this.scores = scores;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute()
+        {
+            if (hi-lo<=BATCH_SIZE) {
+                scoreRange(dist, pairs, prepared, scores, lo, hi);
+            } else {
+                int mid = (lo+hi) >>> 1;
+                invokeAll(new ScoreTask(dist, pairs, prepared, scores, lo, mid),
+                          new ScoreTask(dist, pairs, prepared, scores, mid, hi));
+            }
+        }
+    }
+
+    // prepare the instances with indices ks[lo]...ks[hi-1], splitting the range in half until it is small
+    private static class PrepareTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1;
+        private final StringDistance dist;
+        private final Prepared prepared;
+        private final int[] ks;
+        private final int lo, hi;
+
+        PrepareTask(StringDistance dist,Prepared prepared,int[] ks,int lo,int hi)
+        {
+            this.dist = dist;
+            this.prepared = prepared;
+            this.ks = ks;
+            this.lo = lo;
+            this.hi = hi;
+        }
+
+        protected void compute()
+        {
+            if (hi-lo<=BATCH_SIZE) {
+                prepareRange(dist, prepared, ks, lo, hi);
+            } else {
+                int mid = (lo+hi) >>> 1;
+                invokeAll(new PrepareTask(dist, prepared, ks, lo, mid),
+                          new PrepareTask(dist, prepared, ks, mid, hi));
+            }
+        }
+    }
+}
@@ -25,14 +25,19 @@ public class SpecialMatchExpt
     private String fileName,learnerName,blockerName;
     private StringDistance learnedDistance;
 
-    public SpecialMatchExpt(MatchData data,StringDistanceLearner learner,Blocker blocker,boolean useTrueClusters,String moreNamesFile,String similarTokenFile,boolean untrained) 
+    public SpecialMatchExpt(MatchData data,StringDistanceLearner learner,Blocker blocker,boolean useTrueClusters,String moreNamesFile,String similarTokenFile,boolean untrained,PairScorer scorer) 
         throws IOException 
     { 
-        setUpFixedExperiment(data,learner,blocker,useTrueClusters,moreNamesFile,similarTokenFile,untrained);
+        setUpFixedExperiment(data,learner,blocker,useTrueClusters,moreNamesFile,similarTokenFile,untrained,scorer);
         fileName = data.getFilename();
         learnerName = learner.toString();
         blockerName = blocker.toString();
     }
+    public SpecialMatchExpt(MatchData data,StringDistanceLearner learner,Blocker blocker,boolean useTrueClusters,String moreNamesFile,String similarTokenFile,boolean untrained) 
+        throws IOException 
+    { 
+        this(data,learner,blocker,useTrueClusters,moreNamesFile,similarTokenFile,untrained,new PairScorer());
+    }
     public String toString() { return "[SpecialMatchExpt.java: "+fileName+","+learnerName+","+blockerName+"]"; };
 	
     public StringDistance getLearnedDistance() { return learnedDistance; }
@@ -78,11 +83,12 @@ public class SpecialMatchExpt
         System.out.println("** DFs set by true clusters **");
     }
 
-    private void setUpFixedExperiment(MatchData data,StringDistanceLearner learner,Blocker blocker,boolean useTrueClusters,String moreNamesFile,String similarTokenFile,boolean untrained) 
+    private void setUpFixedExperiment(MatchData data,StringDistanceLearner learner,Blocker blocker,boolean useTrueClusters,String moreNamesFile,String similarTokenFile,boolean untrained,PairScorer scorer) 
         throws IOException
     {
         System.out.println("setting up expt: "+learner+" "+blocker+" file: "+data.getFilename());
-        StringDistanceTeacher teacher = new BasicTeacher(blocker,data);
+        CandidatePairs candidates = new CandidatePairs(blocker,data);
+        StringDistanceTeacher teacher = new BasicTeacher(candidates);
 
         long startTime = System.currentTimeMillis();
         learnedDistance = teacher.train(learner);
@@ -142,17 +148,14 @@ public class SpecialMatchExpt
         learningTime = (System.currentTimeMillis()-startTime)/1000.0;
         System.out.println("distance is '"+learnedDistance+"'");
 
+        blockingTime = candidates.getBlockingTime();
+        numCorrectPairs = candidates.numCorrectPairs();
+        pairs = candidates.newPairs();
         startTime = System.currentTimeMillis();
-        blocker.block(data);
-        blockingTime = (System.currentTimeMillis()-startTime)/1000.0;
-
-        numCorrectPairs = blocker.numCorrectPairs();
-        pairs = new Blocker.Pair[blocker.size()];
-        startTime = System.currentTimeMillis();
-        System.out.println("Pairs: "+pairs.length+" Correct: "+blocker.numCorrectPairs());
-        for (int i=0; i<blocker.size(); i++) {
-	    pairs[i] = blocker.getPair(i);
-	    pairs[i].setDistance( learnedDistance.score( pairs[i].getA(), pairs[i].getB() ) ); 
+        System.out.println("Pairs: "+pairs.length+" Correct: "+numCorrectPairs);
+        double[] scores = scorer.score( learnedDistance, pairs );
+        for (int i=0; i<pairs.length; i++) {
+	    pairs[i].setDistance( scores[i] ); 
         }
         matchingTime = (System.currentTimeMillis()-startTime)/1000.0;
 
@@ -3,9 +3,28 @@ package com.wcohen.ss.expt;
 import com.wcohen.ss.api.*;
 import com.wcohen.ss.tokens.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 /**
  * Finds all pairs that share a not-too-common token.
+ *
+ * <p>The smaller source is indexed in two passes: the first counts
+ * the number of instances each token is in, and the second fills an
+ * int[] of instance numbers for each token that isn't too common.
+ * Then the instances of the bigger source are split into ranges,
+ * which are probed against the index in parallel on a fork-join pool.
+ * Each range marks the indexed instances it has already paired with
+ * the current instance in an int[], stamped with the number of that
+ * instance, so the marks never need to be cleared.  Pairs come out
+ * in the same order as if the instances were probed one at a time.
+ * Before probing in parallel, the tokens of the bigger source are
+ * interned in order, so tokens are numbered the same way whatever
+ * the number of threads, and so are the token-sorted bags of the
+ * distances that later score the pairs.
+ *
+ * <p>The pairs can also be streamed with pairSpliterator(), which
+ * probes the index lazily, and never holds all the pairs at once.
  */
 
 public class TokenBlocker extends Blocker 
@@ -20,12 +39,17 @@ public class TokenBlocker extends Blocker
 		}
 	}
 
-	private static final Set STOPWORD_TOKEN_MARKER = new HashSet();
+	// instances of the bigger source probed by a single task, at least
+	private static final int MIN_RANGE_SIZE = 256;
 
 	private ArrayList pairList;
 	protected Tokenizer tokenizer;
 	private double maxFraction;
 	private int numCorrectPairs;
+	// null means that the bigger source is probed on the calling thread
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	// the pool made by setBlockingThreads, if blocking still uses it
+	private ForkJoinPool ownPool = null;
 
 	public TokenBlocker(Tokenizer tokenizer, double maxFraction) {
 		this.tokenizer = tokenizer;
@@ -37,10 +61,82 @@ public class TokenBlocker extends Blocker
 	public double getMaxFraction() { return maxFraction; }
 	public void setMaxFraction(double maxFraction) { this.maxFraction = maxFraction; }
 
+	/** Probe the index with the given number of threads.  With one
+	 * thread (or less), the index is probed on the calling thread.  A
+	 * pool made by an earlier call is shut down, once the work given
+	 * to it is done. */
+	public void setBlockingThreads(int numThreads) 
+	{ 
+		ForkJoinPool pool = numThreads>1 ? new ForkJoinPool(numThreads) : null;
+		setBlockingPool(pool);
+		this.ownPool = pool;
+	}
+
+	/** Probe the index on the given pool, or on the calling thread if
+	 * pool is null.  The pool belongs to the caller, but a pool made
+	 * by setBlockingThreads is shut down. */
+	public void setBlockingPool(ForkJoinPool pool) 
+	{ 
+		if (ownPool!=null) ownPool.shutdown();
+		this.ownPool = null;
+		this.pool = pool; 
+	}
+
+	/** Number of threads used to probe the index. */
+	public int getBlockingThreads() { return pool==null ? 1 : pool.getParallelism(); }
+
 	public void block(MatchData data) 
 	{
+		String[] sources = sources(data);
+		numCorrectPairs = countCorrectPairs(data);
+		Index index = new Index(data, sources[0]);
+
+		// find pairs
+		int n = data.numInstances(sources[1]);
+		int numParts = pool==null ? 1 : Math.max(1, Math.min( 4*getBlockingThreads(), n/MIN_RANGE_SIZE ));
+		ArrayList[] parts = new ArrayList[numParts];
+		long[] last = new long[] { System.currentTimeMillis() };
+		if (numParts==1) {
+			parts[0] = new ProbeSpliterator(data, index, sources[1], 0, n, last).drain();
+		} else {
+			if (!sources[1].equals(sources[0])) internTokens(data, sources[1]);
+			pool.invoke(new ProbeTask(data, index, sources[1], parts, last, 0, numParts));
+		}
+		int numPairs = 0;
+		for (int k=0; k<numParts; k++) numPairs += parts[k].size();
+		pairList = new ArrayList(numPairs);
+		for (int k=0; k<numParts; k++) {
+			pairList.addAll( parts[k] );
+			parts[k] = null;
+		}
+	}
+
+	/** Stream the candidate pairs.  The index of the smaller source
+	 * is built, and the tokens of the bigger source are interned in
+	 * order, before this returns, but the bigger source is only
+	 * probed as pairs are asked for, so only the pairs of one probing
+	 * instance are held at a time.  Since the tokens are interned
+	 * first, they are numbered the same way however the spliterator
+	 * is split.
+	 */
+	public Spliterator pairSpliterator(MatchData data)
+	{
+		String[] sources = sources(data);
 		numCorrectPairs = countCorrectPairs(data);
-		pairList = new ArrayList();
+		pairList = null;
+		Index index = new Index(data, sources[0]);
+		if (!sources[1].equals(sources[0])) internTokens(data, sources[1]);
+		long[] last = new long[] { System.currentTimeMillis() };
+		return new ProbeSpliterator(data, index, sources[1], 0, data.numInstances(sources[1]), last);
+	}
+
+	/** The source to index and the source to probe it with, in that
+	 * order.  Each instance of the probing source is paired with the
+	 * indexed instances that share a token with it, and if the
+	 * sources are the same, each pair is found once.
+	 */
+	protected String[] sources(MatchData data)
+	{
 		if (!clusterMode && data.numSources()!=2) 
 			throw new IllegalArgumentException("need exactly two sources out of clusterMode");
 		if (clusterMode && data.numSources()!=1) 
@@ -52,85 +148,253 @@ public class TokenBlocker extends Blocker
 			smallSource = bigSource;
 			bigSource = tmp;
 		}
-		// index the smaller source
-		double maxSetSize = data.numInstances(smallSource)*maxFraction;
-		long last = System.currentTimeMillis();
-		Map index = new TreeMap();
-		for (int i=0; i<data.numInstances(smallSource); i++) {
-			Token[] tokens = tokenizer.tokenize( data.getInstance(smallSource,i).unwrap() );
-			for (int j=0; j<tokens.length; j++) {
-				Set containers = (Set)index.get(tokens[j]);
-				if (containers==STOPWORD_TOKEN_MARKER) {
-					/* do nothing */;
-				} else if (containers==null) {
-					containers = new TreeSet();
-					index.put(tokens[j], containers);
-				} 
-				containers.add( new Integer(i) );
-				// mark this if it's too full
-				if (containers.size() > maxSetSize) {  
-					index.put(tokens[j], STOPWORD_TOKEN_MARKER);						
-				} 
-			}
-			long now = System.currentTimeMillis();
-			if (now-last > 10000) {
-				System.err.println("TokenBlocker: "+i+" instances indexed...");
-				last = now;
+		return new String[] { smallSource, bigSource };
+	}
+
+	/** Pairs instances lo...hi-1 of the probing source with the
+	 * indexed instances, one probing instance at a time. */
+	private class ProbeSpliterator implements Spliterator
+	{
+		private final MatchData data;
+		private final Index index;
+		private final String probingSource;
+		private final boolean sameSource;
+		private final long[] last;
+		// the next probing instance, and the end of the range
+		private int next;
+		private final int hi;
+		// pairedUp[k]==i+1 if indexed instance k has been paired with instance i
+		private int[] pairedUp;
+		private final IntArrayList ids = new IntArrayList();
+		// pairs of the last probing instance not yet consumed
+		private final ArrayList pending = new ArrayList();
+		private int pendingPos = 0;
+
+		ProbeSpliterator(MatchData data,Index index,String probingSource,int lo,int hi,long[] last)
+		{
+			this.data = data;
+			this.index = index;
+			this.probingSource = probingSource;
+			this.sameSource = index.source.equals(probingSource);
+			this.last = last;
+			this.next = lo;
+			this.hi = hi;
+		}
+
+		public boolean tryAdvance(Consumer action)
+		{
+			while (pendingPos==pending.size()) {
+				if (next>=hi) return false;
+				pending.clear();
+				pendingPos = 0;
+				pairUp(next++, pending);
 			}
+			action.accept( pending.get(pendingPos++) );
+			return true;
 		}
-		//System.out.println("data:\n"+data); showIndex(index);
-		// find pairs
-		long minilast=last;
-		Set pairedUpInstances = new TreeSet();
-		for (int i=0; i<data.numInstances(bigSource); i++) {
-			MatchData.Instance bigInst = data.getInstance(bigSource,i);
-			pairedUpInstances.clear();
-			Token[] tokens = tokenizer.tokenize( bigInst.unwrap() );			
-			for (int j=0; j<tokens.length; j++) {			
-				Set containers = (Set)index.get( tokens[j] );
-				if (containers!=null && containers!=STOPWORD_TOKEN_MARKER) {
-					for (Iterator k=containers.iterator(); k.hasNext(); ) {
-						Integer smallIndexInteger = (Integer)k.next();
-						int smallIndex = smallIndexInteger.intValue();
-						if (!pairedUpInstances.contains(smallIndexInteger) && 
-								(smallSource!=bigSource || smallIndex>i))
-						{
-							MatchData.Instance smallInst = data.getInstance(smallSource, smallIndex);
-							pairList.add( new Blocker.Pair( bigInst, smallInst, smallInst.sameId(bigInst) ));
-							pairedUpInstances.add( smallIndexInteger );
-						}
+
+		// split off the first half of the probing instances not yet
+		// started on, unless some pairs of an instance are pending
+		public Spliterator trySplit()
+		{
+			if (pendingPos<pending.size() || hi-next<2*MIN_RANGE_SIZE) return null;
+			int mid = (next+hi) >>> 1;
+			Spliterator prefix = new ProbeSpliterator(data, index, probingSource, next, mid, last);
+			next = mid;
+			return prefix;
+		}
+
+		public long estimateSize() { return Long.MAX_VALUE; }
+
+		public int characteristics() { return ORDERED | NONNULL; }
+
+		/** All the remaining pairs. */
+		ArrayList drain()
+		{
+			ArrayList pairs = new ArrayList();
+			while (pendingPos<pending.size()) pairs.add( pending.get(pendingPos++) );
+			while (next<hi) pairUp(next++, pairs);
+			return pairs;
+		}
+
+		// add the pairs of probing instance i to pairs
+		private void pairUp(int i,List pairs)
+		{
+			if (pairedUp==null) pairedUp = new int[index.numInstances];
+			MatchData.Instance probeInst = data.getInstance(probingSource,i);
+			ids.clear();
+			tokenIds(probeInst.unwrap(), ids);
+			for (int j=0; j<ids.size(); j++) {
+				int t = ids.get(j);
+				if (t>=index.numTokens) continue;
+				int start = index.postingStart[t], end = index.postingStart[t+1];
+				// when the sources are the same, only pair i with later instances
+				if (sameSource) start = firstAbove(index.postings, start, end, i);
+				for (int k=start; k<end; k++) {
+					int indexedNum = index.postings[k];
+					if (pairedUp[indexedNum]!=i+1) {
+						MatchData.Instance indexedInst = data.getInstance(index.source, indexedNum);
+						pairs.add( newPair( probeInst, indexedInst ));
+						pairedUp[indexedNum] = i+1;
 					}
-				}			
-				long now = System.currentTimeMillis();
-				if (now-minilast > 10000) {
-					System.err.print(".");
-					minilast = now;
 				}
 			}
 
 			long now = System.currentTimeMillis();
-			if (now-last > 10000) {
+			if (now-last[0] > 10000) {
 				System.err.println("TokenBlocker: "+i+" instances checked for pairs...");
-				last = minilast = now;
+				last[0] = now;
 			}
 		}
 	}
-	public int size() { return pairList.size();  }
-	public Pair getPair(int i) { return (Pair)pairList.get(i); }
-	public String toString() { return "[TokenBlocker:clusterMode="+clusterMode+",maxFraction="+maxFraction+"]"; }
-	public int numCorrectPairs() { return numCorrectPairs; }
 
-	private void showIndex(Map index) 
+	/** The candidate pair of an instance of the probing source and an
+	 * indexed instance that shares a token with it. */
+	protected Pair newPair(MatchData.Instance probeInst,MatchData.Instance indexedInst)
+	{
+		return new Blocker.Pair( probeInst, indexedInst, indexedInst.sameId(probeInst) );
+	}
+
+	// append the indices of the tokens of s to ids
+	private void tokenIds(String s,IntArrayList ids)
+	{
+		if (tokenizer instanceof StreamingTokenizer) {
+			((StreamingTokenizer)tokenizer).tokenize(s, ids);
+		} else {
+			Token[] tokens = tokenizer.tokenize(s);
+			for (int j=0; j<tokens.length; j++) ids.add( tokens[j].getIndex() );
+		}
+	}
+
+	// intern the tokens of the instances of a source in order
+	private void internTokens(MatchData data,String source)
+	{
+		IntArrayList ids = new IntArrayList();
+		for (int i=0; i<data.numInstances(source); i++) {
+			ids.clear();
+			tokenIds(data.getInstance(source,i).unwrap(), ids);
+		}
+	}
+
+	// the first position from start to end-1 of the sorted array with
+	// a value greater than v, or end if there is none
+	private static int firstAbove(int[] sorted,int start,int end,int v)
+	{
+		while (start<end) {
+			int mid = (start+end) >>> 1;
+			if (sorted[mid]<=v) start = mid+1;
+			else end = mid;
+		}
+		return start;
+	}
+
+	/** The instances of a source that contain each token, in CSR
+	 * form, leaving out tokens in more than maxFraction of them.
+	 */
+	private class Index
 	{
-		for (Iterator i=index.keySet().iterator(); i.hasNext(); ) {
-			Token tok = (Token)i.next();
-			System.out.print(tok.toString());
-			Set containers = (Set)index.get( tok );
-			for (Iterator j=containers.iterator(); j.hasNext(); ) {
-				Integer k = (Integer)j.next();
-				System.out.print(" "+k);
+		final String source;
+		final int numInstances;
+		// tokens are numbered by their index, up to numTokens-1
+		int numTokens;
+		int[] postingStart;
+		int[] postings;
+
+		Index(MatchData data,String source)
+		{
+			this.source = source;
+			this.numInstances = data.numInstances(source);
+			double maxSetSize = numInstances*maxFraction;
+			long last = System.currentTimeMillis();
+			// tokenize each instance, and count the instances each token is in
+			IntArrayList ids = new IntArrayList();
+			int[] tokenStart = new int[numInstances+1];
+			int[] count = new int[1024];
+			int[] lastSeen = new int[1024];
+			for (int i=0; i<numInstances; i++) {
+				tokenIds(data.getInstance(source,i).unwrap(), ids);
+				tokenStart[i+1] = ids.size();
+				for (int j=tokenStart[i]; j<tokenStart[i+1]; j++) {
+					int t = ids.get(j);
+					if (t>=count.length) {
+						count = Arrays.copyOf(count, Math.max(2*count.length, t+1));
+						lastSeen = Arrays.copyOf(lastSeen, count.length);
+					}
+					if (lastSeen[t]!=i+1) {
+						lastSeen[t] = i+1;
+						count[t]++;
+					}
+				}
+				long now = System.currentTimeMillis();
+				if (now-last > 10000) {
+					System.err.println("TokenBlocker: "+i+" instances indexed...");
+					last = now;
+				}
+			}
+			// leave out tokens that are too common
+			numTokens = count.length;
+			postingStart = new int[numTokens+1];
+			for (int t=0; t<numTokens; t++) {
+				postingStart[t+1] = postingStart[t] + (count[t]>maxSetSize ? 0 : count[t]);
+			}
+			// fill the postings, which are sorted since instances are added in order
+			postings = new int[ postingStart[numTokens] ];
+			int[] fill = lastSeen;
+			System.arraycopy(postingStart, 0, fill, 0, numTokens);
+			for (int i=0; i<numInstances; i++) {
+				for (int j=tokenStart[i]; j<tokenStart[i+1]; j++) {
+					int t = ids.get(j);
+					if (fill[t]<postingStart[t+1] && (fill[t]==postingStart[t] || postings[fill[t]-1]!=i)) {
+						postings[ fill[t]++ ] = i;
+					}
+				}
 			}
-			System.out.println();
 		}
 	}
+
+	// the start of the given part of n items split into numParts parts
+	private static int partStart(int n,int numParts,int part)
+	{
+		return (int)((long)n*part/numParts);
+	}
+
+	// probes parts lo...hi-1 of the probing source, splitting them in half until there is one
+	private class ProbeTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1;
+		private final MatchData data;
+		private final Index index;
+		private final String probingSource;
+		private final ArrayList[] parts;
+		private final long[] last;
+		private final int lo, hi;
+
+		ProbeTask(MatchData data,Index index,String probingSource,ArrayList[] parts,long[] last,int lo,int hi)
+		{
+			this.data = data;
+			this.index = index;
+			this.probingSource = probingSource;
+			this.parts = parts;
+			this.last = last;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute()
+		{
+			if (hi-lo==1) {
+				int n = data.numInstances(probingSource);
+				parts[lo] = new ProbeSpliterator(data, index, probingSource, partStart(n, parts.length, lo), partStart(n, parts.length, lo+1), last).drain();
+			} else {
+				int mid = (lo+hi) >>> 1;
+				invokeAll(new ProbeTask(data, index, probingSource, parts, last, lo, mid),
+						new ProbeTask(data, index, probingSource, parts, last, mid, hi));
+			}
+		}
+	}
+
+	public int size() { return pairList.size();  }
+	public Pair getPair(int i) { return (Pair)pairList.get(i); }
+	public String toString() { return "[TokenBlocker:clusterMode="+clusterMode+",maxFraction="+maxFraction+"]"; }
+	public int numCorrectPairs() { return numCorrectPairs; }
 }
@@ -0,0 +1,446 @@
+package com.wcohen.ss.lookup;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import com.wcohen.ss.tokens.*;
+
+/**
+ * Caches the results of another FastLookup, such as a
+ * SoftTFIDFDictionary or RescoringSoftTFIDFDictionary.  Results are
+ * cached for each normalized query string and minScore, and the whole
+ * cache is dropped when the version of the inner FastLookup changes,
+ * that is, after a put or refreeze.  (A FastLookup that doesn't
+ * override getVersion() is taken never to change.)
+ *
+ * <p>The cache holds at most maxSize results.  With the LRU policy
+ * it evicts the result used least recently.  With the TINY_LFU policy
+ * (W-TinyLFU) new results enter a small LRU window, and a result
+ * leaving the window replaces the LRU result of the main cache only
+ * if its query has been seen more often recently, which keeps the
+ * results for frequent queries in the cache when most queries are
+ * rare.  Query frequencies are estimated with a count-min sketch
+ * that is halved periodically, so old counts fade.  Results can also
+ * be given a time to live.
+ *
+ * <p>lookupResults and lookupAll can be called from several threads
+ * at once, if the inner FastLookup allows that; the cache is locked
+ * only while it is read or changed, not during inner lookups.
+ */
+
+public class CachingFastLookup implements FastLookup
+{
+	/** Evict the least recently used result. */
+	public static final int LRU = 0;
+	/** Evict results with W-TinyLFU. */
+	public static final int TINY_LFU = 1;
+
+	private final FastLookup inner;
+	private final int policy;
+	private final int maxSize;
+	private final long timeToLiveNanos;
+
+	// the cache, and the version of the inner FastLookup it holds results for
+	private final Cache cache;
+	private long version;
+
+	// counters
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong expirations = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong hitNanos = new AtomicLong();
+	private final AtomicLong missNanos = new AtomicLong();
+
+	// stores items returned from the last call to 'lookup'
+	private List result;
+
+	/** Cache up to maxSize results of inner with W-TinyLFU, and no time to live. */
+	public CachingFastLookup(FastLookup inner,int maxSize)
+	{
+		this(inner,maxSize,TINY_LFU,0);
+	}
+
+	/** Cache up to maxSize results of inner, evicting them with the
+	 * given policy (LRU or TINY_LFU).  If timeToLiveSeconds is
+	 * positive, a result is dropped that many seconds after it was
+	 * cached.
+	 */
+	public CachingFastLookup(FastLookup inner,int maxSize,int policy,double timeToLiveSeconds)
+	{
+		if (maxSize<1) throw new IllegalArgumentException("maxSize must be positive: "+maxSize);
+		if (policy!=LRU && policy!=TINY_LFU) throw new IllegalArgumentException("unknown policy "+policy);
+		this.inner = inner;
+		this.maxSize = maxSize;
+		this.policy = policy;
+		this.timeToLiveNanos = timeToLiveSeconds>0 ? (long)(timeToLiveSeconds*1e9) : 0;
+		this.cache = policy==LRU ? (Cache)new LRUCache(maxSize) : new TinyLFUCache(maxSize);
+		this.version = inner.getVersion();
+	}
+
+	/** The FastLookup whose results are cached. */
+	public FastLookup getInner() { return inner; }
+
+	/** Normalize a query before it is looked up and cached.  This
+	 * trims it and replaces each run of white space with a single
+	 * space, which doesn't change the tokens a SoftTFIDFDictionary
+	 * finds in it.  Override this to normalize queries differently.
+	 */
+	protected String normalize(String toFind)
+	{
+		return toFind.trim().replaceAll("\\s+"," ");
+	}
+
+	public int lookup(double minScore,String toFind)
+	{
+		result = lookupResults(minScore,toFind);
+		return result.size();
+	}
+
+	public List lookupResults(double minScore,String toFind)
+	{
+		long start = System.nanoTime();
+		String query = normalize(toFind);
+		Key key = new Key(query,minScore);
+		long v = inner.getVersion();
+		List cached = get(key,v,start);
+		if (cached!=null) {
+			hits.incrementAndGet();
+			hitNanos.addAndGet(System.nanoTime()-start);
+			return cached;
+		}
+		List found = inner.lookupResults(minScore,query);
+		put(key,found,v);
+		misses.incrementAndGet();
+		missNanos.addAndGet(System.nanoTime()-start);
+		return found;
+	}
+
+	/** Lookup each of a list of strings, like lookupResults.  The
+	 * strings whose results are not cached are looked up with one
+	 * call to the lookupAll method of the inner FastLookup.
+	 */
+	public List lookupAll(List queries,double minScore)
+	{
+		long start = System.nanoTime();
+		long v = inner.getVersion();
+		List[] results = new List[queries.size()];
+		Key[] keys = new Key[queries.size()];
+		List missed = new ArrayList();
+		IntArrayList missedAt = new IntArrayList();
+		for (int i=0; i<queries.size(); i++) {
+			String query = normalize((String)queries.get(i));
+			keys[i] = new Key(query,minScore);
+			results[i] = get(keys[i],v,start);
+			if (results[i]==null) {
+				missed.add(query);
+				missedAt.add(i);
+			}
+		}
+		long lookedUp = System.nanoTime();
+		int numHits = queries.size()-missed.size();
+		hits.addAndGet(numHits);
+		if (numHits>0) hitNanos.addAndGet((lookedUp-start)*numHits/queries.size());
+		if (missed.size()>0) {
+			List found = inner.lookupAll(missed,minScore);
+			for (int j=0; j<missed.size(); j++) {
+				int i = missedAt.get(j);
+				results[i] = (List)found.get(j);
+				put(keys[i],results[i],v);
+			}
+			misses.addAndGet(missed.size());
+			missNanos.addAndGet(System.nanoTime()-lookedUp + (lookedUp-start)*missed.size()/queries.size());
+		}
+		return Collections.unmodifiableList(Arrays.asList(results));
+	}
+
+	// the cached result for a key, or null, after dropping the cache
+	// if the inner FastLookup has changed
+	private synchronized List get(Key key,long v,long now)
+	{
+		if (v!=version) {
+			if (cache.size()>0) invalidations.incrementAndGet();
+			cache.clear();
+			version = v;
+		}
+		Entry e = cache.get(key);
+		if (e==null) return null;
+		if (timeToLiveNanos>0 && now-e.created>timeToLiveNanos) {
+			cache.remove(key);
+			expirations.incrementAndGet();
+			return null;
+		}
+		return e.result;
+	}
+
+	// cache a result found with version v of the inner FastLookup,
+	// unless that version has been replaced since
+	private synchronized void put(Key key,List found,long v)
+	{
+		if (v!=version) return;
+		if (cache.put(key,new Entry(found,System.nanoTime()))) evictions.incrementAndGet();
+	}
+
+	/** Drop every cached result. */
+	public synchronized void clear()
+	{
+		if (cache.size()>0) invalidations.incrementAndGet();
+		cache.clear();
+	}
+
+	/** Number of cached results. */
+	public synchronized int size() { return cache.size(); }
+
+	public String getResult(int i) { return ((LookupResult)result.get(i)).found; }
+
+	public Object getValue(int i) { return ((LookupResult)result.get(i)).value; }
+
+	public double getScore(int i) { return ((LookupResult)result.get(i)).score; }
+
+	public long getVersion() { return inner.getVersion(); }
+
+	//
+	// counters
+	//
+
+	/** Number of lookups answered from the cache. */
+	public long getHitCount() { return hits.get(); }
+
+	/** Number of lookups passed to the inner FastLookup. */
+	public long getMissCount() { return misses.get(); }
+
+	/** Fraction of lookups answered from the cache. */
+	public double getHitRate()
+	{
+		long h = hits.get(), n = h + misses.get();
+		return n==0 ? 0 : (double)h/n;
+	}
+
+	/** Number of results evicted to make room for others. */
+	public long getEvictionCount() { return evictions.get(); }
+
+	/** Number of results dropped because they outlived their time to live. */
+	public long getExpirationCount() { return expirations.get(); }
+
+	/** Number of times the cache was dropped because the inner FastLookup changed. */
+	public long getInvalidationCount() { return invalidations.get(); }
+
+	/** Average time of a lookup answered from the cache, in seconds. */
+	public double getAverageHitSeconds()
+	{
+		long h = hits.get();
+		return h==0 ? 0 : hitNanos.get()/1e9/h;
+	}
+
+	/** Average time of a lookup passed to the inner FastLookup, in seconds. */
+	public double getAverageMissSeconds()
+	{
+		long m = misses.get();
+		return m==0 ? 0 : missNanos.get()/1e9/m;
+	}
+
+	/** Set all the counters to zero. */
+	public void resetCounters()
+	{
+		hits.set(0); misses.set(0); evictions.set(0); expirations.set(0);
+		invalidations.set(0); hitNanos.set(0); missNanos.set(0);
+	}
+
+	public String toString()
+	{
+		return "[CachingFastLookup "+(policy==LRU ? "LRU" : "TINY_LFU")+" size="+size()+"/"+maxSize
+			+" hitRate="+getHitRate()+" evictions="+getEvictionCount()+" "+inner+"]";
+	}
+
+	//
+	// the cache
+	//
+
+	// a normalized query and minScore
+	private static class Key
+	{
+		final String query;
+		final double minScore;
+		Key(String query,double minScore) { this.query = query; this.minScore = minScore; }
+		public int hashCode()
+		{
+			long bits = Double.doubleToLongBits(minScore);
+			return 31*query.hashCode() + (int)(bits ^ (bits>>>32));
+		}
+		public boolean equals(Object o)
+		{
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return k.query.equals(query) && Double.doubleToLongBits(k.minScore)==Double.doubleToLongBits(minScore);
+		}
+	}
+
+	// a cached result, and when it was cached
+	private static class Entry
+	{
+		final List result;
+		final long created;
+		Entry(List result,long created) { this.result = result; this.created = created; }
+	}
+
+	// a map from Keys to Entries with a limited size, which the
+	// CachingFastLookup locks
+	private static abstract class Cache
+	{
+		abstract Entry get(Key key);
+		// add an entry, and return true if another was evicted for it
+		abstract boolean put(Key key,Entry e);
+		abstract void remove(Key key);
+		abstract void clear();
+		abstract int size();
+	}
+
+	// a LinkedHashMap in access order is an LRU list
+	private static LinkedHashMap lruMap() { return new LinkedHashMap(16,0.75f,true); }
+
+	// the eldest key of an LRU list
+	private static Key eldest(LinkedHashMap map) { return (Key)map.keySet().iterator().next(); }
+
+	private static class LRUCache extends Cache
+	{
+		private final LinkedHashMap map = lruMap();
+		private final int maxSize;
+		LRUCache(int maxSize) { this.maxSize = maxSize; }
+		Entry get(Key key) { return (Entry)map.get(key); }
+		boolean put(Key key,Entry e)
+		{
+			map.put(key,e);
+			if (map.size()<=maxSize) return false;
+			map.remove(eldest(map));
+			return true;
+		}
+		void remove(Key key) { map.remove(key); }
+		void clear() { map.clear(); }
+		int size() { return map.size(); }
+	}
+
+	// W-TinyLFU: an LRU window of about 1% of the entries, in front
+	// of a segmented LRU main cache, of which 80% is protected (used
+	// more than once) and the rest is on probation
+	private static class TinyLFUCache extends Cache
+	{
+		private final LinkedHashMap window = lruMap(), probation = lruMap(), protect = lruMap();
+		private final int maxWindow, maxMain, maxProtected;
+		private final FrequencySketch sketch;
+
+		TinyLFUCache(int maxSize)
+		{
+			maxWindow = Math.max(1, maxSize/100);
+			maxMain = maxSize - maxWindow;
+			maxProtected = (int)(0.8*maxMain);
+			sketch = new FrequencySketch(maxSize);
+		}
+
+		Entry get(Key key)
+		{
+			sketch.increment(key);
+			Entry e = (Entry)window.get(key);
+			if (e!=null) return e;
+			e = (Entry)protect.get(key);
+			if (e!=null) return e;
+			e = (Entry)probation.remove(key);
+			if (e!=null) {
+				// used again on probation, so protect it
+				protect.put(key,e);
+				if (protect.size()>maxProtected) {
+					Key demoted = eldest(protect);
+					probation.put(demoted, protect.remove(demoted));
+				}
+			}
+			return e;
+		}
+
+		boolean put(Key key,Entry e)
+		{
+			if (window.containsKey(key)) { window.put(key,e); return false; }
+			if (protect.containsKey(key)) { protect.put(key,e); return false; }
+			if (probation.containsKey(key)) { probation.put(key,e); return false; }
+			window.put(key,e);
+			if (window.size()<=maxWindow) return false;
+			// the entry leaving the window is a candidate for the main cache
+			Key candidate = eldest(window);
+			Entry c = (Entry)window.remove(candidate);
+			if (probation.size()+protect.size()<maxMain) {
+				probation.put(candidate,c);
+				return false;
+			}
+			if (probation.isEmpty()) return true;
+			Key victim = eldest(probation);
+			if (sketch.frequency(candidate)>sketch.frequency(victim)) {
+				probation.remove(victim);
+				probation.put(candidate,c);
+			}
+			return true;
+		}
+
+		void remove(Key key)
+		{
+			if (window.remove(key)==null && probation.remove(key)==null) protect.remove(key);
+		}
+
+		void clear() { window.clear(); probation.clear(); protect.clear(); }
+
+		int size() { return window.size()+probation.size()+protect.size(); }
+	}
+
+	// a count-min sketch of how often keys were used, with counts
+	// capped at 15 and halved after 10 uses per cached entry
+	private static class FrequencySketch
+	{
+		private static final int DEPTH = 4;
+		private static final int MAX_COUNT = 15;
+		private final byte[][] counts;
+		private final int mask;
+		private final int sampleSize;
+		private int samples = 0;
+
+		FrequencySketch(int maxSize)
+		{
+			int width = Integer.highestOneBit(Math.max(16, 2*maxSize-1)) << 1;
+			counts = new byte[DEPTH][width];
+			mask = width-1;
+			sampleSize = 10*maxSize;
+		}
+
+		// the position of a key in a row of the sketch
+		private int index(int h,int row)
+		{
+			h = (h + row) * 0x9E3779B9;
+			return (h ^ (h>>>16)) & mask;
+		}
+
+		void increment(Object key)
+		{
+			int h = key.hashCode();
+			boolean added = false;
+			for (int r=0; r<DEPTH; r++) {
+				int i = index(h,r);
+				if (counts[r][i]<MAX_COUNT) { counts[r][i]++; added = true; }
+			}
+			if (added && ++samples>=sampleSize) reset();
+		}
+
+		int frequency(Object key)
+		{
+			int h = key.hashCode();
+			int f = MAX_COUNT;
+			for (int r=0; r<DEPTH; r++) f = Math.min(f, counts[r][index(h,r)]);
+			return f;
+		}
+
+		// halve every count, so the sketch follows recent frequencies
+		private void reset()
+		{
+			for (int r=0; r<DEPTH; r++) {
+				for (int i=0; i<counts[r].length; i++) counts[r][i] >>= 1;
+			}
+			samples /= 2;
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package com.wcohen.ss.lookup;
+
+import java.util.*;
+
+/**
+ * Candidate dictionary strings for a lookup, each with an upper bound
+ * on its score that is accumulated from the inverted indices it is
+ * found in.  Candidates are numbered 0,1,... in the order they were
+ * first added, and are found by string number through an
+ * open-addressing hash table, so adding a posting does no allocation.
+ */
+
+/*package-visible*/ class CandidateBounds
+{
+	private int[] ids = new int[16];
+	private double[] bounds = new double[16];
+	private boolean[] scored = new boolean[16];
+	private int size = 0;
+	// candidate number+1 for each occupied cell, 0 for an empty one
+	private int[] table = new int[32];
+
+	/** Add b to the bound of the string with the given number, which
+	 * becomes a candidate if it isn't one yet. */
+	public void add(int id,double b)
+	{
+		int cell = find(id);
+		if (table[cell]!=0) {
+			bounds[table[cell]-1] += b;
+			return;
+		}
+		if (size==ids.length) {
+			ids = Arrays.copyOf(ids, 2*size);
+			bounds = Arrays.copyOf(bounds, 2*size);
+			scored = Arrays.copyOf(scored, 2*size);
+		}
+		ids[size] = id;
+		bounds[size] = b;
+		scored[size] = false;
+		table[cell] = ++size;
+		if (2*size>table.length) rehash();
+	}
+
+	/** Number of candidates. */
+	public int size() { return size; }
+
+	/** The string number of the n-th candidate. */
+	public int idAt(int n) { return ids[n]; }
+
+	/** The bound accumulated for the n-th candidate. */
+	public double boundAt(int n) { return bounds[n]; }
+
+	/** True if the n-th candidate has been marked as scored. */
+	public boolean isScored(int n) { return scored[n]; }
+
+	public void setScored(int n) { scored[n] = true; }
+
+	private int find(int id)
+	{
+		int mask = table.length-1;
+		int h = id * 0x9E3779B9;
+		int cell = (h ^ (h >>> 16)) & mask;
+		while (table[cell]!=0 && ids[table[cell]-1]!=id) cell = (cell+1) & mask;
+		return cell;
+	}
+
+	private void rehash()
+	{
+		table = new int[2*table.length];
+		for (int n=0; n<size; n++) table[find(ids[n])] = n+1;
+	}
+}
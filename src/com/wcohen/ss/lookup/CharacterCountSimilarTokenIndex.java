@@ -0,0 +1,290 @@
+package com.wcohen.ss.lookup;
+
+import java.util.*;
+
+import com.wcohen.ss.tokens.*;
+
+/**
+ * Finds the tokens that have enough characters in common with a
+ * string to be Jaro-Winkler similar to it.  Unlike a lexical window,
+ * this never misses a similar token.
+ *
+ * <p>The Jaro score of strings a and b with m common characters is at
+ * most (m/|a| + m/|b| + 1)/3, and m is at most the number of
+ * characters the strings share, counting repeated characters
+ * separately.  Winkler's correction raises a score j to
+ * j+0.1*p*(1-j), where p is the length of the common prefix of a and
+ * b, up to 4.  So for b with a given common prefix and length, a
+ * minimum Jaro-Winkler similarity gives a minimum number of shared
+ * characters.
+ *
+ * <p>Each token is indexed under its characters, with the k-th
+ * occurrence of a character c indexed under the pair (c,k), so that
+ * the number of pairs two strings share is the number of characters
+ * they share.  The inverted index of each pair is split by the length
+ * of the tokens.  If a candidate of a given length must share at
+ * least c of the |a| pairs of a, then it must share one of the
+ * |a|-c+1 pairs of a with the shortest inverted indices for that
+ * length, so only those indices are followed.
+ * Tokens are numbered in lexical order within the index, so the
+ * tokens with a common prefix of a given length form a range of
+ * numbers, and each range is searched with its own minimum.  Then
+ * the number of characters each candidate shares with a is checked.
+ *
+ * <p>Strings are compared case-insensitively, like JaroWinkler.
+ */
+
+public class CharacterCountSimilarTokenIndex implements SimilarTokenIndex
+{
+	// the longest prefix that Winkler's correction counts
+	private static final int MAX_PREFIX = 4;
+
+	private final double minSimilarity;
+	// the lower-cased tokens, sorted, and the number of each one in
+	// the tokens the index was built from
+	private final String[] tokens;
+	private final int[] tokenNumber;
+	// the chars of each token, sorted, and their keys, in CSR form
+	private final int[] charStart;
+	private final char[] chars;
+	private final int[] keys;
+	// the key number of each (char,occurrence,length) triple
+	private final Map keyOf;
+	// the tokens containing each key, in CSR form
+	private final int[] postingStart;
+	private final int[] postings;
+	private int maxTokenLength = 0;
+
+	public CharacterCountSimilarTokenIndex(final String[] tokens,double minSimilarity)
+	{
+		this.minSimilarity = minSimilarity;
+		final String[] lower = new String[tokens.length];
+		Integer[] order = new Integer[tokens.length];
+		for (int i=0; i<tokens.length; i++) {
+			lower[i] = tokens[i].toLowerCase();
+			order[i] = Integer.valueOf(i);
+		}
+		// tokens are usually lower case already, so this sort is cheap
+		Arrays.sort(order, new Comparator() {
+				public int compare(Object a,Object b) {
+					return lower[((Integer)a).intValue()].compareTo(lower[((Integer)b).intValue()]);
+				}
+			});
+		this.tokens = new String[tokens.length];
+		tokenNumber = new int[tokens.length];
+		charStart = new int[tokens.length+1];
+		for (int i=0; i<tokens.length; i++) {
+			tokenNumber[i] = order[i].intValue();
+			this.tokens[i] = lower[tokenNumber[i]];
+			charStart[i+1] = charStart[i] + this.tokens[i].length();
+			maxTokenLength = Math.max(maxTokenLength, this.tokens[i].length());
+		}
+		chars = new char[ charStart[tokens.length] ];
+		keys = new int[ chars.length ];
+		keyOf = new HashMap();
+		IntArrayList keyCount = new IntArrayList();
+		for (int i=0; i<tokens.length; i++) {
+			this.tokens[i].getChars(0, this.tokens[i].length(), chars, charStart[i]);
+			Arrays.sort(chars, charStart[i], charStart[i+1]);
+			for (int k=charStart[i]; k<charStart[i+1]; k++) {
+				Long pair = key(chars, charStart[i], k, this.tokens[i].length());
+				Integer key = (Integer)keyOf.get(pair);
+				if (key==null) {
+					keyOf.put(pair, (key=Integer.valueOf(keyCount.size())));
+					keyCount.add(0);
+				}
+				keys[k] = key.intValue();
+				keyCount.set(key.intValue(), keyCount.get(key.intValue())+1);
+			}
+		}
+		postingStart = new int[keyCount.size()+1];
+		for (int key=0; key<keyCount.size(); key++) postingStart[key+1] = postingStart[key] + keyCount.get(key);
+		postings = new int[ postingStart[keyCount.size()] ];
+		int[] fill = postingStart.clone();
+		for (int i=0; i<tokens.length; i++) {
+			for (int k=charStart[i]; k<charStart[i+1]; k++) postings[ fill[keys[k]]++ ] = i;
+		}
+	}
+
+	// the key for the k-th of the sorted chars that start at 'start',
+	// in a token of the given length
+	private static Long key(char[] chars,int start,int k,int length)
+	{
+		int occurrence = 0;
+		while (k-occurrence>start && chars[k-occurrence-1]==chars[k]) occurrence++;
+		return Long.valueOf( (((long)length)<<40) | (((long)occurrence)<<16) | chars[k] );
+	}
+
+	public void candidates(String s,IntArrayList ids)
+	{
+		String a = s.toLowerCase();
+		int la = a.length();
+		if (la==0) return;
+		char[] ca = a.toCharArray();
+		Arrays.sort(ca);
+
+		// tokens rangeLo[q]...rangeHi[q]-1 have a common prefix of at
+		// least q chars with a, and the Jaro score of those with a
+		// common prefix of exactly q must be at least minJaro[q], so
+		// m/|a| + m/|b| >= 3*minJaro[q]-1
+		int maxPrefix = Math.min(MAX_PREFIX, la);
+		int[] rangeLo = new int[maxPrefix+2], rangeHi = new int[maxPrefix+2];
+		double[] r = new double[maxPrefix+1];
+		rangeHi[0] = tokens.length;
+		for (int q=0; q<=maxPrefix; q++) {
+			if (q<maxPrefix) {
+				rangeLo[q+1] = prefixRangeStart(a, q+1, rangeLo[q], rangeHi[q]);
+				rangeHi[q+1] = prefixRangeEnd(a, q+1, rangeLo[q+1], rangeHi[q]);
+			} else {
+				rangeLo[q+1] = rangeHi[q+1] = rangeHi[q];
+			}
+			double p = q*0.1;
+			r[q] = 3*((minSimilarity-p)/(1-p) - 1e-9) - 1;
+			if (r[q]<=0) {
+				// any token with this prefix might do
+				for (int i=rangeLo[q]; i<rangeHi[q]; i++) {
+					if (i<rangeLo[q+1] || i>=rangeHi[q+1]) ids.add( tokenNumber[i] );
+				}
+			}
+		}
+
+		// since m<=min(|a|,|b|), the length of b is limited, most
+		// loosely for the longest prefix
+		double rmin = r[maxPrefix];
+		if (rmin<=0) return;
+		int minLength = Math.max(1, (int)Math.ceil((rmin-1)*la));
+		int maxLength = rmin>1 ? (int)Math.floor(la/(rmin-1)) : maxTokenLength;
+		Scratch scratch = (Scratch)this.scratch.get();
+		int stamp = scratch.nextStamp();
+		long[] byRarity = new long[la];
+		for (int lb=minLength; lb<=Math.min(maxLength,maxTokenLength); lb++) {
+			// the keys of a for tokens of length lb, rarest first
+			boolean any = false;
+			for (int k=0; k<la; k++) {
+				Integer key = (Integer)keyOf.get(key(ca, 0, k, lb));
+				int lo = key==null ? 0 : postingStart[key.intValue()];
+				int hi = key==null ? 0 : postingStart[key.intValue()+1];
+				// sort by the size of the index, and keep its start
+				byRarity[k] = (((long)(hi-lo))<<32) | lo;
+				any |= hi>lo;
+			}
+			if (!any) continue;
+			Arrays.sort(byRarity);
+			for (int q=0; q<=maxPrefix; q++) {
+				if (r[q]<=0) continue;
+				int lo = rangeLo[q], hi = rangeHi[q], nextLo = rangeLo[q+1], nextHi = rangeHi[q+1];
+				if (lo==hi) break;
+				int minCommon = Math.max(1, (int)Math.ceil( r[q]*la*lb/(la+lb) ));
+				if (minCommon>Math.min(la,lb)) continue;
+				for (int k=0; k<la-minCommon+1; k++) {
+					int start = (int)byRarity[k], end = start + (int)(byRarity[k]>>>32);
+					for (int j=firstAtLeast(postings, start, end, lo); j<end && postings[j]<hi; j++) {
+						int i = postings[j];
+						if (i>=nextLo && i<nextHi) { j = firstAtLeast(postings, j, end, nextHi)-1; continue; }
+						if (scratch.stamps[i]==stamp) continue;
+						scratch.stamps[i] = stamp;
+						if (sharesAtLeast(ca, i, minCommon)) ids.add( tokenNumber[i] );
+					}
+				}
+			}
+		}
+	}
+
+	// the first of tokens lo...hi-1 whose first n chars are at least
+	// those of a, or hi if there is none
+	private int prefixRangeStart(String a,int n,int lo,int hi)
+	{
+		while (lo<hi) {
+			int mid = (lo+hi) >>> 1;
+			if (comparePrefix(tokens[mid], a, n)<0) lo = mid+1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// the first of tokens lo...hi-1 whose first n chars are greater
+	// than those of a, or hi if there is none
+	private int prefixRangeEnd(String a,int n,int lo,int hi)
+	{
+		while (lo<hi) {
+			int mid = (lo+hi) >>> 1;
+			if (comparePrefix(tokens[mid], a, n)<=0) lo = mid+1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// compare the first n chars of t to the first n chars of a, which has at least n chars
+	private static int comparePrefix(String t,String a,int n)
+	{
+		for (int k=0; k<n; k++) {
+			if (k==t.length()) return -1;
+			int c = t.charAt(k) - a.charAt(k);
+			if (c!=0) return c;
+		}
+		return 0;
+	}
+
+	// the first position from start to end-1 of the sorted array with
+	// a value of at least v, or end if there is none
+	private static int firstAtLeast(int[] sorted,int start,int end,int v)
+	{
+		while (start<end) {
+			int mid = (start+end) >>> 1;
+			if (sorted[mid]<v) start = mid+1;
+			else end = mid;
+		}
+		return start;
+	}
+
+	// true if the i-th token shares at least n chars with ca, which
+	// is sorted, giving up as soon as it can't
+	private boolean sharesAtLeast(char[] ca,int i,int n)
+	{
+		int lo = charStart[i], hi = charStart[i+1];
+		int common = 0;
+		for (int j=0, k=lo; j<ca.length && k<hi; ) {
+			if (common + Math.min(ca.length-j, hi-k) < n) return false;
+			if (ca[j]<chars[k]) j++;
+			else if (ca[j]>chars[k]) k++;
+			else { common++; j++; k++; }
+		}
+		return common>=n;
+	}
+
+	// marks the candidates already seen, one array per thread
+	private static class Scratch
+	{
+		int[] stamps;
+		int stamp = 0;
+		Scratch(int n) { stamps = new int[n]; }
+		int nextStamp()
+		{
+			if (++stamp==0) {
+				Arrays.fill(stamps, 0);
+				stamp = 1;
+			}
+			return stamp;
+		}
+	}
+	private final ThreadLocal scratch = new ThreadLocal() {
+			protected Object initialValue() { return new Scratch(tokens.length); }
+		};
+
+	public String toString() { return "[CharacterCountSimilarTokenIndex:"+tokens.length+" tokens]"; }
+
+	/** Builds a CharacterCountSimilarTokenIndex. */
+	public static class Builder implements SimilarTokenIndex.Builder
+	{
+		public SimilarTokenIndex build(String[] tokens,double minSimilarity)
+		{
+			return new CharacterCountSimilarTokenIndex(tokens,minSimilarity);
+		}
+
+		public boolean equals(Object o) { return o instanceof Builder; }
+
+		public int hashCode() { return Builder.class.hashCode(); }
+
+		public String toString() { return "[CharacterCountSimilarTokenIndex.Builder]"; }
+	}
+}
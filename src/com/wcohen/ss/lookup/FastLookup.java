@@ -1,33 +1,77 @@
-package com.wcohen.ss.lookup;
-
-import java.io.*;
-import java.util.*;
-
-import com.wcohen.ss.*;
-import com.wcohen.ss.api.*;
-import com.wcohen.ss.tokens.*;
-
-/**
- * Interface for SoftTFIDFDictionary and the rescoring variant of it.
- * 
- */
-
-public interface FastLookup
-{
-    /** Lookup items similar to 'toFind', and return the number of
-     * items found.  The found items must have a similarity score
-     * greater than minScore to 'toFind'.
-     */
-
-    public int lookup(double minScore,String toFind);
-    
-    /** Get the i'th string found by the last lookup */
-    public String getResult(int i);
-
-    /** Get the value of the i'th string found by the last lookup */
-    public Object getValue(int i);
-
-    /** Get the score of the i'th string found by the last lookup */
-    public double getScore(int i);
-
-}
+package com.wcohen.ss.lookup;
+
+import java.io.*;
+import java.util.*;
+
+import com.wcohen.ss.*;
+import com.wcohen.ss.api.*;
+import com.wcohen.ss.tokens.*;
+
+/**
+ * Interface for SoftTFIDFDictionary and the rescoring variant of it.
+ * 
+ */
+
+public interface FastLookup
+{
+    /** Lookup items similar to 'toFind', and return the number of
+     * items found.  The found items must have a similarity score
+     * greater than minScore to 'toFind'.
+     */
+
+    public int lookup(double minScore,String toFind);
+
+    /** Lookup items similar to 'toFind', and return them as a list of
+     * LookupResults, best first, which can't be modified.  Unlike
+     * lookup, this keeps no state in the FastLookup, so it can be
+     * used by several threads at once.  By default, the results of
+     * lookup are copied, holding the lock on this FastLookup, so
+     * that calls to this method don't see each other's results;
+     * implementations override it to keep no state at all.
+     */
+    default public List lookupResults(double minScore,String toFind)
+    {
+        synchronized (this) {
+            int n = lookup(minScore,toFind);
+            List result = new ArrayList(n);
+            for (int i=0; i<n; i++) {
+                result.add( new LookupResult(getResult(i),getValue(i),getScore(i)) );
+            }
+            return Collections.unmodifiableList(result);
+        }
+    }
+
+    /** Lookup each of a list of strings, like lookupResults, and
+     * return a list of their results, in the same order.  By default
+     * the strings are looked up one at a time.
+     */
+    default public List lookupAll(List queries,double minScore)
+    {
+        List results = new ArrayList(queries.size());
+        for (Iterator i=queries.iterator(); i.hasNext(); ) {
+            results.add( lookupResults(minScore,(String)i.next()) );
+        }
+        return results;
+    }
+    
+    /** A number that changes whenever the items that can be found
+     * might, for instance after a put or refreeze, so that results
+     * can be cached until it does.  The default is always 0, which
+     * is only right for a FastLookup whose items never change; one
+     * that can change must override this before it is cached.
+     */
+    default public long getVersion()
+    {
+        return 0;
+    }
+
+    /** Get the i'th string found by the last lookup */
+    public String getResult(int i);
+
+    /** Get the value of the i'th string found by the last lookup */
+    public Object getValue(int i);
+
+    /** Get the score of the i'th string found by the last lookup */
+    public double getScore(int i);
+
+}
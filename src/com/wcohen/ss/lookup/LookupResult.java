@@ -9,22 +9,32 @@ import com.wcohen.ss.tokens.*;
 
 /**
  * Shared code for SoftTFIDFDictionary and the rescoring variant of it.
+ * A LookupResult is one item found by a lookup, and can't be changed.
  * 
  */
 
-/*package-visible*/ class LookupResult implements Comparable
+public class LookupResult implements Comparable
 {
     private static final java.text.DecimalFormat fmt = new java.text.DecimalFormat("0.000");
 
-    String found; // a string 'looked up' in a dictionary
-    Object value; // the value associated with that string
-    double score; // the score of the match between the looked-up string and 'found'
+    final String found; // a string 'looked up' in a dictionary
+    final Object value; // the value associated with that string
+    final double score; // the score of the match between the looked-up string and 'found'
 
     public LookupResult(String found,Object value,double score) 
     {
         this.found=found; this.value=value; this.score=score; 
     }
 
+    /** The string found in the dictionary. */
+    public String getFound() { return found; }
+
+    /** The value associated with the string found. */
+    public Object getValue() { return value; }
+
+    /** The similarity of the string found to the string looked up. */
+    public double getScore() { return score; }
+
     public int compareTo(Object o) 
     {
         double diff = ((LookupResult)o).score - score;
@@ -1,61 +1,254 @@
-package com.wcohen.ss.lookup;
-
-import java.io.*;
-import java.util.*;
-
-import com.wcohen.ss.*;
-import com.wcohen.ss.api.*;
-import com.wcohen.ss.tokens.*;
-
-/**
- * Wrapper around a SoftTFIDFDictionary that allows you to 'rescore'
- * the result using an arbitrary StringDistance.
- */
-
-public class RescoringSoftTFIDFDictionary implements FastLookup
-{
-    private StringDistance rescorer;
-    private FastLookup inner;
-    private double innerMinScore;
-    private ArrayList result;
-
-    public RescoringSoftTFIDFDictionary(FastLookup inner,double innerMinScore,StringDistance rescorer)
-    {
-        this.inner=inner;
-        this.rescorer=rescorer;
-        this.innerMinScore=innerMinScore;
-    }
-
-    public int lookup(double minScore,String toFind)
-    {
-        result = new ArrayList();
-        int n = inner.lookup(innerMinScore,toFind);
-        if (n>0) {
-            StringWrapper w = rescorer.prepare(toFind);
-            rescore(n,minScore,w);
-        }
-        //System.out.println("original: "+n+" rescored:  "+result.size());
-        return result.size();
-    }
-
-    private void rescore(int n,double minScore,StringWrapper w)
-    {
-        for (int i=0; i<n; i++) {
-            String si = inner.getResult(i);
-            double di = rescorer.score(w,rescorer.prepare(si));
-            //System.out.println("rescore: "+w+"~"+si+" = "+di);
-            if (di>=minScore) {
-                result.add(new LookupResult(si, inner.getValue(i), di));
-                //System.out.println("added to result, size="+result.size());
-            }
-        }
-        Collections.sort(result);
-    }
-
-    public String getResult(int i) { return ((LookupResult)result.get(i)).found; }
-
-    public Object getValue(int i) { return ((LookupResult)result.get(i)).value; }
-
-    public double getScore(int i) { return ((LookupResult)result.get(i)).score; }
-    
-}
+package com.wcohen.ss.lookup;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.wcohen.ss.*;
+import com.wcohen.ss.api.*;
+import com.wcohen.ss.tokens.*;
+
+/**
+ * Wrapper around a SoftTFIDFDictionary that allows you to 'rescore'
+ * the result using an arbitrary StringDistance.
+ *
+ * <p>The results of the inner lookup are rescored in parallel, on a
+ * ForkJoinPool (see setRescoreThreads), with the thresholded score of
+ * the rescorer, so that an expensive rescorer can stop early on
+ * results that can't reach minScore.
+ *
+ * <p>lookupTopK finds the k results that the rescorer likes best.
+ * If a ScoreBound is given, relating the inner score of a result to
+ * the largest score the rescorer could give it, then the inner
+ * results are rescored best first, and rescoring stops once the
+ * bound shows that none of the remaining results can beat the k-th
+ * best so far.
+ */
+
+public class RescoringSoftTFIDFDictionary implements FastLookup
+{
+    // rescore at least this many results in each task
+    private static final int MIN_PART_SIZE = 8;
+
+    private StringDistance rescorer;
+    private FastLookup inner;
+    private double innerMinScore;
+    private ScoreBound scoreBound;
+    private List result;
+    private ForkJoinPool rescorePool = ForkJoinPool.commonPool();
+    // the pool made by setRescoreThreads, if rescoring still uses it
+    private ForkJoinPool ownRescorePool = null;
+
+    /**
+     * An upper bound on the score the rescorer can give a string,
+     * given the score the inner FastLookup gave it.  The bound must
+     * not decrease as the inner score increases.  For instance, if the
+     * rescorer never scores a string more than 0.2 above its inner
+     * score, the bound is innerScore+0.2.
+     */
+    public interface ScoreBound
+    {
+        public double maxRescore(double innerScore);
+    }
+
+    public RescoringSoftTFIDFDictionary(FastLookup inner,double innerMinScore,StringDistance rescorer)
+    {
+        this(inner,innerMinScore,rescorer,null);
+    }
+
+    /** Rescore, knowing that the rescorer's scores are bounded by
+     * scoreBound, which may be null if nothing is known. */
+    public RescoringSoftTFIDFDictionary(FastLookup inner,double innerMinScore,StringDistance rescorer,ScoreBound scoreBound)
+    {
+        this.inner=inner;
+        this.rescorer=rescorer;
+        this.innerMinScore=innerMinScore;
+        this.scoreBound=scoreBound;
+    }
+
+    public void setScoreBound(ScoreBound scoreBound) { this.scoreBound=scoreBound; }
+
+    public ScoreBound getScoreBound() { return scoreBound; }
+
+    /** Rescore on this many threads.  By default rescoring uses the
+     * common ForkJoinPool; with one thread, it runs on the calling
+     * thread.  A pool made by an earlier call is shut down, once the
+     * work given to it is done.
+     */
+    public void setRescoreThreads(int numThreads)
+    {
+        ForkJoinPool pool = numThreads>1 ? new ForkJoinPool(numThreads) : null;
+        setRescorePool(pool);
+        this.ownRescorePool = pool;
+    }
+
+    /** Rescore on the given pool, or on the calling thread if pool is
+     * null.  The pool belongs to the caller, but a pool made by
+     * setRescoreThreads is shut down. */
+    public void setRescorePool(ForkJoinPool pool)
+    {
+        if (ownRescorePool!=null) ownRescorePool.shutdown();
+        this.ownRescorePool = null;
+        this.rescorePool = pool;
+    }
+
+    /** Number of threads used for rescoring. */
+    public int getRescoreThreads() { return rescorePool==null ? 1 : rescorePool.getParallelism(); }
+
+    public int lookup(double minScore,String toFind)
+    {
+        result = lookupResults(minScore,toFind);
+        return result.size();
+    }
+
+    public List lookupResults(double minScore,String toFind)
+    {
+        List innerResult = inner.lookupResults(innerMinScore,toFind);
+        List result = new ArrayList();
+        if (innerResult.size()>0) {
+            StringWrapper w = rescorer.prepare(toFind);
+            rescore(innerResult,0,innerResult.size(),minScore,w,result);
+            Collections.sort(result);
+        }
+        //System.out.println("original: "+innerResult.size()+" rescored:  "+result.size());
+        return Collections.unmodifiableList(result);
+    }
+
+    public List lookupAll(List queries,double minScore)
+    {
+        List innerResults = inner.lookupAll(queries,innerMinScore);
+        // the results for a string that is looked up more than once are rescored once
+        Map resultOf = new HashMap();
+        List all = new ArrayList(queries.size());
+        for (int i=0; i<queries.size(); i++) {
+            List result = (List)resultOf.get(queries.get(i));
+            if (result==null) {
+                List innerResult = (List)innerResults.get(i);
+                result = new ArrayList();
+                if (innerResult.size()>0) {
+                    StringWrapper w = rescorer.prepare((String)queries.get(i));
+                    rescore(innerResult,0,innerResult.size(),minScore,w,result);
+                    Collections.sort(result);
+                }
+                result = Collections.unmodifiableList(result);
+                resultOf.put(queries.get(i),result);
+            }
+            all.add(result);
+        }
+        return Collections.unmodifiableList(all);
+    }
+
+    /** Lookup the k items that the rescorer scores best against
+     * 'toFind', among those with a rescored score of at least
+     * minScore, and return the number of items found.
+     */
+    public int lookupTopK(int k,double minScore,String toFind)
+    {
+        result = lookupTopKResults(k,minScore,toFind);
+        return result.size();
+    }
+
+    /** Like lookupTopK, but returns the items found, best first, in a
+     * list that can't be modified, like lookupResults.
+     *
+     * <p>Inner results are rescored in blocks, best first.  Once there
+     * are k results, only scores above the k-th best matter, so that
+     * is the threshold given to the rescorer, and if there is a
+     * ScoreBound, rescoring stops at the first block whose best inner
+     * score is bounded by the k-th best rescored score.
+     */
+    public List lookupTopKResults(int k,double minScore,String toFind)
+    {
+        List innerResult = inner.lookupResults(innerMinScore,toFind);
+        if (k<=0 || innerResult.size()==0) return Collections.EMPTY_LIST;
+        StringWrapper w = rescorer.prepare(toFind);
+        // the k best so far, with the worst of them at the head
+        PriorityQueue best = new PriorityQueue(k, Collections.reverseOrder());
+        List rescored = new ArrayList();
+        int blockSize = Math.max(k, 4*MIN_PART_SIZE*getRescoreThreads());
+        for (int lo=0; lo<innerResult.size(); lo+=blockSize) {
+            boolean full = best.size()==k;
+            double kthBest = full ? ((LookupResult)best.peek()).score : minScore;
+            if (scoreBound!=null) {
+                double bound = scoreBound.maxRescore(((LookupResult)innerResult.get(lo)).score);
+                if (bound<minScore || (full && bound<=kthBest)) break;
+            }
+            rescored.clear();
+            rescore(innerResult,lo,Math.min(lo+blockSize,innerResult.size()),Math.max(minScore,kthBest),w,rescored);
+            for (int i=0; i<rescored.size(); i++) {
+                LookupResult ri = (LookupResult)rescored.get(i);
+                if (best.size()<k) best.add(ri);
+                else if (ri.score>((LookupResult)best.peek()).score) {
+                    best.poll();
+                    best.add(ri);
+                }
+            }
+        }
+        List result = new ArrayList(best);
+        Collections.sort(result);
+        return Collections.unmodifiableList(result);
+    }
+
+    // rescore inner results lo...hi-1, in parallel if there are
+    // enough of them, and add those that score at least minScore to
+    // result, in order
+    private void rescore(List innerResult,int lo,int hi,double minScore,StringWrapper w,List result)
+    {
+        LookupResult[] rescored = new LookupResult[hi-lo];
+        RescoreTask task = new RescoreTask(innerResult,lo,lo,hi,minScore,w,rescored);
+        if (rescorePool==null || hi-lo<2*MIN_PART_SIZE) task.compute();
+        else rescorePool.invoke(task);
+        for (int i=0; i<rescored.length; i++) {
+            if (rescored[i]!=null) result.add(rescored[i]);
+        }
+    }
+
+    // rescores inner results lo...hi-1 into rescored[i-offset],
+    // leaving null the ones that score below minScore
+    private class RescoreTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1;
+        private final List innerResult;
+        private final int offset, lo, hi;
+        private final double minScore;
+        private final StringWrapper w;
+        private final LookupResult[] rescored;
+
+        RescoreTask(List innerResult,int offset,int lo,int hi,double minScore,StringWrapper w,LookupResult[] rescored)
+        {
+            this.innerResult=innerResult;
+            this.offset=offset;
+            this.lo=lo;
+            this.hi=hi;
+            this.minScore=minScore;
+            this.w=w;
+            this.rescored=rescored;
+        }
+
+        protected void compute()
+        {
+            if (hi-lo>=2*MIN_PART_SIZE && rescorePool!=null) {
+                int mid = (lo+hi) >>> 1;
+                invokeAll(new RescoreTask(innerResult,offset,lo,mid,minScore,w,rescored),
+                          new RescoreTask(innerResult,offset,mid,hi,minScore,w,rescored));
+                return;
+            }
+            for (int i=lo; i<hi; i++) {
+                LookupResult ri = (LookupResult)innerResult.get(i);
+                // the thresholded score can stop early on poor matches
+                double di = rescorer.score(w,rescorer.prepare(ri.found),minScore);
+                //System.out.println("rescore: "+w+"~"+ri.found+" = "+di);
+                if (di>=minScore) rescored[i-offset] = new LookupResult(ri.found, ri.value, di);
+            }
+        }
+    }
+
+    public long getVersion() { return inner.getVersion(); }
+
+    public String getResult(int i) { return ((LookupResult)result.get(i)).found; }
+
+    public Object getValue(int i) { return ((LookupResult)result.get(i)).value; }
+
+    public double getScore(int i) { return ((LookupResult)result.get(i)).score; }
+    
+}
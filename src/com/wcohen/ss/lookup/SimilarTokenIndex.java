@@ -0,0 +1,38 @@
+package com.wcohen.ss.lookup;
+
+import com.wcohen.ss.tokens.*;
+
+/**
+ * Finds the tokens of a dictionary that may be similar to a given
+ * string, so that a SoftTFIDFDictionary only needs to compute the
+ * Jaro-Winkler similarity of a token to these candidates, rather than
+ * to every token.  An index is built once, when the dictionary is
+ * frozen, and is used both to find the tokens similar to each
+ * dictionary token and to find the tokens similar to a novel token
+ * of a query.
+ *
+ * <p>An index is never changed after it is built, so candidates()
+ * can be called from several threads at once.
+ */
+
+public interface SimilarTokenIndex
+{
+	/** Append to ids the numbers of the tokens that may have a
+	 * Jaro-Winkler similarity to s of at least the minSimilarity the
+	 * index was built for.  Each number is appended at most once, in
+	 * no particular order, and s itself may be among them if it is a
+	 * token.
+	 */
+	public void candidates(String s,IntArrayList ids);
+
+	/**
+	 * Builds a SimilarTokenIndex.  This is what is plugged into a
+	 * SoftTFIDFDictionary, which builds an index when it is frozen.
+	 */
+	public interface Builder
+	{
+		/** Build an index of the given tokens, which are sorted
+		 * lexically, and numbered by their position in the array. */
+		public SimilarTokenIndex build(String[] tokens,double minSimilarity);
+	}
+}
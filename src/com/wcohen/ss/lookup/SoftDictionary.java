@@ -21,6 +21,12 @@ import com.wcohen.ss.tokens.*;
  * StringWrapper w = (StringWrapper)softDict.lookup( query );
  * String closestMatchToQuery = w.unwrap();
  *</pre></code>
+ *
+ * <p>Strings and tokens are numbered as they are inserted, and each
+ * token is mapped to the sorted array of the numbers of the strings
+ * that contain it.  A lookup scores each string that shares a token
+ * with the query, once.  lookupTopK returns the k best of these.
+ * Like lookup, it is not thread-safe.
  */
 
 public class SoftDictionary 
@@ -37,13 +43,23 @@ public class SoftDictionary
     private StringDistance distance;
     // tokenizes stored strings
     private Tokenizer tokenizer;
-    // maps tokens to strings containing these tokens
-    private Map index;
-    // maps stored strings to their associated value
-    private Map map;
-    // maps stored strings to their associated 'id'
-    private Map idMap;
-    // count things in map
+    // maps tokens to their numbers
+    private Map tokenIds;
+    // the numbers of the strings containing token t, in increasing
+    // order, are the first postingSize[t] ints of postings[t]
+    private int[][] postings;
+    private int[] postingSize;
+    // maps stored strings to their numbers
+    private Map stringIds;
+    // the stored strings, their values, and the codes of their 'id's
+    // (or -1), indexed by number
+    private MyWrapper[] strings;
+    private Object[] values;
+    private int[] idCodes;
+    private int numStrings;
+    // maps 'id's to their codes
+    private Map idCodeOf;
+    // count things put in the dictionary
     private int totalEntries;
 
     //
@@ -74,9 +90,15 @@ public class SoftDictionary
 	this.distanceLearner = distanceLearner;
 	this.distance = null;
 	this.tokenizer = tokenizer;
-	this.index = new HashMap();
-	this.map = new HashMap();
-	this.idMap = new HashMap();
+	this.tokenIds = new HashMap();
+	this.postings = new int[16][];
+	this.postingSize = new int[16];
+	this.stringIds = new HashMap();
+	this.strings = new MyWrapper[16];
+	this.values = new Object[16];
+	this.idCodes = new int[16];
+	this.numStrings = 0;
+	this.idCodeOf = new HashMap();
 	this.totalEntries = 0;
     }
 	
@@ -164,26 +186,69 @@ public class SoftDictionary
     public void put(String id, StringWrapper toInsert,Object value)
     {
 	MyWrapper wrapper = asMyWrapper(toInsert);
-	Token[] tokens = wrapper.getTokens();
-	for (int i=0; i<tokens.length; i++) {
-	    ArrayList stringsWithToken = (ArrayList) index.get(tokens[i]);
-	    if (stringsWithToken==null) index.put( tokens[i], (stringsWithToken=new ArrayList()) );
-	    stringsWithToken.add( wrapper );
+	Integer stringId = (Integer)stringIds.get(wrapper);
+	int s;
+	if (stringId!=null) {
+	    s = stringId.intValue();
+	} else {
+	    s = numStrings++;
+	    if (s==strings.length) {
+		strings = Arrays.copyOf(strings, 2*s);
+		values = Arrays.copyOf(values, 2*s);
+		idCodes = Arrays.copyOf(idCodes, 2*s);
+	    }
+	    strings[s] = wrapper;
+	    idCodes[s] = -1;
+	    stringIds.put( wrapper, Integer.valueOf(s) );
+	    Token[] tokens = wrapper.getTokens();
+	    for (int i=0; i<tokens.length; i++) {
+		int t = tokenId( tokens[i] );
+		// s is the largest string number, so this keeps postings sorted
+		int n = postingSize[t];
+		if (n>0 && postings[t][n-1]==s) continue;
+		if (n==postings[t].length) postings[t] = Arrays.copyOf(postings[t], 2*n);
+		postings[t][n] = s;
+		postingSize[t] = n+1;
+	    }
+	}
+	values[s] = value;
+	if (id!=null) {
+	    Integer code = (Integer)idCodeOf.get(id);
+	    if (code==null) idCodeOf.put( id, (code=Integer.valueOf(idCodeOf.size())) );
+	    idCodes[s] = code.intValue();
 	}
-	map.put( wrapper, value );
-	if (id!=null) idMap.put( wrapper, id );
 	distance = null; // mark distance as "out of date" 
+	lastLookup = null;
 	totalEntries++;
     }
 
+    // the number of a token, which is new if the token is
+    private int tokenId(Token token)
+    {
+	Integer t = (Integer)tokenIds.get(token);
+	if (t!=null) return t.intValue();
+	int n = tokenIds.size();
+	if (n==postings.length) {
+	    postings = Arrays.copyOf(postings, 2*n);
+	    postingSize = Arrays.copyOf(postingSize, 2*n);
+	}
+	postings[n] = new int[2];
+	tokenIds.put( token, Integer.valueOf(n) );
+	return n;
+    }
+
 
     // caches result of last 'get'
-    private HashSet closeMatches;
     private MyWrapper closestMatch;
     private double distanceToClosestMatch;
     private StringWrapper lastLookup;
 
-    /** Lookup a string in the dictionary, cache result in closeMatches.
+    // reused by lookups: a bit for each string that is a candidate,
+    // and the candidates, in the order they were found
+    private long[] isCandidate = new long[1];
+    private IntArrayList candidates = new IntArrayList();
+
+    /** Lookup a string in the dictionary, cache result in closestMatch.
      *
      * <p>If id==null, consider any match. If id is non-null, consider
      * only matches to strings that don't have the same id, or that have
@@ -198,35 +263,104 @@ public class SoftDictionary
 	// used cached values if it's ok
 	if (lastLookup==toFind) return;
 
-	closeMatches = new HashSet();
 	closestMatch = null;
 	distanceToClosestMatch = -Double.MAX_VALUE;
 
 	// lookup best match to wrapper
 	MyWrapper wrapper = asMyWrapper(toFind);
+	findCandidates(id, wrapper);
+	for (int i=0; i<candidates.size(); i++) {
+	    MyWrapper wj = strings[candidates.get(i)];
+	    double score = distance.score( wrapper.getDistanceWrapper(), wj.getDistanceWrapper() );
+	    if (DEBUG) System.out.println("score for "+wj+": "+score);
+	    if (score>=distanceToClosestMatch) {
+		distanceToClosestMatch = score;
+		closestMatch = wj;
+	    }
+	}
+	lastLookup = toFind;
+    }
+
+    // find the numbers of the strings that share a useful token with
+    // the query, other than those with the given id, and leave them in
+    // 'candidates'
+    private void findCandidates(String id,MyWrapper wrapper)
+    {
+	Integer idCode = id==null ? null : (Integer)idCodeOf.get(id);
+	int excluded = idCode==null ? -1 : idCode.intValue();
+	if (isCandidate.length<<6 < numStrings) isCandidate = new long[(numStrings+63)>>>6];
+	// clear the bits set by the last lookup
+	for (int i=0; i<candidates.size(); i++) isCandidate[candidates.get(i)>>>6] = 0;
+	candidates.clear();
+
 	Token[] tokens = wrapper.getTokens();
 	for (int i=0; i<tokens.length; i++) {
-	    ArrayList stringsWithToken = (ArrayList) index.get(tokens[i]);
-	    if (stringsWithToken!=null && ((double)stringsWithToken.size()/totalEntries) < maxFraction) {
-		for (Iterator j=stringsWithToken.iterator(); j.hasNext(); ) {
-		    MyWrapper wj = (MyWrapper)j.next(); 
-		    String wjId = (String)idMap.get(wj);
-		    //if (DEBUG) System.out.println("id:"+id+" wjId:"+wjId);
-		    if (!closeMatches.contains(wj) && (wjId==null || !wjId.equals(id))) {
-			double score = distance.score( wrapper.getDistanceWrapper(), wj.getDistanceWrapper() );
-			if (DEBUG) System.out.println("score for "+wj+": "+score);
-			//if (DEBUG) System.out.println(distance.explainScore(wrapper.getDistanceWrapper(),wj.getDistanceWrapper()));
-			closeMatches.add( wj );
-			if (score>=distanceToClosestMatch) {
-			    //if (DEBUG) System.out.println("closest so far");
-			    distanceToClosestMatch = score;
-			    closestMatch = wj;
-			}
-		    }
+	    Integer t = (Integer)tokenIds.get(tokens[i]);
+	    if (t==null) continue;
+	    int n = postingSize[t.intValue()];
+	    if (((double)n/totalEntries) >= maxFraction) continue;
+	    int[] stringsWithToken = postings[t.intValue()];
+	    for (int j=0; j<n; j++) {
+		int s = stringsWithToken[j];
+		long bit = 1L << s;
+		if ((isCandidate[s>>>6] & bit)==0 && (excluded<0 || idCodes[s]!=excluded)) {
+		    isCandidate[s>>>6] |= bit;
+		    candidates.add( s );
 		}
 	    }
 	}
-	lastLookup = toFind;
+    }
+
+    /** Find the k strings in the dictionary that are closest to a
+     * prepared string, and return them as LookupResults, best first.
+     *
+     * <p>If id is non-null, then consider only strings with different ids (or null ids).
+     */
+    public List lookupTopK(int k,String id,StringWrapper toFind)
+    {
+	if (distance==null) {
+	    distance = new MyTeacher().train( distanceLearner );
+	}
+	MyWrapper wrapper = asMyWrapper(toFind);
+	findCandidates(id, wrapper);
+	// keep the k best so far, with the worst of them at the head
+	PriorityQueue best = new PriorityQueue(Math.max(1,k), Collections.reverseOrder());
+	for (int i=0; i<candidates.size() && k>0; i++) {
+	    int s = candidates.get(i);
+	    double score = distance.score( wrapper.getDistanceWrapper(), strings[s].getDistanceWrapper() );
+	    if (best.size()<k) {
+		best.add( new LookupResult(strings[s].unwrap(), values[s], score) );
+	    } else if (score > ((LookupResult)best.peek()).getScore()) {
+		best.poll();
+		best.add( new LookupResult(strings[s].unwrap(), values[s], score) );
+	    }
+	}
+	List result = new ArrayList(best);
+	Collections.sort(result);
+	return result;
+    }
+
+    /** Find the k strings in the dictionary that are closest to a string.
+     *
+     * <p>If id is non-null, then consider only strings with different ids (or null ids).
+     */
+    public List lookupTopK(int k,String id,String toFind)
+    {
+	return lookupTopK(k,id,new MyWrapper(toFind));
+    }
+
+    /** Find the k strings in the dictionary that are closest to a string.
+     */
+    public List lookupTopK(int k,String toFind)
+    {
+	return lookupTopK(k,null,new MyWrapper(toFind));
+    }
+
+    /** Find the k strings in the dictionary that are closest to a prepared string.
+     */
+    public List lookupTopK(int k,StringWrapper toFind)
+    {
+	return lookupTopK(k,null,toFind);
     }
 	
     /** Lookup a string in the dictionary.
@@ -344,7 +478,7 @@ public class SoftDictionary
     // simple teacher that only supports unsupervised training
     private class MyTeacher extends StringDistanceTeacher {
 	protected StringWrapperIterator stringWrapperIterator() {
-	    return new BasicStringWrapperIterator(map.keySet().iterator());
+	    return new BasicStringWrapperIterator(Arrays.asList(strings).subList(0,numStrings).iterator());
 	}
 	protected DistanceInstanceIterator distanceInstancePool() {
 	    return new BasicDistanceInstanceIterator( Collections.EMPTY_SET.iterator() );
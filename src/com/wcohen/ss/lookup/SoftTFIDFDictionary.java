@@ -1,7 +1,11 @@
 package com.wcohen.ss.lookup;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.apache.log4j.Logger;
 
@@ -29,6 +33,18 @@ import com.wcohen.ss.tokens.*;
  *    System.out.println("similarity of '"+dict.getResult(i)+"' to query string is "+dict.getScore(i));
  * }
  * </pre></code>
+ *
+ * <p>lookup and getResult(i), etc, keep the results of the last
+ * lookup in the dictionary, so only one thread at a time can use
+ * them.  lookupResults returns the results instead, so a frozen
+ * dictionary can serve lookups from several threads at once.
+ *
+ * <p>Strings can still be put into (or removed from) a frozen
+ * dictionary.  These updates are added to the index incrementally,
+ * and a lookup sees the dictionary as it was when the lookup started.
+ * Tokens keep the weights they had when the dictionary was frozen
+ * until compact() re-weights them, which happens in the background
+ * every so many updates (see setMaxUpdates).
  * 
  */
 
@@ -39,142 +55,185 @@ public class SoftTFIDFDictionary implements FastLookup
 	private static final int DEFAULT_WINDOW_SIZE=100;
 	private static final double DEFAULT_MIN_TOKEN_SIMILARITY=0.9;
 	private static final int DEFAULT_MAX_INVERTED_INDEX_SIZE=0;
+	private static final int DEFAULT_MAX_UPDATES=10000;
 	private static final Tokenizer DEFAULT_TOKENIZER=new SimpleTokenizer(false,true);
 	private static final Comparator LEXICAL_ORDER_FOR_TOKENS = new Comparator() {
 		public int compare(Object a,Object b) {
 			return ((Token)a).getValue().compareTo(((Token)b).getValue());
 		} 
 	};
-	private static final Comparator ID_ORDER_FOR_TOKENS = new Comparator() {
-		public int compare(Object a,Object b) {
-			return ((Token)a).getIndex() - ((Token)b).getIndex();
-		} 
-	};
 
 	//
 	// local information
 	// 
 
-	// minTokenSimilarity and tokenizer are used to define a softTFIDF string distance
+	// minTokenSimilarity and tokenizer are used to define a softTFIDF string
+	// distance, which is trained when the dictionary is frozen, and kept
+	// with the index
 	private double minTokenSimilarity;
 	private Tokenizer tokenizer;
-	private SoftTFIDF softTFIDFDistance;
-	// the tfidfDistance is used to compute upper bounds on the score associated with
-	// a particular token, for pruning
-	private TFIDF tfidfDistance;
 	// the jaroWinklerDistance is the inner similarity metric used in the softTFIDFDistance,
 	// and is used for precomputing pairs of similar tokens
 	private JaroWinkler jaroWinklerDistance;
 	// windowSize is used for pruning the pairs of tokens for which jaroWinklerDistance
-	// will be pre-computed.
+	// will be pre-computed, unless another similarTokenIndexBuilder is given
 	private int windowSize;
+	private SimilarTokenIndex.Builder similarTokenIndexBuilder = null;
 	// maxInvertedIndexSize limits size of an inverted index that is followed
 	private int maxInvertedIndexSize;
 
 	// the dictionary itself - map a dictionary string to a set of values
+	// (null for a dictionary restored from a file, until it's needed)
 	private Map valueMap = new HashMap();
 	// flag which indicates if this dictionary is 'frozen' 
-	private boolean frozen = false;
-	//
-	// after freezing, these things are pre-computed to make lookup faster
-	//
-	// map a token to the highest TFIDF score it has for any string in the dictionary
-	private double[] maxTFIDFScore;
-	// map a token index to all highly-similar token id's
-	Token[][] similarTokens;
-	// map a token index to all strings that contain it
-	Set[] invertedIndex;
-	// all tokens, in alphabetic order
-	Token[] allTokens;
-	// number of tokens in allTokens
-	int numTokens; 
+	private volatile boolean frozen = false;
+	// after freezing, the tokens, inverted index, etc, which are
+	// pre-computed to make lookup faster, and never changed, so that
+	// lookups can share them
+	volatile SoftTFIDFIndex index;
+	// changed whenever the index is
+	private volatile long version = 0;
 
 	//
 	// file i/o
 	//
 
+	// marks the start of a file written by saveAs
+	private static final int MAGIC = 0x53535444;
+	// version of the file format written by saveAs; version 1 files,
+	// which have a shorter header and only String values, can still
+	// be restored
+	private static final int FILE_FORMAT_VERSION = 2;
+	// size of the header that saveAs writes before the index, and of
+	// the header of a version 1 file
+	private static final int HEADER_SIZE = 40;
+	private static final int HEADER_SIZE_V1 = 24;
+	// the kinds of similar-token index builder saved in the header
+	private static final int DEFAULT_BUILDER = 0;
+	private static final int WINDOW_BUILDER = 1;
+	private static final int CHARACTER_COUNT_BUILDER = 2;
+
+	/** Save the dictionary in a compact binary format, which can be
+	 * mapped back into memory quickly by restore().  The dictionary
+	 * must use the default tokenizer.  String values are mapped back
+	 * like the dictionary strings; if there are other values, they
+	 * must all be Serializable, and are serialized together.
+	 *
+	 * <p>The similar-token index builder is saved if it is the
+	 * default or one of the builders in this package; any other
+	 * builder must be set again after the dictionary is restored.
+	 *
+	 * <p>The dictionary is written to a temporary file, which then
+	 * replaces the given file, so a save that fails leaves any
+	 * earlier save in place.
+	 */
 	public void saveAs(File file) throws IOException,FileNotFoundException
 	{
-		freeze();
-
-		ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
-
-		// save the parameters of the SoftTFIDFDictionary
-		if (tokenizer!=DEFAULT_TOKENIZER) throw new IllegalStateException("can't save a non-default tokenizer");
-		out.writeDouble(minTokenSimilarity);
-		out.writeInt(windowSize);
-		out.writeInt(maxInvertedIndexSize);
-
-		// save the valueMap
-		if (DEBUG) System.out.println("saving valueMap...");
-		//if (DEBUG) showValueMap();
-		out.writeInt(valueMap.entrySet().size());
-		for (Iterator i=valueMap.entrySet().iterator(); i.hasNext(); ) {
-			Map.Entry e = (Map.Entry)i.next();
-			out.writeObject( e.getKey() );
-			out.writeObject( e.getValue() );
+		SoftTFIDFIndex index;
+		synchronized (this) {
+			// the file holds no updates, so they are compacted first
+			if (!frozen || this.index.updates!=null) refreeze();
+			index = this.index;
 		}
 
-		// save numTokens, allTokens 
-		if (DEBUG) System.out.println("saving allTokens...");
-		//if (DEBUG) showAllTokens();
-		out.writeInt( numTokens );
-		Arrays.sort( allTokens, ID_ORDER_FOR_TOKENS );
-		for (int i=0; i<numTokens; i++) {
-			out.writeObject( allTokens[i].getValue() );
-		}
-		Arrays.sort( allTokens, LEXICAL_ORDER_FOR_TOKENS );
-
-		if (DEBUG) System.out.println("saving df's...");
-		for (int i=0; i<numTokens; i++) {
-			out.writeInt( tfidfDistance.getDocumentFrequency(allTokens[i]) );
-		}
-		out.writeInt( tfidfDistance.getCollectionSize() );
-
-		if (DEBUG) System.out.println("saving maxTFIDFScore...");
-		// save maxTFIDFScore
-		for (int i=0; i<numTokens; i++) {
-			Token toki = allTokens[i];
-			out.writeDouble( maxTFIDFScore[toki.getIndex()] );
+		if (tokenizer!=DEFAULT_TOKENIZER) throw new IllegalStateException("can't save a non-default tokenizer");
+		// serialize any non-String values first, so that a value that
+		// can't be serialized is found before anything is written
+		byte[] serializedValues = index.serializeValues();
+		int builderKind = DEFAULT_BUILDER;
+		int builderWindowSize = windowSize;
+		if (similarTokenIndexBuilder instanceof WindowSimilarTokenIndex.Builder) {
+			builderKind = WINDOW_BUILDER;
+			builderWindowSize = ((WindowSimilarTokenIndex.Builder)similarTokenIndexBuilder).getWindowSize();
+		} else if (similarTokenIndexBuilder instanceof CharacterCountSimilarTokenIndex.Builder) {
+			builderKind = CHARACTER_COUNT_BUILDER;
+		} else if (similarTokenIndexBuilder!=null) {
+			log.warn("not saving the similar-token index builder "+similarTokenIndexBuilder+", which must be set again after restoring");
 		}
-		//if (DEBUG) showAllMaxScores();
 
-		// save similarTokens
-		if (DEBUG) System.out.println("saving similarTokens...");
-		for (int i=0; i<numTokens; i++) {
-			Token toki = allTokens[i];
-			int n = similarTokens[ toki.getIndex() ].length;
-			out.writeInt( n );
-			for (int j=0; j<n; j++) {
-				out.writeObject( similarTokens[toki.getIndex()][j].getValue() );
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tmp = File.createTempFile(file.getName(), ".tmp", dir);
+		boolean saved = false;
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(FILE_FORMAT_VERSION);
+				// save the parameters of the SoftTFIDFDictionary
+				out.writeDouble(minTokenSimilarity);
+				out.writeInt(windowSize);
+				out.writeInt(maxInvertedIndexSize);
+				out.writeInt(builderKind);
+				out.writeInt(builderWindowSize);
+				out.writeInt(serializedValues!=null ? 1 : 0);
+				out.writeInt(0);
+				if (DEBUG) System.out.println("saving index...");
+				index.write(out, serializedValues);
+			} finally {
+				out.close();
 			}
-		}
-
-		// save invertedIndex
-		if (DEBUG) System.out.println("saving invertedIndex...");
-		for (int i=0; i<numTokens; i++) {        
-			Token toki = allTokens[i];
-			Set ii = invertedIndex[toki.getIndex()];
-			out.writeInt( ii.size() );
-			for (Iterator j=ii.iterator(); j.hasNext(); ) {
-				String s = (String)j.next();
-				out.writeObject( s );
+			try {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException ex) {
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
+			saved = true;
+		} finally {
+			if (!saved) tmp.delete();
 		}
-
-		out.close();
 	}
 
+	/** Restore a dictionary saved with saveAs().  The saved index is
+	 * mapped into memory rather than read, so this takes time
+	 * proportional to the number of distinct tokens (and of values
+	 * that aren't Strings), not to the size of the dictionary.  Files
+	 * written with the serialization-based format of older versions
+	 * can also be restored, but are re-frozen after loading.
+	 */
 	static public SoftTFIDFDictionary restore(File file) throws IOException,FileNotFoundException
 	{
+		RandomAccessFile raf = new RandomAccessFile(file,"r");
 		try {
-			return doRestore(file);
-		} catch (ClassNotFoundException ex) {
-			throw new IOException("improperly format SoftTFIDFDictionary file:"+ex);
+			FileChannel channel = raf.getChannel();
+			if (channel.size()<HEADER_SIZE_V1 || raf.readInt()!=MAGIC) {
+				try {
+					return restoreSerialized(file);
+				} catch (ClassNotFoundException ex) {
+					throw new IOException("improperly format SoftTFIDFDictionary file:"+ex);
+				}
+			}
+			int version = raf.readInt();
+			if (version!=1 && version!=FILE_FORMAT_VERSION) throw new IOException("unknown SoftTFIDFDictionary file format version "+version);
+			double mts = raf.readDouble();
+			int ws = raf.readInt();
+			int miis = raf.readInt();
+			int builderKind = DEFAULT_BUILDER, builderWindowSize = ws;
+			boolean serializedValues = false;
+			if (version>1) {
+				builderKind = raf.readInt();
+				builderWindowSize = raf.readInt();
+				serializedValues = raf.readInt()!=0;
+			}
+			SoftTFIDFDictionary dict = new SoftTFIDFDictionary(DEFAULT_TOKENIZER,mts,ws,miis);
+			if (builderKind==WINDOW_BUILDER) {
+				dict.similarTokenIndexBuilder = new WindowSimilarTokenIndex.Builder(builderWindowSize);
+			} else if (builderKind==CHARACTER_COUNT_BUILDER) {
+				dict.similarTokenIndexBuilder = new CharacterCountSimilarTokenIndex.Builder();
+			}
+			if (DEBUG) System.out.println("mapping index...");
+			dict.index = SoftTFIDFIndex.map(channel, version>1 ? HEADER_SIZE : HEADER_SIZE_V1, serializedValues,
+					dict.tokenizer, new TFIDF(dict.tokenizer), dict.newSoftTFIDF());
+			dict.valueMap = null;
+			dict.frozen = true;
+			return dict;
+		} finally {
+			raf.close();
 		}
 	}
 
-	static private SoftTFIDFDictionary doRestore(File file) throws IOException,FileNotFoundException,ClassNotFoundException
+	// read a file written by ObjectOutputStream, in the old format,
+	// which has the parameters and string/value pairs first
+	static private SoftTFIDFDictionary restoreSerialized(File file) throws IOException,FileNotFoundException,ClassNotFoundException
 	{
 		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
 
@@ -186,72 +245,16 @@ public class SoftTFIDFDictionary implements FastLookup
 
 		// read the valueMap
 		if (DEBUG) System.out.println("restoring valueMap...");
-		dict.valueMap = new HashMap();
 		int v = in.readInt();
 		for (int i=0; i<v; i++) {
 			String key = (String)in.readObject();
 			Object value = in.readObject();
 			dict.valueMap.put( key, value );
 		}
-
-		// read numTokens, allTokens
-		if (DEBUG) System.out.println("restoring allTokens...");
-		dict.numTokens = in.readInt();
-		dict.allTokens = new Token[dict.numTokens];
-		for (int i=0; i<dict.numTokens; i++) {
-			String tokenValue = (String)in.readObject();
-			dict.allTokens[i] = dict.tokenizer.intern( tokenValue );
-		}
-		Arrays.sort( dict.allTokens, LEXICAL_ORDER_FOR_TOKENS );
-		//if (DEBUG) dict.showAllTokens();
-
-		if (DEBUG) System.out.println("restoring df's...");
-		for (int i=0; i<dict.numTokens; i++) {
-			int df = in.readInt();
-			dict.tfidfDistance.setDocumentFrequency( dict.allTokens[i], df );
-			dict.softTFIDFDistance.setDocumentFrequency( dict.allTokens[i], df );
-		}
-		int cs = in.readInt();
-		dict.tfidfDistance.setCollectionSize( cs );
-		dict.softTFIDFDistance.setCollectionSize( cs );
-
-		// read maxTFIDFScore
-		if (DEBUG) System.out.println("restoring maxTFIDFScore...");
-		dict.maxTFIDFScore = new double[ dict.tokenizer.maxTokenIndex()+1 ];
-		for (int i=0; i<dict.numTokens; i++) {
-			Token toki = dict.allTokens[i];            
-			dict.maxTFIDFScore[ toki.getIndex() ] = in.readDouble();
-		}
-		//if (DEBUG) dict.showAllMaxScores();
-
-		// read similarTokens
-		if (DEBUG) System.out.println("restoring similarTokens...");
-		dict.similarTokens = new Token[dict.tokenizer.maxTokenIndex()+1][];
-		for (int i=0; i<dict.numTokens; i++) {
-			Token toki = dict.allTokens[i];
-			int n = in.readInt();
-			dict.similarTokens[ toki.getIndex() ] = new Token[n];
-			for (int j=0; j<n; j++) {
-				String tokenValue = (String)in.readObject();
-				dict.similarTokens[toki.getIndex()][j] = dict.tokenizer.intern( tokenValue );
-			}
-		}
-
-		// read the invertedIndex
-		if (DEBUG) System.out.println("restoring invertedIndex...");        
-		dict.invertedIndex = new Set[dict.tokenizer.maxTokenIndex()+1];
-		for (int i=0; i<dict.numTokens; i++) {        
-			Token toki = dict.allTokens[i];
-			dict.invertedIndex[toki.getIndex()] = new HashSet();
-			int n = in.readInt();
-			for (int j=0; j<n; j++) {
-				String s = (String)in.readObject();
-				dict.invertedIndex[toki.getIndex()].add( s );
-			}
-		}
 		in.close();
 
-		dict.frozen = true;
+		// the rest of the file is recomputed by freezing
+		dict.freeze();
 		return dict;
 	}
 
@@ -261,14 +264,14 @@ public class SoftTFIDFDictionary implements FastLookup
 	}
 	private void showAllTokens() 
 	{ 
-		for (int i=0; i<numTokens; i++) {
-			System.out.println("allTokens["+i+"] = "+allTokens[i]);
+		for (int i=0; i<index.numTokens(); i++) {
+			System.out.println("allTokens["+i+"] = "+index.token(i));
 		}
 	}
 	private void showAllMaxScores() 
 	{ 
-		for (int i=0; i<numTokens; i++) {
-			System.out.println("allTokens["+i+"] = "+allTokens[i]+" maxscore = "+maxTFIDFScore[i]);
+		for (int i=0; i<index.numTokens(); i++) {
+			System.out.println("allTokens["+i+"] = "+index.token(i)+" maxscore = "+index.maxTFIDFScore.get(i));
 		}
 	}
 
@@ -301,11 +304,11 @@ public class SoftTFIDFDictionary implements FastLookup
 		this.minTokenSimilarity = minTokenSimilarity;
 		this.windowSize = windowSize;
 		this.maxInvertedIndexSize = maxInvertedIndexSize;
-		tfidfDistance = new TFIDF(tokenizer);
 		jaroWinklerDistance = new JaroWinkler();
-		softTFIDFDistance = new SoftTFIDF(tokenizer,jaroWinklerDistance,minTokenSimilarity);
 	}
 
+	private SoftTFIDF newSoftTFIDF() { return new SoftTFIDF(tokenizer,jaroWinklerDistance,minTokenSimilarity); }
+
 	/** Set the 'windowSize' used for finding similar tokens.  When
 	 * finding tokens t2 that are similar to a given t1, the
 	 * dictionary limits itself to tokens t3 that are within
@@ -315,6 +318,19 @@ public class SoftTFIDFDictionary implements FastLookup
 	public void setWindowSize(int w) { this.windowSize=w; }
 	public int getWindowSize(int w) { return windowSize; }
 
+	/** Set the way of finding candidates for tokens similar to a
+	 * given token.  The default, or null, is a
+	 * WindowSimilarTokenIndex of the current 'windowSize'; a
+	 * CharacterCountSimilarTokenIndex finds every similar token.  The
+	 * index is built when the dictionary is frozen, or for a restored
+	 * dictionary, when the first novel query token is looked up.
+	 */
+	public void setSimilarTokenIndexBuilder(SimilarTokenIndex.Builder builder) { similarTokenIndexBuilder=builder; }
+	public SimilarTokenIndex.Builder getSimilarTokenIndexBuilder() 
+	{ 
+		return similarTokenIndexBuilder!=null ? similarTokenIndexBuilder : new WindowSimilarTokenIndex.Builder(windowSize); 
+	}
+
 	/** Set the maximum size of an inverted index that will be
 	 * followed.  If this is zero (the default) then any inverted
 	 * index will be followed, even for very frequent tokens, if
@@ -349,238 +365,1094 @@ public class SoftTFIDFDictionary implements FastLookup
 	}
 
 	/** Insert a string into the dictionary, and associate it with the
-	 * given value.
-	 *
+	 * given value.  If the dictionary is frozen, the string is added
+	 * to the index as an update (see below).
 	 */
-	public void put(String string,Object value)
+	public synchronized void put(String string,Object value)
 	{
-		if (frozen) throw new IllegalStateException("can't add new values to a frozen dictionary");
+		if (frozen) {
+			if (!valueMap().containsKey(string)) valueMap.put(string, new HashSet());
+			if (((Set)valueMap.get(string)).add( value )) update( string, value, true );
+			return;
+		}
 		Set valset = (Set)valueMap.get(string);
 		if (valset==null) valueMap.put(string, (valset=new HashSet()));
 		valset.add( value );
 	}
 
-	public void refreeze()
+	/** Remove a value of a string from the dictionary.  The string is
+	 * removed too if this was its only value. */
+	public synchronized void remove(String string,Object value)
+	{
+		Set valset = (Set)valueMap().get(string);
+		if (valset==null || !valset.remove( value )) return;
+		if (valset.isEmpty()) valueMap.remove( string );
+		if (frozen) update( string, value, false );
+	}
+
+	/** Remove a string, and all its values, from the dictionary. */
+	public synchronized void remove(String string)
 	{
+		if (valueMap().remove( string )==null) return;
+		if (frozen) update( string, null, false );
+	}
+
+	// the map from strings to sets of values, which a restored
+	// dictionary doesn't need until it changes
+	private Map valueMap()
+	{
+		if (valueMap==null) valueMap = index.toValueMap();
+		return valueMap;
+	}
+
+	public synchronized void refreeze()
+	{
+		// a restored dictionary is refrozen from the strings in its index
+		valueMap();
 		frozen = false;
 		freeze();
 	}
 
+	//
+	// updating a frozen dictionary
+	//
+
+	/*
+	 * Strings put into (or removed from) a frozen dictionary are added
+	 * to its index incrementally: new strings are added to the inverted
+	 * indices of their tokens, new tokens are compared to the tokens
+	 * already known, and maxTFIDFScore and document frequencies are
+	 * updated.  Each update publishes a new copy of the index, so a
+	 * lookup runs on the version of the dictionary that was current
+	 * when it started.
+	 *
+	 * Tokens are weighted with the statistics from when the index was
+	 * built, so weights drift as the dictionary changes; compact()
+	 * rebuilds the index, and re-weights the tokens.
+	 */
+
+	// the changes made while the index is being compacted, each as
+	// {string, value, Boolean.TRUE for put or FALSE for remove}, or
+	// null if it isn't being compacted
+	private List updatesDuringCompaction = null;
+	// allows only one compaction at a time
+	private final Object compactionLock = new Object();
+	// compact in the background after this many updates, if positive
+	private int maxUpdates = DEFAULT_MAX_UPDATES;
+	private boolean compactingInBackground = false;
+
+	/** Compact the index in the background once this many updates have
+	 * been made to a frozen dictionary since its index was built.  The
+	 * default is 10000.  If this is zero, the index is only compacted
+	 * by calling compact() or refreeze().
+	 */
+	public void setMaxUpdates(int n) { maxUpdates=n; }
+	public int getMaxUpdates() { return maxUpdates; }
+
+	/** The number of updates made since the index was last built. */
+	public int getNumUpdates() 
+	{ 
+		SoftTFIDFIndex idx = index;
+		return idx==null || idx.updates==null ? 0 : idx.updates.numUpdates; 
+	}
+
+	/** The number of dictionary strings that contain a token, including updates. */
+	public int getDocumentFrequency(String token)
+	{
+		SoftTFIDFIndex idx = frozenIndex();
+		int id = idx.idOf( tokenizer.intern(token) );
+		return id<0 ? 0 : idx.documentFrequency(id);
+	}
+
+	/** The number of strings in the dictionary, including updates. */
+	public int getCollectionSize() { return frozenIndex().collectionSize(); }
+
+	/** Rebuild the index from the current strings and values, and
+	 * re-weight their tokens.  Lookups and updates can go on while this
+	 * runs: lookups use the old index, and updates are made to the old
+	 * index, and then made again to the new one before it replaces the
+	 * old one.
+	 */
+	public void compact()
+	{
+		synchronized (compactionLock) {
+			Map snapshot = new HashMap();
+			synchronized (this) {
+				if (!frozen) {
+					freeze();
+					return;
+				}
+				if (index.updates==null) return;
+				for (Iterator i=valueMap.entrySet().iterator(); i.hasNext(); ) {
+					Map.Entry e = (Map.Entry)i.next();
+					snapshot.put( e.getKey(), new HashSet((Set)e.getValue()) );
+				}
+				updatesDuringCompaction = new ArrayList();
+			}
+			SoftTFIDFIndex compacted = null;
+			try {
+				compacted = buildIndex(snapshot);
+			} finally {
+				synchronized (this) {
+					List replay = updatesDuringCompaction;
+					updatesDuringCompaction = null;
+					if (compacted!=null) {
+						if (!replay.isEmpty()) {
+							compacted = compacted.withUpdates(new SoftTFIDFUpdates());
+							for (Iterator i=replay.iterator(); i.hasNext(); ) {
+								Object[] u = (Object[])i.next();
+								applyUpdate( compacted, (String)u[0], u[1], ((Boolean)u[2]).booleanValue() );
+							}
+						}
+						index = compacted;
+						version++;
+					}
+				}
+			}
+		}
+	}
+
+	// run compact() on a new thread, unless that is already happening
+	private void compactInBackground()
+	{
+		if (compactingInBackground) return;
+		compactingInBackground = true;
+		Thread thread = new Thread("SoftTFIDFDictionary compaction") {
+				public void run() {
+					try {
+						compact();
+					} catch (RuntimeException ex) {
+						log.error("compaction failed: "+ex, ex);
+					} finally {
+						synchronized (SoftTFIDFDictionary.this) { compactingInBackground = false; }
+					}
+				}
+			};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	// make an update to a frozen dictionary, and publish the new index;
+	// value is null to remove all the values of a string
+	private void update(String string,Object value,boolean isPut)
+	{
+		SoftTFIDFUpdates u = index.updates==null ? new SoftTFIDFUpdates() : index.updates.copy();
+		SoftTFIDFIndex updated = index.withUpdates(u);
+		applyUpdate( updated, string, value, isPut );
+		index = updated;
+		version++;
+		if (updatesDuringCompaction!=null) updatesDuringCompaction.add(new Object[]{string, value, Boolean.valueOf(isPut)});
+		if (maxUpdates>0 && u.numUpdates>=maxUpdates) compactInBackground();
+	}
+
+	// change the (not yet published) updates of idx
+	private void applyUpdate(SoftTFIDFIndex idx,String string,Object value,boolean isPut)
+	{
+		SoftTFIDFUpdates u = idx.updates;
+		int id = idx.idOfString( string );
+		Object[] vals = id<0 ? new Object[0] : new Object[idx.numValuesOf(id)];
+		for (int k=0; k<vals.length; k++) vals[k] = idx.valueOf(id, k);
+		List newVals = new ArrayList(Arrays.asList(vals));
+		if (isPut) {
+			if (newVals.contains(value)) return;
+			newVals.add(value);
+		} else {
+			if (value==null) newVals.clear();
+			else newVals.remove(value);
+			if (newVals.size()==vals.length) return;
+		}
+		if (id<0) {
+			// a new string is numbered after the others
+			id = idx.numStrings();
+			u.addString(string);
+			u.idOfString.put(string, Integer.valueOf(id));
+			addTokensOf( idx, string, id, 1, true );
+		} else if (vals.length==0) {
+			// a removed string is back
+			addTokensOf( idx, string, id, 1, false );
+		} else if (newVals.isEmpty()) {
+			// the string is removed, but stays in the inverted indices
+			addTokensOf( idx, string, id, -1, false );
+		}
+		u.values.put(Integer.valueOf(id), newVals.toArray());
+		u.numUpdates++;
+	}
+
+	// add delta to the document frequency of each token of the string
+	// with the given number, and add the string to their inverted
+	// indices if it is new
+	private void addTokensOf(SoftTFIDFIndex idx,String string,int stringId,int delta,boolean isNew)
+	{
+		SoftTFIDFUpdates u = idx.updates;
+		StringWrapper w = idx.tfidfDistance.prepare( string );
+		Token[] toks = idx.tfidfDistance.getTokens( w );
+		for (int j=0; j<toks.length; j++) {
+			int id = idx.idOf( toks[j] );
+			if (id<0) id = addToken( idx, toks[j] );
+			Integer key = Integer.valueOf(id);
+			if (isNew) {
+				SoftTFIDFUpdates.append( u.postings, id, stringId );
+				double maxScore = Math.max( idx.maxTFIDFScore(id), idx.tfidfDistance.getWeight(w, toks[j]) );
+				u.maxTFIDFScore.put( key, Double.valueOf(maxScore) );
+			}
+			Integer df = (Integer)u.documentFrequency.get(key);
+			u.documentFrequency.put( key, Integer.valueOf((df==null ? 0 : df.intValue()) + delta) );
+		}
+		u.collectionSize += delta;
+	}
+
+	// number a new token after the others, and find the tokens similar to it
+	private int addToken(SoftTFIDFIndex idx,Token tok)
+	{
+		SoftTFIDFUpdates u = idx.updates;
+		int id = idx.numAllTokens();
+		IntArrayList similar = new IntArrayList();
+		SimilarTokenIndex similarTokenIndex = idx.similarTokenIndex( getSimilarTokenIndexBuilder(), minTokenSimilarity );
+		findSimilarTokens( similarTokenIndex, idx.tokens, tok.getValue(), -1, similar, new IntArrayList() );
+		findSimilarAddedTokens( idx, tok.getValue(), id, similar );
+		u.addToken(tok.getValue(), minTokenSimilarity);
+		u.idOfToken.put(Integer.valueOf(tok.getIndex()), Integer.valueOf(id));
+		for (int k=0; k<similar.size(); k++) {
+			SoftTFIDFUpdates.append( u.similar, id, similar.get(k) );
+			SoftTFIDFUpdates.append( u.similar, similar.get(k), id );
+		}
+		return id;
+	}
+
+	// append to 'similar' the numbers of the tokens added by updates
+	// that are similar to s, other than the token numbered self
+	private void findSimilarAddedTokens(SoftTFIDFIndex idx,String s,int self,IntArrayList similar)
+	{
+		if (idx.updates==null) return;
+		StringWrapper ws = jaroWinklerDistance.prepare( s );
+		IntArrayList candidates = new IntArrayList();
+		idx.updates.candidates( s, candidates );
+		for (int c=0; c<candidates.size(); c++) {
+			int k = candidates.get(c);
+			int j = idx.numTokens()+k;
+			if (j!=self) {
+				double d = jaroWinklerDistance.score( ws, jaroWinklerDistance.prepare(idx.updates.token(k)), minTokenSimilarity );
+				if (d>=minTokenSimilarity) similar.add( j );
+			}
+		}
+	}
+
 	/** Make it impossible to add new values, but possible to perform lookups. 
+	 *
+	 * <p>Freezing tokenizes and weights every dictionary string, and
+	 * compares every token to the tokens near it in lexical order.
+	 * These steps are split into parts that run as tasks on the freeze
+	 * pool (see setFreezeThreads): each part of the strings makes its
+	 * own list of the tokens in each string, and these are merged into
+	 * the inverted index at the end, and likewise for the similar
+	 * tokens of each part of the tokens.  The time taken by each phase
+	 * is logged, and kept for getFreezeTimes().
 	 */
-	public void freeze()
+	public synchronized void freeze()
 	{
 		if (frozen) return;
+		index = buildIndex(valueMap);
+		version++;
+		frozen = true;
+	}
+
+	// build an index of the strings in a map from strings to sets of
+	// values, which mustn't change meanwhile
+	private SoftTFIDFIndex buildIndex(Map valueMap)
+	{
+		Map times = new LinkedHashMap();
+		long start = System.currentTimeMillis();
+
+		// number the strings in lexical order, and the distinct values in order of appearance
+		final String[] strings = (String[])valueMap.keySet().toArray(new String[valueMap.size()]);
+		Arrays.sort(strings);
+		int[] valueStart = new int[strings.length+1];
+		IntArrayList valueIds = new IntArrayList();
+		Map idOfValue = new HashMap();
+		List values = new ArrayList();
+		for (int i=0; i<strings.length; i++) {
+			for (Iterator j=((Set)valueMap.get(strings[i])).iterator(); j.hasNext(); ) {
+				Object value = j.next();
+				Integer id = (Integer)idOfValue.get(value);
+				if (id==null) {
+					idOfValue.put(value, (id=Integer.valueOf(values.size())));
+					values.add(value);
+				}
+				valueIds.add( id.intValue() );
+			}
+			valueStart[i+1] = valueIds.size();
+		}
+		start = recordTime(times, "strings", start);
 
 		// train the TFIDF distance on all strings seen
-		trainDistances();
-
-		// now, compute the maxScore of each token, and create an inverted index
-		if (DEBUG) System.out.println("computing maxScore of "+tokenizer.maxTokenIndex()+" tokens");
-		invertedIndex = new Set[ tokenizer.maxTokenIndex()+1 ];
-		maxTFIDFScore = new double[ tokenizer.maxTokenIndex()+1 ];
-		for (Iterator i=valueMap.keySet().iterator(); i.hasNext(); ) {
-			String s = (String)i.next();
-			tfidfDistance.prepare( s );
-			Token[] tokens = tfidfDistance.getTokens();
-			for (int j=0; j<tokens.length; j++) {
-				Token tok = tokens[j];
-				double w = tfidfDistance.getWeight( tok );
-				maxTFIDFScore[ tok.getIndex() ] = Math.max( maxTFIDFScore[tok.getIndex()], w );
-				Set ii = invertedIndex[ tok.getIndex() ];
-				if (ii==null) ii = invertedIndex[ tok.getIndex() ] = new HashSet();
-				ii.add( s );
-				//if (DEBUG) System.out.println("adjust maxscore, invertedIndex for "+tok);
-			}
-		}
-
-		// find out which tokens are similar to which other tokens
-		if (DEBUG) System.out.println("computing similar-tokens for "+tokenizer.maxTokenIndex()+" tokens, window="+windowSize);
-		allTokens = new Token[tokenizer.maxTokenIndex()] ;
-		numTokens=0;
+		final TFIDF tfidfDistance = new TFIDF(tokenizer);
+		SoftTFIDF softTFIDFDistance = newSoftTFIDF();
+		trainDistances(strings, tfidfDistance, softTFIDFDistance);
+		start = recordTime(times, "train", start);
+
+		// number the tokens in lexical order (other threads may be
+		// adding tokens meanwhile, but not tokens of these strings)
+		List tokenList = new ArrayList();
+		int maxTokenIndex = 0;
 		for (Iterator i=tokenizer.tokenIterator(); i.hasNext(); ) {        
-			Token toki = (Token)i.next();
-			allTokens[numTokens++] = toki;
+			Token tok = (Token)i.next();
+			tokenList.add(tok);
+			maxTokenIndex = Math.max(maxTokenIndex, tok.getIndex());
 		}
+		Token[] allTokens = (Token[])tokenList.toArray(new Token[tokenList.size()]);
+		int numTokens = allTokens.length;
 		Arrays.sort(allTokens,LEXICAL_ORDER_FOR_TOKENS);
-
-		similarTokens = new Token[tokenizer.maxTokenIndex()+1][];
-
+		final int[] idOfToken = new int[ maxTokenIndex+1 ];
+		final String[] tokenValues = new String[numTokens];
+		int[] documentFrequency = new int[numTokens];
 		for (int i=0; i<numTokens; i++) {
-			Token toki = allTokens[i];
-			Set likeTokI = findSimilarTokens( toki.getValue(), i );
-			similarTokens[ toki.getIndex() ] = new Token[ likeTokI.size() ];
-			int k = 0;
-			for (Iterator j=likeTokI.iterator(); j.hasNext(); ) {
-				Token tokj = (Token)j.next();
-				similarTokens[toki.getIndex()][ k++ ] = tokj;
+			idOfToken[ allTokens[i].getIndex() ] = i;
+			tokenValues[i] = allTokens[i].getValue();
+			documentFrequency[i] = tfidfDistance.getDocumentFrequency( allTokens[i] );
+		}
+		final SoftTFIDFIndex.StringTable tokens = new SoftTFIDFIndex.StringTable(tokenValues);
+		start = recordTime(times, "tokens", start);
+
+		// now, compute the maxScore of each token, and create an inverted
+		// index.  Each part of the strings lists the tokens of its
+		// strings, with their weights...
+		int numParts = numParts(strings.length);
+		final IntArrayList[] tokensOfStrings = new IntArrayList[numParts];
+		final double[][] weightsOfStrings = new double[numParts][];
+		final int[] tokensOfStringStart = new int[strings.length+1];
+		inParts(strings.length, numParts, new Part() {
+			void run(int part,int lo,int hi) {
+				IntArrayList ids = new IntArrayList();
+				double[] weights = new double[16];
+				for (int i=lo; i<hi; i++) {
+					StringWrapper w = tfidfDistance.prepare( strings[i] );
+					Token[] toks = tfidfDistance.getTokens( w );
+					for (int j=0; j<toks.length; j++) {
+						if (ids.size()==weights.length) weights = Arrays.copyOf(weights, 2*weights.length);
+						weights[ids.size()] = tfidfDistance.getWeight( w, toks[j] );
+						ids.add( idOfToken[ toks[j].getIndex() ] );
+					}
+					tokensOfStringStart[i+1] = ids.size();
+				}
+				tokensOfStrings[part] = ids;
+				weightsOfStrings[part] = weights;
+			}
+		});
+		// ...and the lists are merged, in order, into the index
+		double[] maxTFIDFScore = new double[numTokens];
+		int[] postingStart = new int[numTokens+1];
+		for (int p=0; p<numParts; p++) {
+			IntArrayList ids = tokensOfStrings[p];
+			for (int k=0; k<ids.size(); k++) {
+				int id = ids.get(k);
+				maxTFIDFScore[id] = Math.max( maxTFIDFScore[id], weightsOfStrings[p][k] );
+				postingStart[id+1]++;
 			}
 		}
+		for (int id=0; id<numTokens; id++) postingStart[id+1] += postingStart[id];
+		int[] postings = new int[ postingStart[numTokens] ];
+		int[] fill = postingStart.clone();
+		for (int p=0; p<numParts; p++) {
+			// tokensOfStringStart is relative to the start of the part's list
+			IntArrayList ids = tokensOfStrings[p];
+			int lo = partStart(strings.length, numParts, p), hi = partStart(strings.length, numParts, p+1);
+			for (int i=lo, k=0; i<hi; i++) {
+				for (; k<tokensOfStringStart[i+1]; k++) postings[ fill[ids.get(k)]++ ] = i;
+			}
+		}
+		start = recordTime(times, "postings", start);
+
+		// find out which tokens are similar to which other tokens, a
+		// part of the tokens at a time
+		final SimilarTokenIndex.Builder builder = getSimilarTokenIndexBuilder();
+		final SimilarTokenIndex similarTokenIndex = builder.build(tokenValues, minTokenSimilarity);
+		numParts = numParts(numTokens);
+		final IntArrayList[] similarOfPart = new IntArrayList[numParts];
+		final int[] similarStart = new int[numTokens+1];
+		inParts(numTokens, numParts, new Part() {
+			void run(int part,int lo,int hi) {
+				IntArrayList similar = new IntArrayList();
+				IntArrayList candidates = new IntArrayList();
+				for (int i=lo; i<hi; i++) {
+					findSimilarTokens( similarTokenIndex, tokens, tokenValues[i], i, similar, candidates );
+					similarStart[i+1] = similar.size();
+				}
+				similarOfPart[part] = similar;
+			}
+		});
+		IntArrayList similar = new IntArrayList();
+		for (int p=0; p<numParts; p++) {
+			int lo = partStart(numTokens, numParts, p), hi = partStart(numTokens, numParts, p+1);
+			for (int i=lo; i<hi; i++) similarStart[i+1] += similar.size();
+			for (int k=0; k<similarOfPart[p].size(); k++) similar.add( similarOfPart[p].get(k) );
+		}
+		start = recordTime(times, "similar", start);
+
+		SoftTFIDFIndex index = new SoftTFIDFIndex(tfidfDistance.getCollectionSize(), tokens, IntBuffer.wrap(documentFrequency),
+				DoubleBuffer.wrap(maxTFIDFScore), IntBuffer.wrap(similarStart), IntBuffer.wrap(similar.toArray()),
+				IntBuffer.wrap(postingStart), IntBuffer.wrap(postings), new SoftTFIDFIndex.StringTable(strings),
+				IntBuffer.wrap(valueStart), IntBuffer.wrap(valueIds.toArray()), new SoftTFIDFIndex.StringTable(values.toArray()),
+				tokenizer, tfidfDistance, softTFIDFDistance);
+		index.setSimilarTokenIndex(builder, similarTokenIndex);
+		recordTime(times, "index", start);
+		freezeTimes = Collections.unmodifiableMap(times);
+		log.info("froze "+strings.length+" strings, "+numTokens+" tokens on "+getFreezeThreads()+" threads; seconds per phase: "+times);
+		return index;
+	}
 
-		frozen = true;
+	private void trainDistances(final String[] strings,final TFIDF tfidfDistance,SoftTFIDF softTFIDFDistance)
+	{
+		final StringWrapper[] accum = new StringWrapper[strings.length];
+		inParts(strings.length, numParts(strings.length), new Part() {
+			void run(int part,int lo,int hi) {
+				for (int i=lo; i<hi; i++) accum[i] = tfidfDistance.prepare( strings[i] );
+			}
+		});
+		tfidfDistance.train( new BasicStringWrapperIterator(Arrays.asList(accum).iterator()) );
+		softTFIDFDistance.train( new BasicStringWrapperIterator(Arrays.asList(accum).iterator()) );
 	}
 
-	private void trainDistances()
+	// store the seconds since start as the time for a phase, and return the time now
+	private static long recordTime(Map times,String phase,long start)
 	{
-		long start = System.currentTimeMillis();
-		List accum = new ArrayList( valueMap.keySet().size() );
-		for (Iterator i=valueMap.keySet().iterator(); i.hasNext(); ) {
-			String s = (String)i.next();
-			accum.add( tfidfDistance.prepare( s ) );
+		long now = System.currentTimeMillis();
+		times.put(phase, Double.valueOf((now-start) / 1000.0));
+		return now;
+	}
+
+	/** Seconds taken by each phase of the last freeze, in the order
+	 * they ran, or an empty map if this dictionary hasn't been frozen
+	 * (or was restored from a file).  The phases are "strings",
+	 * "train", "tokens", "postings", "similar" and "index".
+	 */
+	public Map getFreezeTimes() { return freezeTimes; }
+
+	//
+	// running freeze() in parallel
+	//
+
+	// number of strings or tokens handled by a part of a phase, at least
+	private static final int MIN_PART_SIZE = 256;
+
+	// null means that freeze runs on the calling thread
+	private ForkJoinPool freezePool = ForkJoinPool.commonPool();
+	// the pool made by setFreezeThreads, if freeze still uses it
+	private ForkJoinPool ownFreezePool = null;
+	// times of the phases of the last freeze
+	private volatile Map freezeTimes = Collections.EMPTY_MAP;
+
+	/** Freeze the dictionary with the given number of threads.  With
+	 * one thread (or less), freeze runs on the calling thread; by
+	 * default it runs on the common fork-join pool.  A pool made by an
+	 * earlier call is shut down, once the work given to it is done.
+	 */
+	public void setFreezeThreads(int numThreads) 
+	{ 
+		ForkJoinPool pool = numThreads>1 ? new ForkJoinPool(numThreads) : null;
+		setFreezePool(pool);
+		this.ownFreezePool = pool;
+	}
+
+	/** Freeze the dictionary on the given pool, or on the calling
+	 * thread if pool is null.  The pool belongs to the caller, but a
+	 * pool made by setFreezeThreads is shut down. */
+	public void setFreezePool(ForkJoinPool pool) 
+	{ 
+		if (ownFreezePool!=null) ownFreezePool.shutdown();
+		this.ownFreezePool = null;
+		this.freezePool = pool; 
+	}
+
+	/** Number of threads used by freeze. */
+	public int getFreezeThreads() { return freezePool==null ? 1 : freezePool.getParallelism(); }
+
+	// runs lookupAll
+	private ForkJoinPool lookupPool = ForkJoinPool.commonPool();
+	// the pool made by setLookupThreads, if lookupAll still uses it
+	private ForkJoinPool ownLookupPool = null;
+
+	/** Run lookupAll on this many threads.  By default lookupAll uses
+	 * the common ForkJoinPool; with one thread, it runs on the calling
+	 * thread.  A pool made by an earlier call is shut down, once the
+	 * work given to it is done.
+	 */
+	public void setLookupThreads(int numThreads) 
+	{ 
+		ForkJoinPool pool = numThreads>1 ? new ForkJoinPool(numThreads) : null;
+		setLookupPool(pool);
+		this.ownLookupPool = pool;
+	}
+
+	/** Run lookupAll on the given pool, or on the calling thread if
+	 * pool is null.  The pool belongs to the caller, but a pool made
+	 * by setLookupThreads is shut down. */
+	public void setLookupPool(ForkJoinPool pool) 
+	{ 
+		if (ownLookupPool!=null) ownLookupPool.shutdown();
+		this.ownLookupPool = null;
+		this.lookupPool = pool; 
+	}
+
+	/** Number of threads used by lookupAll. */
+	public int getLookupThreads() { return lookupPool==null ? 1 : lookupPool.getParallelism(); }
+
+	// a step of a phase of freeze or lookupAll, for items lo...hi-1, which make up
+	// the given part of all the items
+	private static abstract class Part
+	{
+		abstract void run(int part,int lo,int hi);
+	}
+
+	// number of parts to split n items into: a few per thread, so
+	// that threads which finish early can take more
+	private int numParts(int n)
+	{
+		if (freezePool==null) return 1;
+		return Math.max(1, Math.min( 4*freezePool.getParallelism(), n/MIN_PART_SIZE ));
+	}
+
+	// the first of items 0...n-1 in the given part
+	private static int partStart(int n,int numParts,int part)
+	{
+		return (int)((long)n*part/numParts);
+	}
+
+	// run every part of items 0...n-1, on the freeze pool if there is
+	// more than one
+	private void inParts(int n,int numParts,Part step)
+	{
+		inParts(freezePool, n, numParts, step);
+	}
+
+	// run every part of items 0...n-1, on the given pool if there is
+	// more than one
+	private static void inParts(ForkJoinPool pool,int n,int numParts,Part step)
+	{
+		if (pool==null || numParts==1) step.run(0, 0, n);
+		else pool.invoke(new PartTask(step, n, numParts, 0, numParts));
+	}
+
+	// runs parts lo...hi-1, splitting them in half until there is one
+	private static class PartTask extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1;
+		private final Part step;
+		private final int n, numParts, lo, hi;
+
+		PartTask(Part step,int n,int numParts,int lo,int hi)
+		{
+			this.step = step;
+			this.n = n;
+			this.numParts = numParts;
+			this.lo = lo;
+			this.hi = hi;
+		}
+
+		protected void compute()
+		{
+			if (hi-lo==1) {
+				step.run(lo, partStart(n, numParts, lo), partStart(n, numParts, lo+1));
+			} else {
+				int mid = (lo+hi) >>> 1;
+				invokeAll(new PartTask(step, n, numParts, lo, mid),
+						  new PartTask(step, n, numParts, mid, hi));
+			}
 		}
-		double elapsedSec1 = (System.currentTimeMillis()-start) / 1000.0;        
-		tfidfDistance.train( new BasicStringWrapperIterator(accum.iterator()) );
-		softTFIDFDistance.train( new BasicStringWrapperIterator(accum.iterator()) );
-		double elapsedSec2 = (System.currentTimeMillis()-start) / 1000.0;        
-		if (DEBUG) System.out.println("training took: "+elapsedSec2+" (i.e. "+elapsedSec1+" then "+(elapsedSec2-elapsedSec1)+") sec");
 	}
 
-	// find all tokens similar to the given string s, where i is the
-	// position of s in the list 'allTokens'
-	private Set findSimilarTokens(String s,int i)
+	// append to 'similar' the numbers of all tokens similar to the
+	// given string s, other than the token numbered self (which is -1
+	// if s isn't a token), using 'candidates' as scratch space
+	private void findSimilarTokens(SimilarTokenIndex similarTokenIndex,SoftTFIDFIndex.StringTable tokens,String s,int self,
+			IntArrayList similar,IntArrayList candidates)
 	{
-		Set likeTokI = new HashSet();
-		for (int j=Math.max(0,i-windowSize); j<Math.min(i+windowSize,numTokens); j++) {
-			if (i!=j) {
-				Token tokj = allTokens[j];
-				double d = jaroWinklerDistance.score( s, tokj.getValue() );
-				if (d>=minTokenSimilarity) likeTokI.add( tokj );
+		StringWrapper ws = jaroWinklerDistance.prepare( s );
+		candidates.clear();
+		similarTokenIndex.candidates( s, candidates );
+		for (int k=0; k<candidates.size(); k++) {
+			int j = candidates.get(k);
+			if (j!=self) {
+				// the thresholded score can stop early on dissimilar tokens
+				double d = jaroWinklerDistance.score( ws, jaroWinklerDistance.prepare(tokens.getString(j)), minTokenSimilarity );
+				if (d>=minTokenSimilarity) similar.add( j );
 			}
 		}
-		return likeTokI;
 	}
 
-	// stores items returned from 'lookup'
+	// stores items returned from the last call to 'lookup'
 	private List result;
 	// saves lookup time
 	protected double lookupTime;
 
+	// the index, freezing the dictionary first if need be
+	private SoftTFIDFIndex frozenIndex()
+	{
+		if (!frozen) freeze();
+		return index;
+	}
+
 	/** Exactly like lookup, but works by exhaustively checking every stored string.
 	 */
 	public int slowLookup(double minScore,String toFind)
 	{
-		if (!frozen) freeze();
 		long start = System.currentTimeMillis();
-		StringWrapper wa = softTFIDFDistance.prepare( toFind );
-		result = new ArrayList();
-		for (Iterator i=valueMap.keySet().iterator(); i.hasNext(); ) {
-			String found = (String)i.next();
-			StringWrapper wb = softTFIDFDistance.prepare( found );
-			double d = softTFIDFDistance.score( wa, wb );
-			if (d>=minScore) {
-				Set valset = (Set)valueMap.get(found);
-				for (Iterator j=valset.iterator(); j.hasNext(); ) {
-					String valj=(String)j.next();
-					result.add(new LookupResult(found,valj,d));
-				}
-			}
-		}
-		Collections.sort( result );
+		result = slowLookupResults(minScore,toFind);
 		lookupTime = (System.currentTimeMillis()-start) / 1000.0;        
 		return result.size();
 	}
 
+	/** Exactly like lookupResults, but works by exhaustively checking every stored string.
+	 */
+	public List slowLookupResults(double minScore,String toFind)
+	{
+		SoftTFIDFIndex idx = frozenIndex();
+		StringWrapper wa = idx.softTFIDFDistance.prepare( toFind );
+		List result = new ArrayList();
+		for (int i=0; i<idx.numStrings(); i++) {
+			addResults( idx, result, i, wa, minScore );
+		}
+		Collections.sort( result );
+		return Collections.unmodifiableList( result );
+	}
+
 	/** Lookup items SoftTFIDF-similar to the 'toFind' argument, and
 	 * return the number of items found.  The looked-up items must
 	 * have a similarity score greater than minScore.
 	 */
 	public int lookup(double minScore,String toFind)
 	{
-		if (!frozen) freeze();
 		long start = System.currentTimeMillis();
+		result = lookupResults(minScore,toFind);
+		lookupTime = (System.currentTimeMillis()-start) / 1000.0;        
+		return result.size();
+	}
+
+	/** Lookup items SoftTFIDF-similar to the 'toFind' argument, and
+	 * return them, best first, in a list that can't be modified.
+	 * This keeps no state in the dictionary, so once the dictionary
+	 * is frozen it can be called from several threads at once.
+	 */
+	public List lookupResults(double minScore,String toFind)
+	{
+		SoftTFIDFIndex idx = frozenIndex();
+		int[] followed = tokensToFollow( idx, toFind, minScore, null );
+		IntArrayList candidates = new IntArrayList();
+		for (int i=0; i<followed.length; i++) addPostings( idx, followed[i], candidates );
+		return scoreCandidates( idx, toFind, candidates, minScore );
+	}
 
+	/** Lookup each of a list of strings, like lookupResults, and
+	 * return a list of their results, in the same order, which can't
+	 * be modified.
+	 *
+	 * <p>A string that is in the list more than once is looked up
+	 * once.  The tokens similar to each query token, which must be
+	 * searched for if the token is novel, are found once for the
+	 * whole list, and the inverted index of each token is read once,
+	 * for all the queries that follow it.  The queries are looked up
+	 * on the lookup pool (see setLookupThreads).
+	 */
+	public List lookupAll(List queries,final double minScore)
+	{
+		final SoftTFIDFIndex idx = frozenIndex();
+		final List distinct = new ArrayList();
+		Map numberOf = new HashMap();
+		int[] queryNumber = new int[queries.size()];
+		for (int i=0; i<queries.size(); i++) {
+			Integer q = (Integer)numberOf.get(queries.get(i));
+			if (q==null) {
+				numberOf.put( queries.get(i), (q=Integer.valueOf(distinct.size())) );
+				distinct.add( queries.get(i) );
+			}
+			queryNumber[i] = q.intValue();
+		}
+		int n = distinct.size();
+		int numParts = Math.max(1, Math.min( 4*getLookupThreads(), n ));
+
+		// find the tokens each query must follow
+		final Map similarTokensCache = new ConcurrentHashMap();
+		final int[][] followed = new int[n][];
+		inParts(lookupPool, n, numParts, new Part() {
+				void run(int part,int lo,int hi) {
+					for (int q=lo; q<hi; q++) {
+						followed[q] = tokensToFollow( idx, (String)distinct.get(q), minScore, similarTokensCache );
+					}
+				}
+			});
+
+		// follow each token once, for all the queries that need it
+		Map followers = new HashMap();
+		for (int q=0; q<n; q++) {
+			for (int i=0; i<followed[q].length; i++) {
+				Integer key = Integer.valueOf(followed[q][i]);
+				IntArrayList qs = (IntArrayList)followers.get(key);
+				if (qs==null) followers.put( key, (qs=new IntArrayList(2)) );
+				qs.add( q );
+			}
+		}
+		final IntArrayList[] candidates = new IntArrayList[n];
+		for (int q=0; q<n; q++) candidates[q] = new IntArrayList();
+		IntArrayList postings = new IntArrayList();
+		for (Iterator i=followers.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry)i.next();
+			postings.clear();
+			addPostings( idx, ((Integer)e.getKey()).intValue(), postings );
+			IntArrayList qs = (IntArrayList)e.getValue();
+			for (int j=0; j<qs.size(); j++) {
+				IntArrayList c = candidates[qs.get(j)];
+				for (int k=0; k<postings.size(); k++) c.add( postings.get(k) );
+			}
+		}
+		followers = null;
+
+		// score the candidates of each query
+		final List[] results = new List[n];
+		inParts(lookupPool, n, numParts, new Part() {
+				void run(int part,int lo,int hi) {
+					for (int q=lo; q<hi; q++) {
+						results[q] = scoreCandidates( idx, (String)distinct.get(q), candidates[q], minScore );
+						candidates[q] = null;
+					}
+				}
+			});
+		List all = new ArrayList(queries.size());
+		for (int i=0; i<queryNumber.length; i++) all.add( results[queryNumber[i]] );
+		return Collections.unmodifiableList( all );
+	}
+
+	// subroutine of lookup - return the numbers of the tokens whose
+	// inverted indices must be followed to find every string that may
+	// score minScore against toFind.  The tokens similar to each query
+	// token are kept in similarTokensCache, if it isn't null.
+	private int[] tokensToFollow(SoftTFIDFIndex idx, String toFind, double minScore, Map similarTokensCache)
+	{
+		// map the number of a token to an upper bound on its contribution to the score
 		final Map upperBoundOnWeight = new HashMap();
 		// find all tokens that could be potentially useful for
 		// retrieving similar strings
-		tfidfDistance.prepare( toFind );
-		Token[] tokens = tfidfDistance.getTokens();
+		idx.tfidfDistance.prepare( toFind );
+		Token[] tokens = idx.tfidfDistance.getTokens();
 		List usefulTokens = new ArrayList(tokens.length);
 		for (int i=0; i<tokens.length; i++) {
 			Token tok = tokens[i];
 			if (DEBUG) System.out.println("upper-bounding token "+i+"="+tok);
-			// getIndex()<maxTFIDFScore then tok is somewhere in the dictionary
-			if (tok.getIndex() < maxTFIDFScore.length) { 
-				// token should be in allTokens and similar tokens should be pre-computed
-				storeUpperBound( tok, tok, usefulTokens, upperBoundOnWeight, 1.0 );
-				for (int j=0; j<similarTokens[tok.getIndex()].length; j++) {
-					Token simTok = similarTokens[tok.getIndex()][j];
-					double sim = jaroWinklerDistance.score(tok.getValue(), simTok.getValue());
-					storeUpperBound( tok, simTok, usefulTokens, upperBoundOnWeight, sim );
-				}
-			} else {
-				// token should NOT be in allTokens, so we need to computed similarTokens on-the-fly
-				int indexInAllTokens = Arrays.binarySearch( allTokens, tok, LEXICAL_ORDER_FOR_TOKENS );
-				if (indexInAllTokens<0) indexInAllTokens = -(indexInAllTokens+1);
-				Set likeTokI = findSimilarTokens( tok.getValue(), indexInAllTokens );   
-				if (DEBUG) System.out.println("just found "+likeTokI.size()+" tokens similar to the novel token "+tok);
-				for (Iterator j=likeTokI.iterator(); j.hasNext(); ) {
-					Token simTok = (Token)j.next();
-					double sim = jaroWinklerDistance.score(tok.getValue(), simTok.getValue());
-					storeUpperBound( tok, simTok, usefulTokens, upperBoundOnWeight, sim );
-				}
+			SimilarTokens similar = similarTokens( idx, tok, similarTokensCache );
+			for (int k=0; k<similar.ids.length; k++) {
+				storeUpperBound( idx, tok, similar.ids[k], usefulTokens, upperBoundOnWeight, similar.sims[k] );
 			}
 		}
 		if (DEBUG) System.out.println("tokens and upper bounds: "+upperBoundOnWeight);
 
-		// collect all candidates, but skip the lowest-scoring
+		// follow all the tokens, but skip the lowest-scoring
 		// "usefulTokens" - scores that add up to 1-minScore
-		Set candidates = new HashSet();
 		Collections.sort(usefulTokens, new Comparator() {
 			public int compare(Object a,Object b) {
 				Double da = (Double)upperBoundOnWeight.get(a);
 				Double db = (Double)upperBoundOnWeight.get(b);
-				//if (da==null) da = new Double(0); if (db==null) db = new Double(0);
 				double diff = da.doubleValue()-db.doubleValue();
 				return diff>0 ? +1 : (diff<0? -1 : 0);
 			}
 		});
+		IntArrayList followed = new IntArrayList();
 		double totScore = 0;
 		for (Iterator i=usefulTokens.iterator(); i.hasNext(); ) {
-			Token tok = (Token)i.next();
-			Double ub = (Double)upperBoundOnWeight.get(tok); 
+			Integer id = (Integer)i.next();
+			Double ub = (Double)upperBoundOnWeight.get(id); 
 			if (ub!=null) totScore += ub.doubleValue();
 			if (totScore >= minScore) {
-				Set ii = invertedIndex[tok.getIndex()];
-				if (maxInvertedIndexSize<=0 || ii.size()<maxInvertedIndexSize) {
-					candidates.addAll( ii  );
+				int tokenId = id.intValue();
+				if (maxInvertedIndexSize<=0 || idx.numPostings(tokenId)<maxInvertedIndexSize) {
+					followed.add( tokenId );
 				}
 			} else {
-				if (DEBUG) System.out.println("skip tok "+tok+" upper bound "+ub+" totScore = "+totScore);
-			}
-			if (DEBUG) System.out.println("after "+tok+" with upper bound "+ub+": "+candidates.size()+" candidates");
-		}
-
-		// finally collect and score the candidates        
-		result = new ArrayList( candidates.size() );
-		StringWrapper wa = softTFIDFDistance.prepare( toFind );
-		for (Iterator i=candidates.iterator(); i.hasNext(); ) {
-			String found = (String)i.next();
-			StringWrapper wb = softTFIDFDistance.prepare( found );
-			double d = softTFIDFDistance.score( wa, wb );
-			//if (DEBUG) System.out.println("candidate "+found+" score "+d+" minscore "+minScore);
-			if (d>=minScore) {
-				Set valset = (Set)valueMap.get(found);
-				for (Iterator j=valset.iterator(); j.hasNext(); ) {
-					String valj=(String)j.next();
-					result.add(new LookupResult(found,valj,d));
-				}
+				if (DEBUG) System.out.println("skip tok "+idx.token(id.intValue())+" upper bound "+ub+" totScore = "+totScore);
 			}
 		}
+		return followed.toArray();
+	}
+
+	// subroutine of lookup - append the inverted index of a token to candidates
+	private static void addPostings(SoftTFIDFIndex idx, int tokenId, IntArrayList candidates)
+	{
+		if (tokenId<idx.numTokens()) {
+			int lo = idx.postingStart.get(tokenId), hi = idx.postingStart.get(tokenId+1);
+			for (int k=lo; k<hi; k++) candidates.add( idx.postings.get(k) );
+		}
+		int[] added = idx.addedPostings(tokenId);
+		for (int k=0; k<added.length; k++) candidates.add( added[k] );
+	}
+
+	// subroutine of lookup - score the candidates, each once, and
+	// return those that score at least minScore, best first
+	private List scoreCandidates(SoftTFIDFIndex idx, String toFind, IntArrayList candidates, double minScore)
+	{
+		int[] sorted = candidates.toArray();
+		Arrays.sort( sorted );
+		List result = new ArrayList();
+		StringWrapper wa = idx.softTFIDFDistance.prepare( toFind );
+		for (int i=0; i<sorted.length; i++) {
+			if (i==0 || sorted[i]!=sorted[i-1]) addResults( idx, result, sorted[i], wa, minScore );
+		}
 		if (DEBUG) System.out.println("result="+result);
 		Collections.sort( result );
+		return Collections.unmodifiableList( result );
+	}
+
+	// the tokens similar to a query token, including the token itself
+	// if it is in the index, and their similarity to it
+	private static class SimilarTokens
+	{
+		final int[] ids;
+		final double[] sims;
+		SimilarTokens(int[] ids,double[] sims) { this.ids = ids; this.sims = sims; }
+	}
+
+	// subroutine of lookup - find the tokens similar to a query token,
+	// or get them from the cache, which maps the value of a token to its
+	// SimilarTokens, if the cache isn't null
+	private SimilarTokens similarTokens(SoftTFIDFIndex idx, Token tok, Map cache)
+	{
+		SimilarTokens similar = cache==null ? null : (SimilarTokens)cache.get(tok.getValue());
+		if (similar!=null) return similar;
+		IntArrayList ids = new IntArrayList();
+		int id = similarTokenIds( idx, tok, ids );
+		double[] sims = new double[ids.size()];
+		for (int k=0; k<ids.size(); k++) {
+			int simId = ids.get(k);
+			sims[k] = simId==id ? 1.0 : jaroWinklerDistance.score(tok.getValue(), idx.token(simId));
+		}
+		similar = new SimilarTokens(ids.toArray(), sims);
+		if (cache!=null) cache.put( tok.getValue(), similar );
+		return similar;
+	}
+
+	/** Lookup the k dictionary strings that are most SoftTFIDF-similar
+	 * to 'toFind', among those with a score of at least minScore, and
+	 * return the number of items found.  There is an item for each
+	 * value of each string found, so there may be more than k items.
+	 *
+	 * <p>Each token of the dictionary gets an upper bound on how much
+	 * it can add to the score of a string that contains it, from the
+	 * maxTFIDFScore of the token and the query tokens it is similar
+	 * to.  Inverted indices are followed in order of decreasing bound,
+	 * and candidates are scored first as they are found, until there
+	 * are k results, and then in order of decreasing bound.  Once the
+	 * bounds show that no remaining string can beat the k-th best
+	 * score so far, the remaining indices and candidates are skipped.
+	 *
+	 * <p>Like the pruning in lookup, the bounds assume that the
+	 * tokens similar to a query token are all found by the similar
+	 * token index, so with the default WindowSimilarTokenIndex, a
+	 * string that is similar to the query only through tokens outside
+	 * the window may be left out.
+	 */
+	public int lookupTopK(int k,double minScore,String toFind)
+	{
+		long start = System.currentTimeMillis();
+		result = lookupTopKResults(k,minScore,toFind);
 		lookupTime = (System.currentTimeMillis()-start) / 1000.0;        
 		return result.size();
 	}
+
+	/** Lookup the k dictionary strings that are most SoftTFIDF-similar
+	 * to 'toFind', among those with a positive score.
+	 */
+	public int lookupTopK(int k,String toFind)
+	{
+		return lookupTopK(k, Double.MIN_VALUE, toFind);
+	}
+
+	/** Like lookupTopK, but returns the items found, best first, in a
+	 * list that can't be modified, and keeps no state in the
+	 * dictionary, like lookupResults.
+	 */
+	public List lookupTopKResults(int k,double minScore,String toFind)
+	{
+		SoftTFIDFIndex idx = frozenIndex();
+		List result = new ArrayList();
+		if (k<=0) return Collections.unmodifiableList( result );
+
+		// map the number of each useful token to a bound on its
+		// contribution to the score, summed over the query tokens it
+		// is similar to
+		Map bounds = new HashMap();
+		idx.tfidfDistance.prepare( toFind );
+		Token[] tokens = idx.tfidfDistance.getTokens();
+		IntArrayList likeTokI = new IntArrayList();
+		for (int i=0; i<tokens.length; i++) {
+			Token tok = tokens[i];
+			likeTokI.clear();
+			int id = similarTokenIds( idx, tok, likeTokI );
+			for (int j=0; j<likeTokI.size(); j++) {
+				Integer simId = Integer.valueOf(likeTokI.get(j));
+				double sim = simId.intValue()==id ? 1.0 : jaroWinklerDistance.score(tok.getValue(), idx.token(simId.intValue()));
+				double b = idx.tfidfDistance.getWeight(tok)*idx.maxTFIDFScore(simId.intValue())*sim;
+				Double old = (Double)bounds.get(simId);
+				bounds.put( simId, Double.valueOf(old==null ? b : old.doubleValue()+b) );
+			}
+		}
+
+		// order the useful tokens by decreasing bound; rest[i] bounds
+		// what the i-th and later tokens can add to any score
+		final int m = bounds.size();
+		Map.Entry[] useful = (Map.Entry[])bounds.entrySet().toArray(new Map.Entry[m]);
+		Arrays.sort(useful, new Comparator() {
+			public int compare(Object a,Object b) {
+				double diff = ((Double)((Map.Entry)b).getValue()).doubleValue() - ((Double)((Map.Entry)a).getValue()).doubleValue();
+				return diff>0 ? +1 : (diff<0? -1 : 0);
+			}
+		});
+		double[] rest = new double[m+1];
+		for (int i=m-1; i>=0; i--) rest[i] = rest[i+1] + ((Double)useful[i].getValue()).doubleValue();
+
+		// follow inverted indices until no string that hasn't been seen can make the top k
+		StringWrapper wa = idx.softTFIDFDistance.prepare( toFind );
+		PriorityQueue best = new PriorityQueue();
+		CandidateBounds candidates = new CandidateBounds();
+		double threshold = minScore;
+		int i = 0;
+		for (; i<m; i++) {
+			if (best.size()>=k && rest[i] < threshold - 1e-9) break;
+			int id = ((Integer)useful[i].getKey()).intValue();
+			double b = ((Double)useful[i].getValue()).doubleValue();
+			if (maxInvertedIndexSize>0 && idx.numPostings(id)>=maxInvertedIndexSize) continue;
+			int firstNew = candidates.size();
+			if (id<idx.numTokens()) {
+				int lo = idx.postingStart.get(id), hi = idx.postingStart.get(id+1);
+				for (int p=lo; p<hi; p++) candidates.add( idx.postings.get(p), b );
+			}
+			int[] added = idx.addedPostings(id);
+			for (int p=0; p<added.length; p++) candidates.add( added[p], b );
+			// until there are k results, score new candidates right
+			// away, to get a threshold for pruning
+			for (int n=firstNew; n<candidates.size() && best.size()<k; n++) {
+				threshold = offer( idx, best, k, candidates.idAt(n), wa, threshold, minScore );
+				candidates.setScored(n);
+			}
+		}
+
+		// score the other candidates in order of decreasing bound, adding
+		// the bound on what the unfollowed indices could contribute
+		double unseen = rest[i];
+		IntArrayList order = new IntArrayList();
+		for (int n=0; n<candidates.size(); n++) {
+			if (!candidates.isScored(n)) order.add(n);
+		}
+		int[] byBound = sortByDecreasingBound( order.toArray(), candidates );
+		for (int j=0; j<byBound.length; j++) {
+			if (best.size()>=k && candidates.boundAt(byBound[j])+unseen < threshold - 1e-9) break;
+			threshold = offer( idx, best, k, candidates.idAt(byBound[j]), wa, threshold, minScore );
+		}
+
+		for (Iterator j=best.iterator(); j.hasNext(); ) {
+			ScoredString ss = (ScoredString)j.next();
+			String found = idx.string(ss.id);
+			for (int p=0; p<idx.numValuesOf(ss.id); p++) {
+				result.add(new LookupResult(found,idx.valueOf(ss.id,p),ss.score));
+			}
+		}
+		Collections.sort( result );
+		return Collections.unmodifiableList( result );
+	}
+
+	// subroutine of lookupTopK - score a string, keep it if it's one of
+	// the k best so far, and return the new threshold for pruning
+	private double offer(SoftTFIDFIndex idx,PriorityQueue best,int k,int stringId,StringWrapper wa,double threshold,double minScore)
+	{
+		// a removed string can't be a result
+		if (idx.numValuesOf(stringId)==0) return threshold;
+		StringWrapper wb = idx.softTFIDFDistance.prepare( idx.string(stringId) );
+		double d = idx.softTFIDFDistance.score( wa, wb, threshold );
+		if (d>=minScore) {
+			if (best.size()<k) {
+				best.add( new ScoredString(stringId, d) );
+			} else if (d>((ScoredString)best.peek()).score) {
+				best.poll();
+				best.add( new ScoredString(stringId, d) );
+			}
+		}
+		return best.size()>=k ? Math.max(minScore, ((ScoredString)best.peek()).score) : minScore;
+	}
+
+	// sort candidate numbers by decreasing bound
+	private static int[] sortByDecreasingBound(int[] ns,final CandidateBounds candidates)
+	{
+		Integer[] boxed = new Integer[ns.length];
+		for (int j=0; j<ns.length; j++) boxed[j] = Integer.valueOf(ns[j]);
+		Arrays.sort(boxed, new Comparator() {
+			public int compare(Object a,Object b) {
+				double diff = candidates.boundAt(((Integer)b).intValue()) - candidates.boundAt(((Integer)a).intValue());
+				return diff>0 ? +1 : (diff<0? -1 : 0);
+			}
+		});
+		for (int j=0; j<ns.length; j++) ns[j] = boxed[j].intValue();
+		return ns;
+	}
+
+	// a dictionary string and its score, ordered by increasing score,
+	// so that a PriorityQueue of them keeps the lowest score at its head
+	private static class ScoredString implements Comparable
+	{
+		final int id;
+		final double score;
+		ScoredString(int id,double score) { this.id = id; this.score = score; }
+		public int compareTo(Object o)
+		{
+			double diff = score - ((ScoredString)o).score;
+			return diff<0 ? -1 : (diff>0?+1:0);
+		}
+	}
+
+	// subroutine of lookup - append to 'ids' the number of tok, if it
+	// is in the index, and then the numbers of the tokens similar to
+	// it, and return the number of tok or -1
+	private int similarTokenIds(SoftTFIDFIndex idx, Token tok, IntArrayList ids)
+	{
+		int id = idx.idOf( tok );
+		if (id>=0) { 
+			// token is in the index and similar tokens are pre-computed
+			ids.add( id );
+			idx.addSimilar( id, ids );
+		} else {
+			// token is NOT in the index, so we need to compute similarTokens on-the-fly
+			SimilarTokenIndex similarTokenIndex = idx.similarTokenIndex( getSimilarTokenIndexBuilder(), minTokenSimilarity );
+			int n = ids.size();
+			findSimilarTokens( similarTokenIndex, idx.tokens, tok.getValue(), -1, ids, new IntArrayList() );   
+			findSimilarAddedTokens( idx, tok.getValue(), -1, ids );
+			if (DEBUG) System.out.println("just found "+(ids.size()-n)+" tokens similar to the novel token "+tok);
+		}
+		return id;
+	}
 	// subroutine of lookup
-	private void storeUpperBound(Token tok, Token simTok, List usefulTokens, Map upperBoundOnWeight, double sim)
+	private void storeUpperBound(SoftTFIDFIndex idx, Token tok, int simId, List usefulTokens, Map upperBoundOnWeight, double sim)
 	{
-		double upperBound = tfidfDistance.getWeight(tok)*maxTFIDFScore[simTok.getIndex()]*sim;
-		if (DEBUG) System.out.println("upper-bounding tok "+simTok+" sim="+sim+" to "+tok+" upperBound "+upperBound);
-		if (DEBUG) System.out.println("upperBound = "+tfidfDistance.getWeight(tok)+"*"+maxTFIDFScore[simTok.getIndex()]+"*"+sim);
-		usefulTokens.add( simTok );
-		upperBoundOnWeight.put( simTok, new Double(upperBound) );
+		double upperBound = idx.tfidfDistance.getWeight(tok)*idx.maxTFIDFScore(simId)*sim;
+		if (DEBUG) System.out.println("upper-bounding tok "+idx.token(simId)+" sim="+sim+" to "+tok+" upperBound "+upperBound);
+		Integer key = Integer.valueOf(simId);
+		usefulTokens.add( key );
+		upperBoundOnWeight.put( key, Double.valueOf(upperBound) );
+	}
+	// subroutine of lookup - score the string with the given number
+	// against the query wa, and add it to the result with each of its
+	// values if the score is high enough
+	private void addResults(SoftTFIDFIndex idx, List result, int stringId, StringWrapper wa, double minScore)
+	{
+		int numValues = idx.numValuesOf(stringId);
+		if (numValues==0) return;
+		String found = idx.string(stringId);
+		StringWrapper wb = idx.softTFIDFDistance.prepare( found );
+		double d = idx.softTFIDFDistance.score( wa, wb, minScore );
+		if (d>=minScore) {
+			for (int k=0; k<numValues; k++) {
+				result.add(new LookupResult(found,idx.valueOf(stringId,k),d));
+			}
+		}
 	}
 
+	/** A number that changes whenever the index does: when the
+	 * dictionary is frozen, updated, or compacted. */
+	public long getVersion() { return version; }
+
 	/** Get the i'th string found by the last lookup */
 	public String getResult(int i) { return ((LookupResult)result.get(i)).found; }
 
@@ -602,16 +1474,10 @@ public class SoftTFIDFDictionary implements FastLookup
 	}
 	private void showSimilarTokens()
 	{
-		for (int i=0; i<numTokens; i++) {
-			Token toki = allTokens[i];
-			System.out.print(toki+"\t~");
-			if (similarTokens[toki.getIndex()]==null) {
-				System.out.print(" NULL");
-			} else {
-				for (int j=0; j<similarTokens[toki.getIndex()].length; j++) {
-					Token tokj = similarTokens[toki.getIndex()][j];
-					System.out.print(" "+tokj.getValue());
-				}
+		for (int i=0; i<index.numTokens(); i++) {
+			System.out.print(index.token(i)+"\t~");
+			for (int k=index.similarStart.get(i); k<index.similarStart.get(i+1); k++) {
+				System.out.print(" "+index.token(index.similar.get(k)));
 			}
 			System.out.println();
 		}
@@ -619,12 +1485,7 @@ public class SoftTFIDFDictionary implements FastLookup
 
 	private double getNumberOfSimilarTokenPairs()
 	{
-		double tot = 0;
-		for (int i=0; i<numTokens; i++) {
-			Token toki = allTokens[i];
-			tot += similarTokens[toki.getIndex()].length; 
-		}
-		return tot;
+		return index.similar.limit();
 	}
 
 	/** Simple main for testing and experimentation
@@ -643,10 +1504,9 @@ public class SoftTFIDFDictionary implements FastLookup
 		SoftTFIDFDictionary dict = loadSomehow(argv[0]);
 		if (argv.length==1) {
 			System.out.println("inverted index sizes:");
-			for (int i=0; i<dict.numTokens; i++) {        
-				Token toki = dict.allTokens[i];
-				Set ii = dict.invertedIndex[toki.getIndex()];
-				System.out.println(ii.size()+" "+toki.getValue());
+			for (int i=0; i<dict.index.numTokens(); i++) {        
+				int size = dict.index.postingStart.get(i+1) - dict.index.postingStart.get(i);
+				System.out.println(size+" "+dict.index.token(i));
 			}
 		}  else if (argv.length==2) {
 			// aliasfile savefile
@@ -684,7 +1544,7 @@ public class SoftTFIDFDictionary implements FastLookup
 				dict.setWindowSize(2); // for a quick load
 				System.out.println("loading...");
 				dict.loadAliases(new File(argv[0]));
-				System.out.println("loaded "+dict.numTokens+" tokens");
+				System.out.println("loaded "+dict.tokenizer.maxTokenIndex()+" tokens");
 				System.out.println( "window" +"\t"+ "time" +"\t"+ "#pairs" +"\t"+ "pairs/token");
 				java.text.DecimalFormat fmt = new java.text.DecimalFormat("0.000"); 
 				for (int i=1; i<argv.length; i++) {
@@ -694,7 +1554,7 @@ public class SoftTFIDFDictionary implements FastLookup
 					dict.refreeze();
 					double elapsedSec = (System.currentTimeMillis()-start) / 1000.0;
 					double tot = dict.getNumberOfSimilarTokenPairs();
-					System.out.println( w +"\t"+ fmt.format(elapsedSec) +"\t"+ tot +"\t"+ fmt.format(tot/dict.numTokens)  );
+					System.out.println( w +"\t"+ fmt.format(elapsedSec) +"\t"+ tot +"\t"+ fmt.format(tot/dict.index.numTokens())  );
 				}
 			}
 		}
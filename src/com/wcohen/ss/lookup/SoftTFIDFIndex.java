@@ -0,0 +1,550 @@
+package com.wcohen.ss.lookup;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+import com.wcohen.ss.*;
+import com.wcohen.ss.api.*;
+import com.wcohen.ss.tokens.*;
+
+/**
+ * The data that a SoftTFIDFDictionary precomputes when it is frozen,
+ * in a compact form that can be saved to a file and mapped back into
+ * memory.
+ *
+ * <p>Tokens, dictionary strings and values are each numbered 0, 1,
+ * 2, ..., with tokens numbered in lexical order, so that the tokens
+ * near a novel token can be found by binary search.  The lists of
+ * tokens similar to each token, of strings containing each token
+ * (the inverted index), and of values of each string are stored in
+ * 'compressed sparse row' form: one array holds all the lists end to
+ * end, and a second array holds the position at which each list
+ * starts, plus a final entry for the end of the last list.
+ *
+ * <p>An index read from a file is backed by buffers mapped from the
+ * file, so reading it doesn't copy the postings, dictionary strings
+ * or values onto the heap, and the pages are shared by every process
+ * that maps the same file.  (Only the tokens are copied, since they
+ * must be interned with the tokenizer anyway.)  A file starts with a header written by the dictionary,
+ * followed by:
+ * <pre>
+ * int collectionSize, numTokens, numStrings, numValues
+ * tokens:      int[numTokens+1] start, char[] chars
+ * int[numTokens] documentFrequency
+ * double[numTokens] maxTFIDFScore
+ * similar:     int[numTokens+1] start, int[] tokenIds
+ * postings:    int[numTokens+1] start, int[] stringIds
+ * strings:     int[numStrings+1] start, char[] chars
+ * valueIds:    int[numStrings+1] start, int[] valueIds
+ * values:      int[numValues+1] start, char[] chars
+ * </pre>
+ * All numbers are big-endian, and each array is padded with zeros to
+ * a multiple of 8 bytes.  If any value isn't a String, the values are
+ * instead written as a long number of bytes, followed by the bytes
+ * of an Object[] of the values written by an ObjectOutputStream, and
+ * are read back onto the heap.
+ *
+ * <p>An index also holds the distances trained on its strings, and
+ * any updates made to the dictionary since it was built, so a lookup
+ * that starts with an index sees one consistent version of the
+ * dictionary.  The accessor methods, unlike the fields, include the
+ * updates.
+ */
+
+/*package-visible*/ class SoftTFIDFIndex
+{
+	final int collectionSize;
+	final StringTable tokens;
+	final IntBuffer documentFrequency;
+	final DoubleBuffer maxTFIDFScore;
+	final IntBuffer similarStart, similar;
+	final IntBuffer postingStart, postings;
+	final StringTable strings;
+	final IntBuffer valueStart, valueIds;
+	final StringTable values;
+	// idOfToken[tok.getIndex()] is the number of tok here, or -1
+	private final int[] idOfToken;
+	// the interned token with each number, not counting updates
+	private final Token[] internedTokens;
+	// the tfidfDistance is used to compute upper bounds on the score
+	// associated with a particular token, for pruning, and the
+	// softTFIDFDistance to score the strings found
+	final TFIDF tfidfDistance;
+	final SoftTFIDF softTFIDFDistance;
+	// changes made since the index was built, or null if there are none
+	final SoftTFIDFUpdates updates;
+	// the index of similar tokens, and the builder it was built with
+	private SimilarTokenIndex similarTokenIndex;
+	private SimilarTokenIndex.Builder similarTokenIndexBuilder;
+
+	/** Create an index.  The tokens are interned with the tokenizer,
+	 * to map the tokenizer's indices to token numbers. */
+	SoftTFIDFIndex(int collectionSize,StringTable tokens,IntBuffer documentFrequency,DoubleBuffer maxTFIDFScore,
+			IntBuffer similarStart,IntBuffer similar,IntBuffer postingStart,IntBuffer postings,
+			StringTable strings,IntBuffer valueStart,IntBuffer valueIds,StringTable values,
+			Tokenizer tokenizer,TFIDF tfidfDistance,SoftTFIDF softTFIDFDistance)
+	{
+		this.tfidfDistance = tfidfDistance;
+		this.softTFIDFDistance = softTFIDFDistance;
+		this.updates = null;
+		this.collectionSize = collectionSize;
+		this.documentFrequency = documentFrequency;
+		this.maxTFIDFScore = maxTFIDFScore;
+		this.similarStart = similarStart;
+		this.similar = similar;
+		this.postingStart = postingStart;
+		this.postings = postings;
+		this.strings = strings;
+		this.valueStart = valueStart;
+		this.valueIds = valueIds;
+		this.values = values;
+		// the tokens are kept on the heap, since interning them makes
+		// a string for each one anyway
+		Token[] interned = new Token[tokens.size()];
+		String[] tokenValues = new String[tokens.size()];
+		for (int i=0; i<interned.length; i++) {
+			interned[i] = tokenizer.intern( tokens.getString(i) );
+			tokenValues[i] = interned[i].getValue();
+		}
+		this.tokens = new StringTable(tokenValues);
+		idOfToken = new int[ tokenizer.maxTokenIndex()+1 ];
+		Arrays.fill(idOfToken, -1);
+		for (int i=0; i<interned.length; i++) {
+			idOfToken[ interned[i].getIndex() ] = i;
+		}
+		this.internedTokens = interned;
+	}
+
+	// a copy of an index, with different updates
+	private SoftTFIDFIndex(SoftTFIDFIndex base,SoftTFIDFUpdates updates)
+	{
+		this.collectionSize = base.collectionSize;
+		this.tokens = base.tokens;
+		this.documentFrequency = base.documentFrequency;
+		this.maxTFIDFScore = base.maxTFIDFScore;
+		this.similarStart = base.similarStart;
+		this.similar = base.similar;
+		this.postingStart = base.postingStart;
+		this.postings = base.postings;
+		this.strings = base.strings;
+		this.valueStart = base.valueStart;
+		this.valueIds = base.valueIds;
+		this.values = base.values;
+		this.idOfToken = base.idOfToken;
+		this.internedTokens = base.internedTokens;
+		this.tfidfDistance = base.tfidfDistance;
+		this.softTFIDFDistance = base.softTFIDFDistance;
+		this.updates = updates;
+		synchronized (base) {
+			this.similarTokenIndex = base.similarTokenIndex;
+			this.similarTokenIndexBuilder = base.similarTokenIndexBuilder;
+		}
+	}
+
+	/** This index, with the given updates instead of its own. */
+	public SoftTFIDFIndex withUpdates(SoftTFIDFUpdates updates)
+	{
+		return new SoftTFIDFIndex(this, updates);
+	}
+
+	/** Number of tokens in the index, not counting updates. */
+	public int numTokens() { return tokens.size(); }
+
+	/** Number of tokens, including those added by updates, which
+	 * are numbered after the others. */
+	public int numAllTokens() { return numTokens() + (updates==null ? 0 : updates.numTokens()); }
+
+	/** Number of strings, including those added by updates, which
+	 * are numbered after the others. */
+	public int numStrings() { return strings.size() + (updates==null ? 0 : updates.numStrings()); }
+
+	/** The number of a token, or -1 if the token isn't known. */
+	public int idOf(Token tok)
+	{
+		int k = tok.getIndex();
+		int id = k<idOfToken.length ? idOfToken[k] : -1;
+		if (id<0 && updates!=null) {
+			Integer added = (Integer)updates.idOfToken.get(Integer.valueOf(k));
+			if (added!=null) id = added.intValue();
+		}
+		return id;
+	}
+
+	/** The number of a string, or -1 if it isn't in the dictionary
+	 * (although it may have been removed from it since). */
+	public int idOfString(String s)
+	{
+		int id = strings.binarySearch(s);
+		if (id<0 && updates!=null) {
+			Integer added = (Integer)updates.idOfString.get(s);
+			if (added!=null) id = added.intValue();
+		}
+		return id<0 ? -1 : id;
+	}
+
+	/** The token with the given number. */
+	public String token(int id) 
+	{ 
+		return id<numTokens() ? tokens.getString(id) : updates.token(id-numTokens());
+	}
+
+	/** The dictionary string with the given number. */
+	public String string(int id) 
+	{ 
+		return id<strings.size() ? strings.getString(id) : updates.string(id-strings.size());
+	}
+
+	/** The number of values of the string with the given number,
+	 * which is zero if the string has been removed. */
+	public int numValuesOf(int stringId)
+	{
+		if (updates!=null) {
+			Object[] vals = (Object[])updates.values.get(Integer.valueOf(stringId));
+			if (vals!=null) return vals.length;
+		}
+		return valueStart.get(stringId+1) - valueStart.get(stringId);
+	}
+
+	/** The k-th value of the string with the given number. */
+	public Object valueOf(int stringId,int k)
+	{
+		if (updates!=null) {
+			Object[] vals = (Object[])updates.values.get(Integer.valueOf(stringId));
+			if (vals!=null) return vals[k];
+		}
+		return value( valueIds.get(valueStart.get(stringId)+k) );
+	}
+
+	/** The most that the token with the given number adds to the
+	 * TFIDF score of any string containing it. */
+	public double maxTFIDFScore(int tokenId)
+	{
+		if (updates!=null) {
+			Double d = (Double)updates.maxTFIDFScore.get(Integer.valueOf(tokenId));
+			if (d!=null) return d.doubleValue();
+		}
+		return tokenId<numTokens() ? maxTFIDFScore.get(tokenId) : 0;
+	}
+
+	/** The number of strings containing the given token, which may
+	 * include removed strings. */
+	public int numPostings(int tokenId)
+	{
+		int n = tokenId<numTokens() ? postingStart.get(tokenId+1) - postingStart.get(tokenId) : 0;
+		if (updates!=null) n += SoftTFIDFUpdates.ints(updates.postings, tokenId).length;
+		return n;
+	}
+
+	/** The numbers of strings added by updates that contain the given
+	 * token; the others are postings[postingStart[tokenId]...]. */
+	public int[] addedPostings(int tokenId)
+	{
+		return updates==null ? SoftTFIDFUpdates.EMPTY : SoftTFIDFUpdates.ints(updates.postings, tokenId);
+	}
+
+	/** Append to ids the numbers of the tokens similar to the given token. */
+	public void addSimilar(int tokenId,IntArrayList ids)
+	{
+		if (tokenId<numTokens()) {
+			for (int k=similarStart.get(tokenId); k<similarStart.get(tokenId+1); k++) ids.add( similar.get(k) );
+		}
+		if (updates!=null) {
+			int[] more = SoftTFIDFUpdates.ints(updates.similar, tokenId);
+			for (int k=0; k<more.length; k++) ids.add( more[k] );
+		}
+	}
+
+	/** The number of strings containing the given token, as updated. */
+	public int documentFrequency(int tokenId)
+	{
+		int df = tokenId<numTokens() ? documentFrequency.get(tokenId) : 0;
+		if (updates!=null) {
+			Integer change = (Integer)updates.documentFrequency.get(Integer.valueOf(tokenId));
+			if (change!=null) df += change.intValue();
+		}
+		return df;
+	}
+
+	/** The number of strings in the dictionary, as updated. */
+	public int collectionSize() { return collectionSize + (updates==null ? 0 : updates.collectionSize); }
+
+	/** The value with the given number. */
+	public Object value(int id) { return values.get(id); }
+
+	/** An index of the tokens made by the given builder, which is
+	 * kept until an index from a different builder is asked for. */
+	public synchronized SimilarTokenIndex similarTokenIndex(SimilarTokenIndex.Builder builder,double minSimilarity)
+	{
+		if (similarTokenIndex==null || !builder.equals(similarTokenIndexBuilder)) {
+			String[] tokenValues = new String[numTokens()];
+			for (int i=0; i<tokenValues.length; i++) tokenValues[i] = token(i);
+			setSimilarTokenIndex( builder, builder.build(tokenValues, minSimilarity) );
+		}
+		return similarTokenIndex;
+	}
+
+	/** Keep an index of the tokens, made by the given builder. */
+	public synchronized void setSimilarTokenIndex(SimilarTokenIndex.Builder builder,SimilarTokenIndex similarTokenIndex)
+	{
+		this.similarTokenIndexBuilder = builder;
+		this.similarTokenIndex = similarTokenIndex;
+	}
+
+	/** Map each dictionary string to the set of its values, as in
+	 * SoftTFIDFDictionary before it was frozen.  Like a lookup, this
+	 * includes the updates: added strings are mapped to their values,
+	 * and removed strings are left out. */
+	public Map toValueMap()
+	{
+		Map valueMap = new HashMap();
+		for (int i=0; i<numStrings(); i++) {
+			int n = numValuesOf(i);
+			if (n==0) continue;
+			Set valset = new HashSet();
+			for (int k=0; k<n; k++) {
+				valset.add( valueOf(i,k) );
+			}
+			valueMap.put( string(i), valset );
+		}
+		return valueMap;
+	}
+
+	//
+	// file i/o
+	//
+
+	/** The values serialized as an Object[], or null if they are all
+	 * Strings, and can be written as a table of chars. */
+	public byte[] serializeValues() throws IOException
+	{
+		Object[] objects = new Object[values.size()];
+		boolean allStrings = true;
+		for (int i=0; i<objects.length; i++) {
+			objects[i] = values.get(i);
+			allStrings &= objects[i] instanceof String;
+		}
+		if (allStrings) return null;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(objects);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/** Write the index, in the format described above, without any
+	 * updates.  serializedValues is null if the values are all
+	 * Strings, and otherwise as returned by serializeValues(). */
+	public void write(DataOutputStream out,byte[] serializedValues) throws IOException
+	{
+		out.writeInt( collectionSize );
+		out.writeInt( tokens.size() );
+		out.writeInt( strings.size() );
+		out.writeInt( values.size() );
+		tokens.write( out );
+		writeInts( out, documentFrequency );
+		writeDoubles( out, maxTFIDFScore );
+		writeInts( out, similarStart );
+		writeInts( out, similar );
+		writeInts( out, postingStart );
+		writeInts( out, postings );
+		strings.write( out );
+		writeInts( out, valueStart );
+		writeInts( out, valueIds );
+		if (serializedValues==null) {
+			values.write( out );
+		} else {
+			out.writeLong( serializedValues.length );
+			out.write( serializedValues );
+			pad( out, serializedValues.length );
+		}
+	}
+
+	/** Map an index written by write(), which starts at the given
+	 * position of the channel, and has serialized values if
+	 * serializedValues is true.  The channel can be closed afterwards.
+	 * The distances are trained with the document frequencies stored
+	 * in the index.
+	 */
+	public static SoftTFIDFIndex map(FileChannel channel,long position,boolean serializedValues,Tokenizer tokenizer,
+			TFIDF tfidfDistance,SoftTFIDF softTFIDFDistance) throws IOException
+	{
+		Mapper in = new Mapper(channel, position);
+		IntBuffer counts = in.ints(4);
+		int collectionSize = counts.get(0);
+		int numTokens = counts.get(1);
+		int numStrings = counts.get(2);
+		int numValues = counts.get(3);
+		StringTable tokens = in.strings(numTokens);
+		IntBuffer documentFrequency = in.ints(numTokens);
+		DoubleBuffer maxTFIDFScore = in.doubles(numTokens);
+		IntBuffer similarStart = in.ints(numTokens+1);
+		IntBuffer similar = in.ints(similarStart.get(numTokens));
+		IntBuffer postingStart = in.ints(numTokens+1);
+		IntBuffer postings = in.ints(postingStart.get(numTokens));
+		StringTable strings = in.strings(numStrings);
+		IntBuffer valueStart = in.ints(numStrings+1);
+		IntBuffer valueIds = in.ints(valueStart.get(numStrings));
+		StringTable values = serializedValues ? in.objects(numValues) : in.strings(numValues);
+		SoftTFIDFIndex index = new SoftTFIDFIndex(collectionSize,tokens,documentFrequency,maxTFIDFScore,
+				similarStart,similar,postingStart,postings,
+				strings,valueStart,valueIds,values,tokenizer,tfidfDistance,softTFIDFDistance);
+		for (int i=0; i<numTokens; i++) {
+			Token tok = index.internedTokens[i];
+			tfidfDistance.setDocumentFrequency( tok, documentFrequency.get(i) );
+			softTFIDFDistance.setDocumentFrequency( tok, documentFrequency.get(i) );
+		}
+		tfidfDistance.setCollectionSize( collectionSize );
+		softTFIDFDistance.setCollectionSize( collectionSize );
+		return index;
+	}
+
+	private static void writeInts(DataOutputStream out,IntBuffer buf) throws IOException
+	{
+		for (int i=0; i<buf.limit(); i++) out.writeInt( buf.get(i) );
+		pad( out, 4L*buf.limit() );
+	}
+
+	private static void writeDoubles(DataOutputStream out,DoubleBuffer buf) throws IOException
+	{
+		for (int i=0; i<buf.limit(); i++) out.writeDouble( buf.get(i) );
+	}
+
+	// pad an array of the given number of bytes to a multiple of 8
+	private static void pad(DataOutputStream out,long numBytes) throws IOException
+	{
+		for (long k=numBytes; k%8!=0; k++) out.writeByte(0);
+	}
+
+	// maps successive arrays from a channel
+	private static class Mapper
+	{
+		private final FileChannel channel;
+		private long position;
+
+		Mapper(FileChannel channel,long position) { this.channel = channel; this.position = position; }
+
+		private ByteBuffer map(long numBytes) throws IOException
+		{
+			if (position+numBytes>channel.size()) throw new EOFException("truncated SoftTFIDFDictionary file");
+			ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, position, numBytes);
+			position += (numBytes+7)/8*8;
+			return buf;
+		}
+		IntBuffer ints(int n) throws IOException { return map(4L*n).asIntBuffer(); }
+		DoubleBuffer doubles(int n) throws IOException { return map(8L*n).asDoubleBuffer(); }
+		CharBuffer chars(int n) throws IOException { return map(2L*n).asCharBuffer(); }
+		StringTable strings(int n) throws IOException
+		{
+			IntBuffer start = ints(n+1);
+			return new StringTable(start, chars(start.get(n)));
+		}
+		// read n objects serialized as an Object[] onto the heap
+		StringTable objects(int n) throws IOException
+		{
+			long numBytes = map(8).getLong(0);
+			if (numBytes>Integer.MAX_VALUE) throw new IOException("improperly formatted SoftTFIDFDictionary file");
+			ByteBuffer buf = map(numBytes);
+			byte[] bytes = new byte[(int)numBytes];
+			buf.get(bytes);
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			try {
+				Object[] objects = (Object[])in.readObject();
+				if (objects.length!=n) throw new IOException("improperly formatted SoftTFIDFDictionary file");
+				return new StringTable(objects);
+			} catch (ClassNotFoundException ex) {
+				throw new IOException("can't read the values of a SoftTFIDFDictionary file: "+ex);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * A numbered list of strings.  A table built in memory holds the
+	 * strings (or, for values, arbitrary objects) themselves; a table
+	 * mapped from a file holds the chars of all the strings end to
+	 * end, and the position at which each string starts.
+	 */
+	static class StringTable
+	{
+		private final Object[] objects;
+		private final IntBuffer start;
+		private final CharBuffer chars;
+
+		StringTable(Object[] objects)
+		{
+			this.objects = objects;
+			this.start = null;
+			this.chars = null;
+		}
+
+		StringTable(IntBuffer start,CharBuffer chars)
+		{
+			this.objects = null;
+			this.start = start;
+			this.chars = chars;
+		}
+
+		public int size() { return objects!=null ? objects.length : start.limit()-1; }
+
+		public Object get(int i)
+		{
+			if (objects!=null) return objects[i];
+			CharBuffer buf = chars.duplicate();
+			buf.limit( start.get(i+1) );
+			buf.position( start.get(i) );
+			return buf.toString();
+		}
+
+		public String getString(int i) { return (String)get(i); }
+
+		/** Like Arrays.binarySearch on a lexically sorted table: the
+		 * position of s, or -(p+1) if s would be inserted at p. */
+		public int binarySearch(String s)
+		{
+			int lo = 0, hi = size()-1;
+			while (lo<=hi) {
+				int mid = (lo+hi) >>> 1;
+				int c = compare(mid, s);
+				if (c<0) lo = mid+1;
+				else if (c>0) hi = mid-1;
+				else return mid;
+			}
+			return -(lo+1);
+		}
+
+		// like getString(i).compareTo(s), without making a string
+		private int compare(int i,String s)
+		{
+			if (objects!=null) return getString(i).compareTo(s);
+			int lo = start.get(i), len = start.get(i+1)-lo;
+			int n = Math.min(len, s.length());
+			for (int k=0; k<n; k++) {
+				int c = chars.get(lo+k) - s.charAt(k);
+				if (c!=0) return c;
+			}
+			return len-s.length();
+		}
+
+		void write(DataOutputStream out) throws IOException
+		{
+			int n = size();
+			int pos = 0;
+			for (int i=0; i<n; i++) {
+				Object o = get(i);
+				if (!(o instanceof String)) throw new IllegalStateException("can't save a non-string value: "+o);
+				out.writeInt( pos );
+				if (pos+(long)((String)o).length()>Integer.MAX_VALUE) throw new IllegalStateException("string table too large to save");
+				pos += ((String)o).length();
+			}
+			out.writeInt( pos );
+			pad( out, 4L*(n+1) );
+			for (int i=0; i<n; i++) {
+				out.writeChars( getString(i) );
+			}
+			pad( out, 2L*pos );
+		}
+	}
+}
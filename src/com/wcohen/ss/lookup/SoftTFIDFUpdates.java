@@ -0,0 +1,222 @@
+package com.wcohen.ss.lookup;
+
+import java.util.*;
+
+import com.wcohen.ss.tokens.*;
+
+/**
+ * Changes made to a frozen SoftTFIDFDictionary since its index was
+ * built.  Strings and tokens that are new are numbered after those
+ * of the index, and the inverted indices, similar-token lists and
+ * max-TFIDF scores of tokens are extended with them.  A string whose
+ * values change (or which is removed, leaving it no values) gets a
+ * new array of values; a removed string stays in the inverted
+ * indices, but is skipped by lookups.
+ *
+ * <p>Updates are copied on write: the dictionary copies the current
+ * updates, changes the copy, and then publishes an index with the
+ * copy, so a lookup sees the updates as they were when it started.
+ * Updates must not be changed once they have been copied.  A copy
+ * doesn't copy the maps below, but puts an empty Layers over each
+ * one for its own changes, and the added strings and tokens are
+ * appended in place to arrays that the copies share, past the end
+ * of those that the original can see.  So an update costs about the
+ * same however many updates came before it.
+ *
+ * <p>The added tokens are indexed in runs, by
+ * CharacterCountSimilarTokenIndex, so a new token is only compared to
+ * those added tokens that may be similar to it.
+ */
+
+/*package-visible*/ class SoftTFIDFUpdates
+{
+	// added tokens not yet in a run, at most
+	private static final int MAX_UNINDEXED_TOKENS = 32;
+
+	// strings added since the index was built: the first numStrings
+	// of the array, which may hold more strings added by later copies
+	private String[] strings = new String[0];
+	private int numStrings = 0;
+	// map an added string to its number, as an Integer
+	Layers idOfString = new Layers();
+	// map the number of a string to an Object[] of its values, if they changed
+	Layers values = new Layers();
+	// tokens added since the index was built, kept like the strings
+	private String[] tokens = new String[0];
+	private int numTokens = 0;
+	// map the tokenizer's index of an added token to its number
+	Layers idOfToken = new Layers();
+	// map the number of a token to an int[] of the numbers of added
+	// strings that contain it, or of added tokens similar to it, and
+	// to its max TFIDF score, if it has been raised
+	Layers postings = new Layers();
+	Layers similar = new Layers();
+	Layers maxTFIDFScore = new Layers();
+	// the change in the document frequency of a token, and in the
+	// number of strings
+	Layers documentFrequency = new Layers();
+	int collectionSize = 0;
+	// number of changes made
+	int numUpdates = 0;
+	// runs[r] indexes the added tokens runStart[r]...runStart[r+1]-1,
+	// and the tokens after the last run are in none
+	private SimilarTokenIndex[] runs = new SimilarTokenIndex[0];
+	private int[] runStart = new int[] { 0 };
+
+	/** A copy of these updates, which can be changed without
+	 * changing them. */
+	SoftTFIDFUpdates copy()
+	{
+		SoftTFIDFUpdates u = new SoftTFIDFUpdates();
+		u.strings = strings;
+		u.numStrings = numStrings;
+		u.idOfString = idOfString.copy();
+		u.values = values.copy();
+		u.tokens = tokens;
+		u.numTokens = numTokens;
+		u.idOfToken = idOfToken.copy();
+		u.postings = postings.copy();
+		u.similar = similar.copy();
+		u.maxTFIDFScore = maxTFIDFScore.copy();
+		u.documentFrequency = documentFrequency.copy();
+		u.collectionSize = collectionSize;
+		u.numUpdates = numUpdates;
+		u.runs = runs;
+		u.runStart = runStart;
+		return u;
+	}
+
+	/** Number of strings added. */
+	int numStrings() { return numStrings; }
+
+	/** The k-th string added. */
+	String string(int k) { return strings[k]; }
+
+	/** Add a string, and return its position among the added strings. */
+	int addString(String s)
+	{
+		strings = append(strings, numStrings, s);
+		return numStrings++;
+	}
+
+	/** Number of tokens added. */
+	int numTokens() { return numTokens; }
+
+	/** The k-th token added. */
+	String token(int k) { return tokens[k]; }
+
+	/** Add a token, and return its position among the added tokens.
+	 * Tokens are indexed for candidates() as they are added. */
+	int addToken(String s,double minSimilarity)
+	{
+		tokens = append(tokens, numTokens, s);
+		numTokens++;
+		if (numTokens-runStart[runs.length] >= MAX_UNINDEXED_TOKENS) indexTokens(minSimilarity);
+		return numTokens-1;
+	}
+
+	// put the tokens in no run into a new run, and then merge the
+	// last two runs while the last is at least as big as the one
+	// before, so there are only a logarithmic number of runs, and
+	// each token is re-indexed a logarithmic number of times
+	private void indexTokens(double minSimilarity)
+	{
+		int n = runs.length;
+		while (n>0 && numTokens-runStart[n] >= runStart[n]-runStart[n-1]) n--;
+		SimilarTokenIndex run = new CharacterCountSimilarTokenIndex( Arrays.copyOfRange(tokens, runStart[n], numTokens), minSimilarity );
+		runs = Arrays.copyOf(runs, n+1);
+		runs[n] = run;
+		runStart = Arrays.copyOf(runStart, n+2);
+		runStart[n+1] = numTokens;
+	}
+
+	/** Append to ids the positions of the added tokens that may be
+	 * Jaro-Winkler similar to s, in increasing order. */
+	void candidates(String s,IntArrayList ids)
+	{
+		IntArrayList found = new IntArrayList();
+		for (int r=0; r<runs.length; r++) {
+			found.clear();
+			runs[r].candidates(s, found);
+			int[] sorted = found.toArray();
+			Arrays.sort(sorted);
+			for (int k=0; k<sorted.length; k++) ids.add( runStart[r]+sorted[k] );
+		}
+		for (int k=runStart[runs.length]; k<numTokens; k++) ids.add( k );
+	}
+
+	/** The int[] stored for a key in one of the maps above, or an empty array. */
+	static int[] ints(Layers map,int key)
+	{
+		int[] a = (int[])map.get(Integer.valueOf(key));
+		return a==null ? EMPTY : a;
+	}
+
+	/** Store a new array for a key, which is the old one plus x. */
+	static void append(Layers map,int key,int x)
+	{
+		int[] a = ints(map, key);
+		int[] b = Arrays.copyOf(a, a.length+1);
+		b[a.length] = x;
+		map.put(Integer.valueOf(key), b);
+	}
+
+	// put x after the first n elements of a, in place if no copy of
+	// these updates has put anything there, which leaves it null
+	private static String[] append(String[] a,int n,String x)
+	{
+		if (n==a.length || a[n]!=null) {
+			String[] b = new String[Math.max(16, 2*n)];
+			System.arraycopy(a, 0, b, 0, n);
+			a = b;
+		}
+		a[n] = x;
+		return a;
+	}
+
+	static final int[] EMPTY = new int[0];
+
+	/**
+	 * A map made of layers of changes, the newest first.  A copy
+	 * shares the layers of the original, and adds a new empty one of
+	 * its own, after merging the newest layers while each is at
+	 * least half as big as the one below it.  So there are only a
+	 * logarithmic number of layers, and each entry is copied a
+	 * logarithmic number of times.  Values may not be null.
+	 */
+	static class Layers
+	{
+		private final Map changes;
+		private final Layers older;
+
+		Layers() { this(new HashMap(), null); }
+
+		private Layers(Map changes,Layers older)
+		{
+			this.changes = changes;
+			this.older = older;
+		}
+
+		Object get(Object key)
+		{
+			for (Layers l=this; l!=null; l=l.older) {
+				Object value = l.changes.get(key);
+				if (value!=null) return value;
+			}
+			return null;
+		}
+
+		void put(Object key,Object value) { changes.put(key, value); }
+
+		Layers copy()
+		{
+			Layers top = this;
+			while (top.older!=null && 2*top.changes.size() >= top.older.changes.size()) {
+				Map merged = new HashMap(top.older.changes);
+				merged.putAll(top.changes);
+				top = new Layers(merged, top.older.older);
+			}
+			return new Layers(new HashMap(), top);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package com.wcohen.ss.lookup;
+
+import java.util.*;
+
+import com.wcohen.ss.tokens.*;
+
+/**
+ * Finds the tokens near a string on the lexically sorted list of
+ * tokens.  The candidates for a string s are the windowSize tokens
+ * on either side of the place that s has (or would have) on the list.
+ * This costs nothing to build, but misses similar tokens that differ
+ * early on, such as those with different first characters.
+ */
+
+public class WindowSimilarTokenIndex implements SimilarTokenIndex
+{
+	private final String[] tokens;
+	private final int windowSize;
+
+	public WindowSimilarTokenIndex(String[] tokens,int windowSize)
+	{
+		this.tokens = tokens;
+		this.windowSize = windowSize;
+	}
+
+	public void candidates(String s,IntArrayList ids)
+	{
+		int i = Arrays.binarySearch(tokens, s);
+		if (i<0) i = -(i+1);
+		for (int j=Math.max(0,i-windowSize); j<Math.min(i+windowSize,tokens.length); j++) {
+			ids.add( j );
+		}
+	}
+
+	public String toString() { return "[WindowSimilarTokenIndex:"+windowSize+"]"; }
+
+	/** Builds windows of a given size. */
+	public static class Builder implements SimilarTokenIndex.Builder
+	{
+		private final int windowSize;
+
+		public Builder(int windowSize) { this.windowSize = windowSize; }
+
+		public int getWindowSize() { return windowSize; }
+
+		public SimilarTokenIndex build(String[] tokens,double minSimilarity)
+		{
+			return new WindowSimilarTokenIndex(tokens,windowSize);
+		}
+
+		public boolean equals(Object o)
+		{
+			return (o instanceof Builder) && ((Builder)o).windowSize==windowSize;
+		}
+
+		public int hashCode() { return windowSize; }
+
+		public String toString() { return "[WindowSimilarTokenIndex.Builder:"+windowSize+"]"; }
+	}
+}
@@ -7,7 +7,7 @@ import com.wcohen.ss.api.*;
  * Character tokenizer implementation.  Tokens are single characters of the source string.
  */
 
-public class CharacterTokenizer implements Tokenizer
+public class CharacterTokenizer implements StreamingTokenizer
 {
     public static final CharacterTokenizer DEFAULT_TOKENIZER = new CharacterTokenizer(true,true);
 	
@@ -15,8 +15,15 @@ public class CharacterTokenizer implements Tokenizer
     private boolean ignoreCase = true;
 	
     public CharacterTokenizer(boolean ignorePunctuation,boolean ignoreCase) {
+        this(ignorePunctuation,ignoreCase,new TokenInterner());
+    }
+
+    /** Create a tokenizer that interns tokens with the given interner,
+     * which may be shared with other tokenizers. */
+    public CharacterTokenizer(boolean ignorePunctuation,boolean ignoreCase,TokenInterner interner) {
         this.ignorePunctuation = ignorePunctuation;
         this.ignoreCase = ignoreCase;
+        this.interner = interner;
     }
 
     // parameter setting
@@ -28,47 +35,66 @@ public class CharacterTokenizer implements Tokenizer
      * of alphanumerics, or any single punctuation character. */
     public Token[] tokenize(String input) 
     {
-    	char[] stringChars =  input.toCharArray();
-        List<Token> tokens = new ArrayList<Token>();
-        for (char c : stringChars) {
+        IntArrayList ids = (IntArrayList)SCRATCH.get();
+        ids.clear();
+        tokenize(input,ids);
+        Token[] tokens = new BasicToken[ids.size()];
+        for (int i=0; i<tokens.length; i++) {
+            tokens[i] = interner.getToken(ids.get(i));
+        }
+        return tokens;
+    }
+
+    /** Append the indices of the tokens of the input to ids. */
+    public void tokenize(CharSequence input,IntArrayList ids) 
+    {
+        for (int i=0; i<input.length(); i++) {
+            char c = input.charAt(i);
 			if(Character.isLetterOrDigit(c)){
-				tokens.add(internSomething(Character.toString(c)));
+				ids.add(internSomething(input,i,c).getIndex());
 			}
 			else if (!ignorePunctuation && !Character.isWhitespace(c)) {
-				tokens.add(internSomething(Character.toString(c)));
+				ids.add(internSomething(input,i,c).getIndex());
 			}
 		}
-        return (Token[]) tokens.toArray(new BasicToken[tokens.size()]);
     }
-    private Token internSomething(String s) 
+    // intern the char c at position i of input
+    private Token internSomething(CharSequence input,int i,char c) 
     {
-        return intern( ignoreCase ? s.toLowerCase() : s );
+        if (!ignoreCase) return interner.intern(input,i,i+1);
+        else if (c<128) return interner.internLowerCase(input,i,i+1);
+        else return interner.intern(Character.toString(c).toLowerCase());
     }
+
+    // token indices collected by tokenize(String), one list per thread
+    private static final ThreadLocal SCRATCH = new ThreadLocal() {
+            protected Object initialValue() { return new IntArrayList(); }
+        };
 	
     //
     // 'interning' strings as tokens
     //
-    private int nextId = 0;
-    private Map<String, Token> tokMap = new TreeMap<String, Token>();
+    private final TokenInterner interner;
 
     public Token intern(String s) 
     {
-        Token tok = (Token)tokMap.get(s);
-        if (tok==null) {
-	    tok = new BasicToken(++nextId,s);
-	    tokMap.put(s,tok);
-        }
-        return tok;
+        return interner.intern(s);
+    }
+
+    /** The interner that assigns indices to tokens. */
+    public TokenInterner getInterner()
+    {
+        return interner;
     }
 
     public Iterator<Token> tokenIterator()
     {
-        return tokMap.values().iterator();
+        return interner.tokenIterator();
     }
 
     public int maxTokenIndex()
     {
-        return nextId;
+        return interner.size();
     }
 
     /** Test routine */
@@ -0,0 +1,57 @@
+package com.wcohen.ss.tokens;
+
+import java.util.*;
+
+/**
+ * A growable list of ints, stored without boxing, which can be
+ * cleared and reused.
+ */
+
+public class IntArrayList
+{
+    private int[] elements;
+    private int size = 0;
+
+    public IntArrayList(int initialCapacity) { elements = new int[Math.max(1,initialCapacity)]; }
+    public IntArrayList() { this(16); }
+
+    /** Append x to the end of the list. */
+    public void add(int x)
+    {
+        if (size==elements.length) elements = Arrays.copyOf(elements, 2*size);
+        elements[size++] = x;
+    }
+
+    public int get(int i)
+    {
+        if (i>=size) throw new IndexOutOfBoundsException("index "+i+" of "+size);
+        return elements[i];
+    }
+
+    public void set(int i,int x)
+    {
+        if (i>=size) throw new IndexOutOfBoundsException("index "+i+" of "+size);
+        elements[i] = x;
+    }
+
+    public int size() { return size; }
+
+    /** Remove all elements, keeping the allocated space. */
+    public void clear() { size = 0; }
+
+    /** Remove all elements from position n on. */
+    public void truncate(int n) { if (n<size) size = Math.max(0,n); }
+
+    /** A copy of the elements. */
+    public int[] toArray() { return Arrays.copyOf(elements, size); }
+
+    public String toString()
+    {
+        StringBuffer buf = new StringBuffer("[");
+        for (int i=0; i<size; i++) {
+            if (i>0) buf.append(",");
+            buf.append(elements[i]);
+        }
+        return buf.append("]").toString();
+    }
+}
@@ -8,7 +8,7 @@ import com.wcohen.ss.api.*;
  * characters from a single token produced by the inner tokenizer.
  */
 
-public class NGramTokenizer implements Tokenizer
+public class NGramTokenizer implements StreamingTokenizer
 {
     private int minNGramSize;
     private int maxNGramSize;
@@ -28,6 +28,68 @@ public class NGramTokenizer implements Tokenizer
      * character n-grams that are part of a token produced by the
      * inner tokenizer. */
     public Token[] tokenize(String input) 
+    {
+        if (!(innerTokenizer instanceof StreamingTokenizer)) return tokenizeWithStrings(input);
+        IntArrayList ids = ((Scratch)SCRATCH.get()).out;
+        ids.clear();
+        tokenize(input,ids);
+        TokenInterner interner = getInterner();
+        Token[] tokens = new BasicToken[ids.size()];
+        for (int i=0; i<tokens.length; i++) {
+            tokens[i] = interner.getToken(ids.get(i));
+        }
+        return tokens;
+    }
+
+    /** Append the indices of the n-grams of the input to ids, in the
+     * same order as tokenize(String).  Each n-gram is interned
+     * straight from a per-thread buffer holding '^', an inner token,
+     * and '$', with its hash extended one char at a time from the
+     * next shorter n-gram that starts at the same place, so no
+     * substring is made unless the n-gram is new.  This requires an
+     * inner tokenizer that is also a StreamingTokenizer.
+     */
+    public void tokenize(CharSequence input,IntArrayList ids) 
+    {
+        TokenInterner interner = getInterner();
+        Scratch scratch = (Scratch)SCRATCH.get();
+        // the inner tokens go at the end of ids for now, and are
+        // overwritten by the n-grams when those are done
+        int start = ids.size();
+        ((StreamingTokenizer)innerTokenizer).tokenize(input,ids);
+        int end = ids.size();
+        for (int i=start; i<end; i++) {
+            String value = interner.getValue(ids.get(i));
+            int n = value.length()+2;
+            char[] buf = scratch.buffer(n);
+            buf[0] = '^';
+            value.getChars(0, value.length(), buf, 1);
+            buf[n-1] = '$';
+            CharSequence str = scratch.view;
+            if (keepOldTokens) ids.add( interner.intern(str,0,n).getIndex() );
+            for (int lo=0; lo<n; lo++) {
+                int h = 0, hi = lo;
+                for (int len=minNGramSize; len<=maxNGramSize && lo+len<n; len++) {
+                    for (; hi<lo+len; hi++) h = 31*h + buf[hi];
+                    ids.add( interner.intern(str,lo,hi,h).getIndex() );
+                }
+            }
+        }
+        for (int i=end; i<ids.size(); i++) ids.set(start+i-end, ids.get(i));
+        ids.truncate(ids.size()-(end-start));
+    }
+
+    /** The interner of the inner tokenizer, which must be a StreamingTokenizer. */
+    public TokenInterner getInterner()
+    {
+        if (!(innerTokenizer instanceof StreamingTokenizer)) {
+            throw new IllegalStateException("inner tokenizer "+innerTokenizer+" is not a StreamingTokenizer");
+        }
+        return ((StreamingTokenizer)innerTokenizer).getInterner();
+    }
+
+    // the original implementation, for inner tokenizers that aren't StreamingTokenizers
+    private Token[] tokenizeWithStrings(String input)
     {
         Token[] initialTokens = innerTokenizer.tokenize(input);
         List tokens = new ArrayList();
@@ -38,13 +100,33 @@ public class NGramTokenizer implements Tokenizer
             for (int lo=0; lo<str.length(); lo++) {
                 for (int len=minNGramSize; len<=maxNGramSize; len++) {
                     if (lo+len<str.length()) {
-                        tokens.add( innerTokenizer.intern( str.substring(lo,lo+len) )); 
+                        tokens.add( intern(str.substring(lo,lo+len)) ); 
                     }
                 }
             }
         }
         return (Token[]) tokens.toArray(new BasicToken[tokens.size()]);
     }
+
+    // per-thread space used by tokenize
+    private static class Scratch
+    {
+        final IntArrayList out = new IntArrayList();
+        char[] buf = new char[64];
+        CharSequence view = java.nio.CharBuffer.wrap(buf);
+
+        char[] buffer(int n)
+        {
+            if (n>buf.length) {
+                buf = new char[Math.max(n, 2*buf.length)];
+                view = java.nio.CharBuffer.wrap(buf);
+            }
+            return buf;
+        }
+    }
+    private static final ThreadLocal SCRATCH = new ThreadLocal() {
+            protected Object initialValue() { return new Scratch(); }
+        };
 	
     public Token intern(String s) { return innerTokenizer.intern(s); }
     public Iterator tokenIterator() { return innerTokenizer.tokenIterator(); }
@@ -10,8 +10,8 @@ import com.wcohen.ss.api.*;
 
 public class SimpleSourcedTokenizer extends SimpleTokenizer implements SourcedTokenizer
 {
-    private int nextId = 0;
-    private Map tokMap = new TreeMap();
+    // interns token@source keys, to give each an index
+    private TokenInterner sourcedInterner = new TokenInterner();
 
     public static final SimpleSourcedTokenizer DEFAULT_SOURCED_TOKENIZER = new SimpleSourcedTokenizer(true,true);
 	
@@ -26,10 +26,7 @@ public class SimpleSourcedTokenizer extends SimpleTokenizer implements SourcedTo
         SourcedToken[] sourcedTokens = new SourcedToken[tokens.length];
         for (int i=0; i<tokens.length; i++) {
             String key = tokens[i].getValue()+"@"+source;
-            if (tokMap.get(key)==null) {
-                tokMap.put(key,new Integer(++nextId));
-            }
-            int id = ((Integer)tokMap.get(key)).intValue();
+            int id = sourcedInterner.intern(key).getIndex();
             sourcedTokens[i] = new BasicSourcedToken(id, tokens[i].getValue(), source);
         }
         return sourcedTokens;
@@ -8,7 +8,7 @@ import com.wcohen.ss.api.*;
  * alphanumerics, optionally including single punctuation characters.
  */
 
-public class SimpleTokenizer implements Tokenizer
+public class SimpleTokenizer implements StreamingTokenizer
 {
     public static final SimpleTokenizer DEFAULT_TOKENIZER = new SimpleTokenizer(true,true);
 	
@@ -16,8 +16,15 @@ public class SimpleTokenizer implements Tokenizer
     private boolean ignoreCase = true;
 	
     public SimpleTokenizer(boolean ignorePunctuation,boolean ignoreCase) {
+        this(ignorePunctuation,ignoreCase,new TokenInterner());
+    }
+
+    /** Create a tokenizer that interns tokens with the given interner,
+     * which may be shared with other tokenizers. */
+    public SimpleTokenizer(boolean ignorePunctuation,boolean ignoreCase,TokenInterner interner) {
         this.ignorePunctuation = ignorePunctuation;
         this.ignoreCase = ignoreCase;
+        this.interner = interner;
     }
 
     // parameter setting
@@ -29,67 +36,90 @@ public class SimpleTokenizer implements Tokenizer
      * of alphanumerics, or any single punctuation character. */
     public Token[] tokenize(String input) 
     {
-        List tokens = new ArrayList();
+        IntArrayList ids = (IntArrayList)SCRATCH.get();
+        ids.clear();
+        tokenize(input,ids);
+        Token[] tokens = new BasicToken[ids.size()];
+        for (int i=0; i<tokens.length; i++) {
+            tokens[i] = interner.getToken(ids.get(i));
+        }
+        return tokens;
+    }
+
+    /** Append the indices of the tokens of the input to ids.  The
+     * input is scanned once, and case is folded as tokens are
+     * interned, so no String is created for a token that has been
+     * seen before. */
+    public void tokenize(CharSequence input,IntArrayList ids) 
+    {
         int cursor = 0;
         while (cursor<input.length()) {
 	    char ch = input.charAt(cursor);
 	    if (Character.isWhitespace(ch)) {
                 cursor++;
 	    } else if (Character.isLetter(ch)) {
-                StringBuffer buf = new StringBuffer("");
+                int start = cursor;
+                boolean ascii = true;
                 while (cursor<input.length() && Character.isLetter(input.charAt(cursor))) {
-                    buf.append(input.charAt(cursor));
+                    ascii &= input.charAt(cursor)<128;
                     cursor++;
                 }
-                tokens.add(internSomething(buf.toString()));
+                ids.add(internSomething(input,start,cursor,ascii).getIndex());
 	    } else if (Character.isDigit(ch)) {
-                StringBuffer buf = new StringBuffer("");
+                int start = cursor;
+                boolean ascii = true;
                 while (cursor<input.length() && Character.isDigit(input.charAt(cursor))) {
-                    buf.append(input.charAt(cursor));
+                    ascii &= input.charAt(cursor)<128;
                     cursor++;
                 }
-                tokens.add(internSomething(buf.toString()));
+                ids.add(internSomething(input,start,cursor,ascii).getIndex());
 	    } else {
                 if (!ignorePunctuation) {
-                    StringBuffer buf = new StringBuffer("");
-                    buf.append(ch);
-                    String str = buf.toString();
-                    tokens.add(internSomething(str));
+                    ids.add(internSomething(input,cursor,cursor+1,ch<128).getIndex());
                 }
                 cursor++;
 	    }
         }
-        return (Token[]) tokens.toArray(new BasicToken[tokens.size()]);
     }
-    private Token internSomething(String s) 
+    // intern input[start..end), without copying it unless it's new
+    // (or, if case is ignored, it has chars that toLowerCase() treats
+    // specially)
+    private Token internSomething(CharSequence input,int start,int end,boolean ascii) 
     {
-        return intern( ignoreCase ? s.toLowerCase() : s );
+        if (!ignoreCase) return interner.intern(input,start,end);
+        else if (ascii) return interner.internLowerCase(input,start,end);
+        else return interner.intern(input.subSequence(start,end).toString().toLowerCase());
     }
+
+    // token indices collected by tokenize(String), one list per thread
+    private static final ThreadLocal SCRATCH = new ThreadLocal() {
+            protected Object initialValue() { return new IntArrayList(); }
+        };
 	
     //
     // 'interning' strings as tokens
     //
-    private int nextId = 0;
-    private Map tokMap = new TreeMap();
+    private final TokenInterner interner;
 
     public Token intern(String s) 
     {
-        Token tok = (Token)tokMap.get(s);
-        if (tok==null) {
-	    tok = new BasicToken(++nextId,s);
-	    tokMap.put(s,tok);
-        }
-        return tok;
+        return interner.intern(s);
+    }
+
+    /** The interner that assigns indices to tokens. */
+    public TokenInterner getInterner()
+    {
+        return interner;
     }
 
     public Iterator tokenIterator()
     {
-        return tokMap.values().iterator();
+        return interner.tokenIterator();
     }
 
     public int maxTokenIndex()
     {
-        return nextId;
+        return interner.size();
     }
 
     /** Test routine */
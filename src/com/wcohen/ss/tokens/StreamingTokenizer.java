@@ -0,0 +1,18 @@
+package com.wcohen.ss.tokens;
+
+import com.wcohen.ss.api.*;
+
+/**
+ * A Tokenizer that can produce just the indices of the tokens of a
+ * string, without creating a String or Token object for each one.
+ * The indices can be mapped back to tokens with the interner.
+ */
+
+public interface StreamingTokenizer extends Tokenizer
+{
+    /** Append the index of each token of the input, in order, to ids. */
+    public void tokenize(CharSequence input,IntArrayList ids);
+
+    /** The interner that assigns indices to the tokens. */
+    public TokenInterner getInterner();
+}
@@ -30,10 +30,11 @@ import com.wcohen.ss.api.*;
 
 public class TagLinkToken
     extends AbstractStringDistance {
-  private double matched, tr, sSize, tSize, totalScore;
+  private double tr;
   private static final double DEF_TR = 0.3;
-  private String sA, sB, tokenT;
-  private int largestIndex;
+  private String sA, sB;
+  // the number of characters matched by the last score, for getMatched()
+  private double matched;
 
   /**
    * TagLinkToken default constructor. Instance of this class with parameter
@@ -63,16 +64,30 @@ public class TagLinkToken
    * @return double
    */
   public double score(StringWrapper s, StringWrapper t) {
-	String S = s.unwrap(),
-	  T =t.unwrap();
-    totalScore = 0.0;
+    return score(s.unwrap(), t.unwrap(), null);
+  }
+
+  /**
+   * score return the string distance of a pair of tokens, like
+   * score(StringWrapper, StringWrapper), and puts the number of matched
+   * characters in matched[0], unless matched is null. Unlike getMatched,
+   * this gives each caller its own count, so several threads can share
+   * this distance.
+   *
+   * @param S String
+   * @param T String
+   * @param matched double[]
+   * @return double
+   */
+  public double score(String S, String T, double[] matched) {
+    double totalScore = 0.0;
     if (S.equals(T)) {
-      matched = S.length();
+      setMatched(S.length(), matched);
       return 1.0;
     }
     else {
-      sSize = S.length();
-      tSize = T.length();
+      double sSize = S.length();
+      double tSize = T.length();
       // let S be the largest token
       if (sSize < tSize) {
         String tmp1 = S;
@@ -81,12 +96,10 @@ public class TagLinkToken
         double tmp2 = sSize;
         sSize = tSize;
         tSize = tmp2;
-        tokenT = T;
       }
-      tokenT = S;
       ArrayList candidateList = algorithm1(S, T);
       sortList(candidateList);
-      totalScore = getScore(candidateList);
+      totalScore = getScore(candidateList, matched);
       totalScore = (totalScore / ( (double) sSize) + totalScore / ( (double) tSize)) / 2.0;
       return winkler(totalScore, S, T);
     }
@@ -107,13 +120,14 @@ public class TagLinkToken
     buff.append("\n****TagLinkToken****\n");
     buff.append("Si=" + S + ", Tj=" + T + "\n");
     double totalScore = 0.0;
+    double matched = 0;
     if (S.equals(T)) {
-      matched = S.length();
+      setMatched(S.length(), null);
       buff.append("Sij=1.0");
     }
     else {
-      sSize = S.length();
-      tSize = T.length();
+      double sSize = S.length();
+      double tSize = T.length();
       // let S be the biggest token
       if (sSize < tSize) {
         String tmp1 = S;
@@ -150,19 +164,21 @@ public class TagLinkToken
       System.out.println("score " + totalScore);
       buff.append("Score_ij(S,T)=" + round(winkler(totalScore, S, T)));
       buff.append("\nMatched characters=" + matched);
+      setMatched(matched, null);
     }
     return buff.toString();
   }
 
   /**
-   * getScore sum the total score of a candidate list of pair of characters.
+   * getScore sum the total score of a candidate list of pair of characters,
+   * and count the characters matched, as for score.
    *
    * @param candidateList ArrayList
+   * @param matchedCount double[]
    * @return double
    */
-  private double getScore(ArrayList candidateList) {
-    matched = 0;
-    largestIndex = -1;
+  private double getScore(ArrayList candidateList, double[] matchedCount) {
+    double matched = 0;
     double scoreValue = 0;
     HashMap tMap = new HashMap(),
         uMap = new HashMap();
@@ -177,15 +193,22 @@ public class TagLinkToken
         scoreValue += actualScore;
         tMap.put(actualTPos, null);
         uMap.put(actualUPos, null);
-        if (largestIndex < actualTPos.intValue()) {
-          largestIndex = actualTPos.intValue();
-        }
         matched++;
       }
     }
+    setMatched(matched, matchedCount);
     return scoreValue;
   }
 
+  // keep the number of matched characters for getMatched(), and in
+  // matchedCount[0] if it isn't null
+  private void setMatched(double n, double[] matchedCount) {
+    this.matched = n;
+    if (matchedCount != null) {
+      matchedCount[0] = n;
+    }
+  }
+
   /**
    * algorithm1 select the considered most appropiate character pairs are return
    * a list of candidates.
@@ -275,8 +298,11 @@ public class TagLinkToken
   }
 
   /**
-   * getMatched return the number of matched character. This value is requiered
-   * for the MR-IDF method as proposed in Horacio & Salhi (2006)
+   * getMatched return the number of matched character in the last pair of
+   * tokens scored. This value is requiered
+   * for the MR-IDF method as proposed in Horacio & Salhi (2006).
+   * If several threads share this distance, use score(S, T, matched)
+   * instead.
    *
    * @return double
    */
@@ -0,0 +1,209 @@
+package com.wcohen.ss.tokens;
+
+import java.util.*;
+import com.wcohen.ss.api.*;
+
+/**
+ * Maps strings to tokens with dense integer indices 1, 2, 3, ..., and
+ * indices back to tokens.
+ *
+ * <p>Strings are found through an open-addressing hash table, so
+ * interning takes one hash of the string and usually one comparison,
+ * and the string can be given as a slice of a larger CharSequence,
+ * which is only copied if it hasn't been seen before.  Interning a
+ * string that has been seen before never locks: the table and the
+ * index-to-token array are published through volatile fields, and
+ * their entries are immutable.  New strings are added under a lock,
+ * which keeps the indices dense, as the Tokenizer contract expects.
+ *
+ * <p>An interner can be shared by several tokenizers, which then
+ * assign the same index to the same string.
+ */
+
+public class TokenInterner
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // open-addressing table of tokens, with linear probing
+    private volatile Entry[] table = new Entry[INITIAL_CAPACITY];
+    // byIndex[i] is the token with index i; byIndex[0] is unused
+    private volatile Token[] byIndex = new Token[INITIAL_CAPACITY];
+    // number of tokens, which is also the highest index assigned
+    private volatile int size = 0;
+
+    /** The token for s. */
+    public Token intern(String s)
+    {
+        return intern(s, 0, s.length(), false);
+    }
+
+    /** The token for the chars of cs from start (inclusive) to end
+     * (exclusive). */
+    public Token intern(CharSequence cs,int start,int end)
+    {
+        return intern(cs, start, end, false);
+    }
+
+    /** The token for the chars of cs from start (inclusive) to end
+     * (exclusive), each converted with Character.toLowerCase().  For
+     * most text this is the same as lower-casing the substring, but
+     * not for the few chars whose lower-case form depends on the locale
+     * or on the chars around them.
+     */
+    public Token internLowerCase(CharSequence cs,int start,int end)
+    {
+        return intern(cs, start, end, true);
+    }
+
+    /** The token for the chars of cs from start to end, given that
+     * their String.hashCode() is stringHash.  This lets a caller that
+     * computes the hash itself (say, as a rolling hash) save a pass
+     * over the chars. */
+    Token intern(CharSequence cs,int start,int end,int stringHash)
+    {
+        return intern(cs, start, end, false, spread(stringHash));
+    }
+
+    private Token intern(CharSequence cs,int start,int end,boolean lowerCase)
+    {
+        return intern(cs, start, end, lowerCase, hash(cs, start, end, lowerCase));
+    }
+
+    private Token intern(CharSequence cs,int start,int end,boolean lowerCase,int h)
+    {
+        Token tok = find(table, cs, start, end, lowerCase, h);
+        if (tok!=null) return tok;
+        synchronized (this) {
+            Entry[] tab = table;
+            tok = find(tab, cs, start, end, lowerCase, h);
+            if (tok!=null) return tok;
+            String value = lowerCase ? lowerCase(cs, start, end) : cs.subSequence(start, end).toString();
+            int index = size+1;
+            tok = new BasicToken(index, value);
+            Token[] toks = byIndex;
+            if (index>=toks.length) toks = Arrays.copyOf(toks, 2*toks.length);
+            toks[index] = tok;
+            if (2*index>tab.length) {
+                tab = rehash(tab, 2*tab.length);
+            }
+            insert(tab, new Entry(h, tok));
+            // the volatile writes publish the new entries
+            byIndex = toks;
+            table = tab;
+            size = index;
+        }
+        return tok;
+    }
+
+    /** The token with the given index, or null if there is none. */
+    public Token getToken(int index)
+    {
+        Token[] toks = byIndex;
+        return index>0 && index<toks.length ? toks[index] : null;
+    }
+
+    /** The string for the token with the given index, or null if there is none. */
+    public String getValue(int index)
+    {
+        Token tok = getToken(index);
+        return tok==null ? null : tok.getValue();
+    }
+
+    /** The number of tokens, which is also the highest index of any token. */
+    public int size()
+    {
+        return size;
+    }
+
+    /** Iterate over the tokens interned so far, in order of index. */
+    public Iterator tokenIterator()
+    {
+        // read size before byIndex, the reverse of the order intern()
+        // publishes them in, so that toks has all n tokens
+        final int n = size;
+        final Token[] toks = byIndex;
+        return new Iterator() {
+                private int i = 1;
+                public boolean hasNext() { return i<=n; }
+                public Object next() {
+                    if (i>n) throw new NoSuchElementException();
+                    return toks[i++];
+                }
+                public void remove() { throw new UnsupportedOperationException(); }
+            };
+    }
+
+    public String toString() { return "[TokenInterner "+size+" tokens]"; }
+
+    //
+    // the hash table
+    //
+
+    private static final class Entry
+    {
+        final int hash;
+        final Token token;
+        Entry(int hash,Token token) { this.hash = hash; this.token = token; }
+    }
+
+    private static Token find(Entry[] tab,CharSequence cs,int start,int end,boolean lowerCase,int h)
+    {
+        int mask = tab.length-1;
+        for (int k=h & mask; ; k=(k+1) & mask) {
+            Entry e = tab[k];
+            if (e==null) return null;
+            if (e.hash==h && sameChars(e.token.getValue(), cs, start, end, lowerCase)) return e.token;
+        }
+    }
+
+    private static void insert(Entry[] tab,Entry e)
+    {
+        int mask = tab.length-1;
+        int k = e.hash & mask;
+        while (tab[k]!=null) k = (k+1) & mask;
+        tab[k] = e;
+    }
+
+    private static Entry[] rehash(Entry[] tab,int capacity)
+    {
+        Entry[] newTab = new Entry[capacity];
+        for (int k=0; k<tab.length; k++) {
+            if (tab[k]!=null) insert(newTab, tab[k]);
+        }
+        return newTab;
+    }
+
+    // String.hashCode() of the (lower-cased) slice, spread a little
+    private static int hash(CharSequence cs,int start,int end,boolean lowerCase)
+    {
+        int h = 0;
+        for (int i=start; i<end; i++) {
+            char c = cs.charAt(i);
+            h = 31*h + (lowerCase ? Character.toLowerCase(c) : c);
+        }
+        return spread(h);
+    }
+
+    private static int spread(int h)
+    {
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean sameChars(String value,CharSequence cs,int start,int end,boolean lowerCase)
+    {
+        if (value.length()!=end-start) return false;
+        for (int i=start; i<end; i++) {
+            char c = cs.charAt(i);
+            if (lowerCase) c = Character.toLowerCase(c);
+            if (value.charAt(i-start)!=c) return false;
+        }
+        return true;
+    }
+
+    private static String lowerCase(CharSequence cs,int start,int end)
+    {
+        char[] buf = new char[end-start];
+        for (int i=start; i<end; i++) buf[i-start] = Character.toLowerCase(cs.charAt(i));
+        return new String(buf);
+    }
+}